@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Compares file growth and speed of the memory file allocation policies by
+ * running the same command file with each of them.
+ * 
+ * Without a command file, a churn heavy one is generated: mostly inserts and
+ * removes of sequences with widely varying lengths over a small set of IDs.
+ * 
+ * == RUNNING ==
+ * 
+ * AllocatorBenchmark [command-file] [hash-table-size]
+ * 
+ * @author loganlinn
+ * 
+ */
+public class AllocatorBenchmark {
+	private static final int CHURN_COMMANDS = 200000;
+	private static final int CHURN_IDS = 4000;
+	private static final int MAX_SEQUENCE_LENGTH = 4000;
+	private static final int DEFAULT_TABLE_SIZE = 8192;
+
+	public static void main(String[] args) throws IOException {
+		String commandFile;
+		if (args.length > 0) {
+			commandFile = args[0];
+		} else {
+			File generated = File.createTempFile("churn", ".txt");
+			generated.deleteOnExit();
+			writeChurnFile(generated, new Random(3114));
+			commandFile = generated.getPath();
+		}
+		int tableSize = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_TABLE_SIZE;
+
+		run("first fit", commandFile, tableSize, new FreeSpaceIndex(
+				FreeSpaceIndex.FitPolicy.FIRST_FIT));
+		run("best fit", commandFile, tableSize, new FreeSpaceIndex(
+				FreeSpaceIndex.FitPolicy.BEST_FIT));
+		run("buddy", commandFile, tableSize, new BuddyAllocator());
+	}
+
+	/**
+	 * Runs the command file against a fresh store and reports the results
+	 * 
+	 * @param name
+	 * @param commandFile
+	 * @param tableSize
+	 * @param allocator
+	 * @throws IOException
+	 */
+	private static void run(String name, String commandFile, int tableSize,
+			BlockAllocator allocator) throws IOException {
+		File hashFile = File.createTempFile("bench", ".hash");
+		File memoryFile = File.createTempFile("bench", ".mem");
+		hashFile.deleteOnExit();
+		memoryFile.deleteOnExit();
+
+		MemoryManager memoryManager = new MemoryManager(memoryFile.getPath(),
+				false, allocator);
+		HashTable hashTable = new HashTable(hashFile.getPath(), tableSize,
+				memoryManager);
+		CommandFile commands = new CommandFile(commandFile, hashTable,
+				memoryManager);
+
+		long start = System.nanoTime();
+		commands.parse(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		long nanos = System.nanoTime() - start;
+
+		System.out.printf("%-10s %10.0f commands/s  file %10d bytes  "
+				+ "%7d free blocks%n", name, commands.getCommandCount()
+				/ (nanos / 1e9), memoryManager.getFileLength(),
+				allocator.length());
+		hashTable.close();
+		memoryManager.close();
+	}
+
+	/**
+	 * Writes a command file of random inserts and removes
+	 * 
+	 * @param file
+	 * @param random
+	 * @throws IOException
+	 */
+	private static void writeChurnFile(File file, Random random)
+			throws IOException {
+		String[] ids = new String[CHURN_IDS];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = randomBases(random, 4 + random.nextInt(12));
+		}
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		for (int i = 0; i < CHURN_COMMANDS; i++) {
+			String id = ids[random.nextInt(ids.length)];
+			int kind = random.nextInt(10);
+			if (kind < 5) {
+				writer.println("insert " + id);
+				writer.println(randomBases(random,
+						1 + random.nextInt(MAX_SEQUENCE_LENGTH)));
+			} else if (kind < 9) {
+				writer.println("remove " + id);
+			} else {
+				writer.println("search " + id);
+			}
+		}
+		writer.close();
+	}
+
+	private static String randomBases(Random random, int length) {
+		char[] bases = new char[length];
+		for (int i = 0; i < length; i++) {
+			bases[i] = "ACGT".charAt(random.nextInt(4));
+		}
+		return new String(bases);
+	}
+}
@@ -0,0 +1,81 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Decides where blocks of the sequence file go and keeps track of the space
+ * that has been given back.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface BlockAllocator {
+
+	/**
+	 * Allocates space for an encoded sequence
+	 * 
+	 * @param blockSize
+	 *            in bytes
+	 * @param endOfFile
+	 *            number of bytes in use in the file
+	 * @return the byte offset in the file where the block starts
+	 */
+	public int allocateBlock(int blockSize, int endOfFile);
+
+	/**
+	 * Marks a block previously returned by allocateBlock as free
+	 * 
+	 * @param offset
+	 * @param blockSize
+	 *            in bytes, as passed to allocateBlock
+	 */
+	public void releaseBlock(int offset, int blockSize);
+
+	/**
+	 * Forgets every block and marks [0, length) as free, so the blocks still
+	 * in use can be marked with allocateAt
+	 * 
+	 * @param length
+	 *            number of bytes in use in the file
+	 */
+	public void reset(int length);
+
+	/**
+	 * Marks a block as used, as if allocateBlock had returned it
+	 * 
+	 * @param offset
+	 * @param blockSize
+	 *            in bytes, as passed to allocateBlock
+	 * @return false if the block is not entirely free
+	 */
+	public boolean allocateAt(int offset, int blockSize);
+
+	/**
+	 * Writes the free blocks, so load can restore them after a restart
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void save(DataOutput out) throws IOException;
+
+	/**
+	 * Replaces the free blocks with ones written by save
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	public void load(DataInput in) throws IOException;
+
+	/**
+	 * @return number of free blocks
+	 */
+	public int length();
+
+	/**
+	 * Print the free blocks in offset order
+	 * 
+	 * @param out
+	 */
+	public void print(PrintStream out);
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+
+/**
+ * Storage for the buckets of the hash file.
+ * 
+ * A bucket is a fixed number of 4-byte integers. The HashTable decides what
+ * the integers mean; a store only knows how to get them to and from disk.
+ * 
+ * The file starts with a header of the same size as a bucket, followed by
+ * bucket 0.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface BucketStore {
+
+	/**
+	 * Reads one integer of a bucket
+	 * 
+	 * @param bucket
+	 *            bucket number
+	 * @param index
+	 *            integer index within the bucket
+	 * @return
+	 * @throws IOException
+	 */
+	public int getInt(int bucket, int index) throws IOException;
+
+	/**
+	 * Writes one integer of a bucket
+	 * 
+	 * @param bucket
+	 *            bucket number
+	 * @param index
+	 *            integer index within the bucket
+	 * @param value
+	 * @throws IOException
+	 */
+	public void putInt(int bucket, int index, int value) throws IOException;
+
+	/**
+	 * Reads one integer of the file header
+	 * 
+	 * @param index
+	 *            integer index within the header
+	 * @return
+	 * @throws IOException
+	 */
+	public int getHeaderInt(int index) throws IOException;
+
+	/**
+	 * Writes one integer of the file header
+	 * 
+	 * @param index
+	 *            integer index within the header
+	 * @param value
+	 * @throws IOException
+	 */
+	public void putHeaderInt(int index, int value) throws IOException;
+
+	/**
+	 * Grows or shrinks the store to hold numBuckets buckets. Every added
+	 * bucket starts as a copy of emptyBucket; buckets past the new end are
+	 * dropped.
+	 * 
+	 * @param numBuckets
+	 * @param emptyBucket
+	 *            contents of a new bucket, one integer per index
+	 * @throws IOException
+	 */
+	public void setNumBuckets(int numBuckets, int[] emptyBucket)
+			throws IOException;
+
+	/**
+	 * @return the number of buckets in the store
+	 */
+	public int getNumBuckets();
+
+	/**
+	 * Writes any buffered changes to the file
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Flushes and closes the file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,255 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Binary buddy allocation of the sequence file.
+ * 
+ * Every block is 2^k bytes and starts at a multiple of its size, so the
+ * buddy of a block is found by flipping one bit of its offset. Free blocks
+ * are kept in one set per order. Allocating splits a larger free block in
+ * halves until it is the right order; releasing merges a block with its
+ * buddy for as long as the buddy is free. Both walk at most one step per
+ * order, and each merge is a constant time set lookup.
+ * 
+ * Internal fragmentation is bounded: a block is less than twice the size
+ * asked for.
+ * 
+ * The file is covered by an arena of 2^arenaOrder bytes starting at 0. When
+ * nothing fits the arena doubles and its new upper half becomes free.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class BuddyAllocator implements BlockAllocator {
+	private static final int MAX_ORDER = 30;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final LinkedHashSet<Integer>[] freeBlocks = new LinkedHashSet[MAX_ORDER + 1];
+	private int arenaOrder = -1; // No arena until the first allocation
+	private int numFreeBlocks = 0;
+
+	/**
+	 * Constructs an empty allocator
+	 */
+	public BuddyAllocator() {
+		for (int i = 0; i <= MAX_ORDER; i++) {
+			freeBlocks[i] = new LinkedHashSet<Integer>();
+		}
+	}
+
+	/**
+	 * Gets the order of the smallest block that holds size bytes
+	 * 
+	 * @param size
+	 * @return
+	 */
+	public static int order(int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Allocates a block of 2^order(blockSize) bytes. The end of file is not
+	 * needed; the arena decides where new space goes.
+	 */
+	public int allocateBlock(int blockSize, int endOfFile) {
+		int order = order(blockSize);
+		if (order > MAX_ORDER) {
+			throw new IllegalArgumentException("Block too large: "
+					+ blockSize);
+		}
+		if (arenaOrder < 0) {
+			arenaOrder = order;
+			return 0;
+		}
+
+		int k = order;
+		while (k <= arenaOrder && freeBlocks[k].isEmpty()) {
+			k++;
+		}
+		while (k > arenaOrder) {
+			growArena();
+			k = order;
+			while (k <= arenaOrder && freeBlocks[k].isEmpty()) {
+				k++;
+			}
+		}
+
+		int offset = takeFree(k);
+		// Split down to the requested order, freeing the upper halves
+		while (k > order) {
+			k--;
+			addFree(offset + (1 << k), k);
+		}
+		return offset;
+	}
+
+	/**
+	 * Frees a block and merges it with its buddy as far as possible
+	 */
+	public void releaseBlock(int offset, int blockSize) {
+		release(offset, order(blockSize));
+	}
+
+	private void release(int offset, int order) {
+		while (order < arenaOrder) {
+			int buddy = offset ^ (1 << order);
+			if (!freeBlocks[order].remove(buddy)) {
+				break;
+			}
+			numFreeBlocks--;
+			offset = Math.min(offset, buddy);
+			order++;
+		}
+		addFree(offset, order);
+	}
+
+	/**
+	 * Makes the arena the smallest one covering length bytes, all of it free
+	 */
+	public void reset(int length) {
+		for (int order = 0; order <= MAX_ORDER; order++) {
+			freeBlocks[order].clear();
+		}
+		numFreeBlocks = 0;
+		arenaOrder = -1;
+		if (length > 0) {
+			arenaOrder = order(length);
+			addFree(0, arenaOrder);
+		}
+	}
+
+	/**
+	 * Splits the free block containing the block down to its order, growing
+	 * the arena first if the block lies past its end
+	 */
+	public boolean allocateAt(int offset, int blockSize) {
+		int order = order(blockSize);
+		if (offset < 0 || (offset & ((1 << order) - 1)) != 0) {
+			return false; // Not where allocateBlock would have put it
+		}
+		if (arenaOrder < 0) {
+			arenaOrder = order;
+			addFree(0, arenaOrder);
+		}
+		while ((long) offset + (1 << order) > (1L << arenaOrder)) {
+			growArena();
+		}
+		for (int k = order; k <= arenaOrder; k++) {
+			int start = offset & ~((1 << k) - 1);
+			if (freeBlocks[k].remove(start)) {
+				numFreeBlocks--;
+				while (k > order) {
+					k--;
+					int upper = start + (1 << k);
+					if (offset >= upper) {
+						addFree(start, k);
+						start = upper;
+					} else {
+						addFree(upper, k);
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the arena order, then for each order the number of free blocks
+	 * and their offsets in the order they will be taken
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeInt(arenaOrder);
+		for (int order = 0; order <= MAX_ORDER; order++) {
+			out.writeInt(freeBlocks[order].size());
+			for (int offset : freeBlocks[order]) {
+				out.writeInt(offset);
+			}
+		}
+	}
+
+	public void load(DataInput in) throws IOException {
+		reset(0);
+		arenaOrder = in.readInt();
+		for (int order = 0; order <= MAX_ORDER; order++) {
+			for (int i = in.readInt(); i > 0; i--) {
+				addFree(in.readInt(), order);
+			}
+		}
+	}
+
+	/**
+	 * Doubles the arena. The new upper half is free, and merges with the old
+	 * arena if all of it was free.
+	 */
+	private void growArena() {
+		if (arenaOrder >= MAX_ORDER) {
+			throw new IllegalStateException("Sequence file is full");
+		}
+		int half = arenaOrder;
+		arenaOrder++;
+		release(1 << half, half);
+	}
+
+	private int takeFree(int order) {
+		Iterator<Integer> first = freeBlocks[order].iterator();
+		int offset = first.next();
+		first.remove();
+		numFreeBlocks--;
+		return offset;
+	}
+
+	private void addFree(int offset, int order) {
+		freeBlocks[order].add(offset);
+		numFreeBlocks++;
+	}
+
+	/**
+	 * @return the order of the arena, or -1 before anything was allocated
+	 */
+	public int getArenaOrder() {
+		return arenaOrder;
+	}
+
+	public int length() {
+		return numFreeBlocks;
+	}
+
+	public void print(PrintStream out) {
+		if (numFreeBlocks == 0) {
+			out.println("Free Block List: none");
+		} else {
+			out.println("Free Block List:");
+			out.println(this);
+		}
+	}
+
+	/**
+	 * One line per free block, in offset order
+	 */
+	public String toString() {
+		long[] blocks = new long[numFreeBlocks];
+		int n = 0;
+		for (int order = 0; order <= MAX_ORDER; order++) {
+			for (int offset : freeBlocks[order]) {
+				blocks[n++] = ((long) offset << 8) | order;
+			}
+		}
+		Arrays.sort(blocks);
+		StringBuilder out = new StringBuilder(numFreeBlocks * 32);
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				out.append("\n");
+			}
+			out.append("  [Offset: ").append(blocks[i] >> 8)
+					.append(", Size:").append(1 << (blocks[i] & 0xFF))
+					.append("]");
+		}
+		return out.toString();
+	}
+}
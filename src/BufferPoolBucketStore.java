@@ -0,0 +1,346 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bucket store that keeps a pool of bucket frames in memory on top of a
+ * RandomAccessFile.
+ * 
+ * Reads and writes go to the frame holding the bucket. A bucket that is not
+ * in the pool is read into a free frame, or into a frame taken from another
+ * bucket chosen by the {@link EvictionPolicy}. Writes only mark the frame
+ * dirty; dirty frames are written back when they are evicted and on
+ * {@link #flush()}.
+ * 
+ * The file is read and written with positional I/O. The pool's bookkeeping
+ * changes on every access (reference bits, LRU order), so every access holds
+ * the store's lock; it is held only for the copy out of the frame, or for the
+ * read of one bucket on a miss.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class BufferPoolBucketStore implements BucketStore {
+	public static final int DEFAULT_NUM_FRAMES = 64;
+	private static final int INT_BYTES = 4;
+
+	/**
+	 * How a frame is chosen when a bucket has to be read into a full pool
+	 */
+	public enum EvictionPolicy {
+		/**
+		 * Second chance: sweep the frames, clearing reference bits, and take
+		 * the first frame that has not been used since the last sweep
+		 */
+		CLOCK,
+		/**
+		 * Take the frame that was used least recently
+		 */
+		LRU
+	}
+
+	private final RandomAccessFile hashFile;
+	private final FileChannel channel;
+	private final int intsInBucket;
+	private final int bytesInBucket;
+	private final EvictionPolicy policy;
+	private final Frame[] frames;
+	private final LinkedHashMap<Integer, Frame> residentFrames;
+	private final ByteBuffer ioBuffer; // Bytes of one bucket
+	private final int[] header;
+	private boolean headerDirty = false;
+	private int numFramesUsed = 0;
+	private int clockHand = 0;
+	private int numBuckets = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long writeBacks = 0;
+
+	/**
+	 * Creates an empty store, clearing out the file
+	 * 
+	 * @param fileName
+	 * @param intsInBucket
+	 * @param numFrames
+	 *            number of buckets kept in memory
+	 * @param policy
+	 * @throws IOException
+	 */
+	public BufferPoolBucketStore(String fileName, int intsInBucket,
+			int numFrames, EvictionPolicy policy) throws IOException {
+		this(fileName, intsInBucket, numFrames, policy, false);
+	}
+
+	/**
+	 * Creates a store, optionally keeping the buckets already in the file
+	 * 
+	 * @param fileName
+	 * @param intsInBucket
+	 * @param numFrames
+	 *            number of buckets kept in memory
+	 * @param policy
+	 * @param reopen
+	 *            true to keep the file's contents
+	 * @throws IOException
+	 */
+	public BufferPoolBucketStore(String fileName, int intsInBucket,
+			int numFrames, EvictionPolicy policy, boolean reopen)
+			throws IOException {
+		if (numFrames < 1) {
+			throw new IllegalArgumentException("Need at least one frame: "
+					+ numFrames);
+		}
+		this.intsInBucket = intsInBucket;
+		this.bytesInBucket = intsInBucket * INT_BYTES;
+		this.policy = policy;
+		frames = new Frame[numFrames];
+		// LRU keeps the map in access order so the eldest entry is the
+		// victim, CLOCK only uses it for lookups
+		residentFrames = new LinkedHashMap<Integer, Frame>(numFrames * 2,
+				0.75f, policy == EvictionPolicy.LRU);
+		ioBuffer = ByteBuffer.allocate(bytesInBucket);
+		hashFile = new RandomAccessFile(fileName, "rw");
+		channel = hashFile.getChannel();
+		header = new int[intsInBucket];
+		if (reopen && hashFile.length() >= bytesInBucket) {
+			numBuckets = (int) (hashFile.length() / bytesInBucket - 1);
+			read(0);
+			ioBuffer.asIntBuffer().get(header);
+		} else {
+			hashFile.setLength(0);
+		}
+	}
+
+	/**
+	 * Returns the frame holding a bucket, reading it in if needed
+	 * 
+	 * @param bucket
+	 * @return
+	 * @throws IOException
+	 */
+	private Frame frame(int bucket) throws IOException {
+		Frame frame = residentFrames.get(bucket);
+		if (frame != null) {
+			hits++;
+			frame.referenced = true;
+			return frame;
+		}
+		misses++;
+
+		if (numFramesUsed < frames.length) {
+			frame = new Frame(intsInBucket);
+			frames[numFramesUsed++] = frame;
+		} else {
+			frame = victim();
+			residentFrames.remove(frame.bucket);
+			if (frame.dirty) {
+				writeFrame(frame);
+			}
+		}
+
+		// Read entire bucket into the frame
+		read(bucket + 1);
+		ioBuffer.asIntBuffer().get(frame.data);
+		frame.bucket = bucket;
+		frame.dirty = false;
+		frame.referenced = true;
+		residentFrames.put(bucket, frame);
+		return frame;
+	}
+
+	/**
+	 * Chooses a resident frame to give up
+	 * 
+	 * @return
+	 */
+	private Frame victim() {
+		if (policy == EvictionPolicy.LRU) {
+			Iterator<Frame> eldest = residentFrames.values().iterator();
+			return eldest.next();
+		}
+		while (true) {
+			Frame frame = frames[clockHand];
+			clockHand = (clockHand + 1) % frames.length;
+			if (!frame.referenced) {
+				return frame;
+			}
+			frame.referenced = false; // Second chance
+		}
+	}
+
+	/**
+	 * Writes a frame back to its bucket in the file
+	 * 
+	 * @param frame
+	 * @throws IOException
+	 */
+	private void writeFrame(Frame frame) throws IOException {
+		ioBuffer.clear();
+		ioBuffer.asIntBuffer().put(frame.data);
+		write(frame.bucket + 1);
+		frame.dirty = false;
+		writeBacks++;
+	}
+
+	/**
+	 * Reads a page of the file (the header is page 0) into the I/O buffer
+	 * 
+	 * @param page
+	 * @throws IOException
+	 */
+	private void read(int page) throws IOException {
+		ioBuffer.clear();
+		long position = (long) page * bytesInBucket;
+		while (ioBuffer.hasRemaining()) {
+			if (channel.read(ioBuffer, position + ioBuffer.position()) < 0) {
+				throw new EOFException("Page " + page + " is past the end");
+			}
+		}
+		ioBuffer.clear();
+	}
+
+	/**
+	 * Writes the I/O buffer to a page of the file
+	 * 
+	 * @param page
+	 * @throws IOException
+	 */
+	private void write(int page) throws IOException {
+		ioBuffer.clear();
+		long position = (long) page * bytesInBucket;
+		while (ioBuffer.hasRemaining()) {
+			channel.write(ioBuffer, position + ioBuffer.position());
+		}
+	}
+
+	public synchronized int getInt(int bucket, int index) throws IOException {
+		return frame(bucket).data[index];
+	}
+
+	public synchronized void putInt(int bucket, int index, int value) throws IOException {
+		Frame frame = frame(bucket);
+		frame.data[index] = value;
+		frame.dirty = true;
+	}
+
+	public synchronized int getHeaderInt(int index) {
+		return header[index];
+	}
+
+	public synchronized void putHeaderInt(int index, int value) {
+		header[index] = value;
+		headerDirty = true;
+	}
+
+	public synchronized void setNumBuckets(int numBuckets, int[] emptyBucket)
+			throws IOException {
+		if (numBuckets < this.numBuckets) {
+			// Rare (only on reopen), so just empty the pool
+			flush();
+			residentFrames.clear();
+			numFramesUsed = 0;
+			clockHand = 0;
+			hashFile.setLength((long) (numBuckets + 1) * bytesInBucket);
+			this.numBuckets = numBuckets;
+			return;
+		}
+		ioBuffer.clear();
+		ioBuffer.asIntBuffer().put(emptyBucket, 0, intsInBucket);
+		for (int b = this.numBuckets; b < numBuckets; b++) {
+			write(b + 1);
+		}
+		this.numBuckets = numBuckets;
+	}
+
+	public synchronized int getNumBuckets() {
+		return numBuckets;
+	}
+
+	public synchronized void flush() throws IOException {
+		// Write back in bucket order so the writes move forward through the
+		// file
+		Frame[] dirtyFrames = new Frame[numFramesUsed];
+		int numDirty = 0;
+		for (int i = 0; i < numFramesUsed; i++) {
+			if (frames[i].dirty) {
+				dirtyFrames[numDirty++] = frames[i];
+			}
+		}
+		Arrays.sort(dirtyFrames, 0, numDirty);
+		for (int i = 0; i < numDirty; i++) {
+			writeFrame(dirtyFrames[i]);
+		}
+		if (headerDirty) {
+			ioBuffer.clear();
+			ioBuffer.asIntBuffer().put(header);
+			write(0);
+			headerDirty = false;
+		}
+		hashFile.getFD().sync();
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		hashFile.close();
+	}
+
+	/**
+	 * @return number of accesses to a bucket that was already in the pool
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of accesses that had to read the bucket from the file
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of dirty frames written back to the file
+	 */
+	public long getWriteBacks() {
+		return writeBacks;
+	}
+
+	public String toString() {
+		return "Buffer pool (" + frames.length + " frames, " + policy
+				+ "): hits=" + hits + ", misses=" + misses + ", write-backs="
+				+ writeBacks;
+	}
+
+	/**
+	 * A bucket held in memory
+	 * 
+	 * @author loganlinn
+	 * 
+	 */
+	private static class Frame implements Comparable<Frame> {
+		private final int[] data;
+		private int bucket = -1;
+		private boolean dirty = false;
+		private boolean referenced = false; // CLOCK reference bit
+
+		/**
+		 * Constructs an empty frame
+		 * 
+		 * @param intsInBucket
+		 */
+		public Frame(int intsInBucket) {
+			data = new int[intsInBucket];
+		}
+
+		public int compareTo(Frame other) {
+			return bucket < other.bucket ? -1 : (bucket == other.bucket ? 0
+					: 1);
+		}
+	} /* end Frame */
+}
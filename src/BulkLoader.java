@@ -0,0 +1,446 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a new hash file and memory file from a FASTA file, without going
+ * through a command file.
+ *
+ * The FASTA file is read once. Each record's ID (the first word of its
+ * header line) and sequence are packed 2 bits per base and appended to the
+ * memory file as they are read, so the memory file is written strictly in
+ * order. Bases other than A, C, G and T are stored as A, like the codec does
+ * everywhere else; records whose ID is not made of bases are skipped.
+ *
+ * Meanwhile an entry for each record (its home slot, handles and ID) is
+ * collected. Whenever runEntries entries are waiting they are sorted by home
+ * slot and written to a temporary run file. The runs are then merged and the
+ * entries inserted in home slot order, so the hash file is filled a bucket
+ * at a time from the first to the last, instead of at random. Entries with
+ * the same home slot keep their order in the FASTA file, so of two records
+ * with the same ID the first is kept.
+ *
+ * The table is closed cleanly, so P4 -reopen picks it up without a rebuild.
+ *
+ * == RUNNING ==
+ *
+ * BulkLoader <fasta-file> <hash-file> <hash-table-size> <memory-file>
+ * [options]
+ *
+ * == OPTIONS ==
+ *
+ * -hash=<packed|sfold> : hash function for sequence IDs (default packed)
+ *
+ * -robinhood : place entries within a bucket by Robin Hood hashing
+ *
+ * -overflow : chain full buckets to overflow buckets instead of skipping
+ * the records that do not fit
+ *
+ * -run=<entries> : entries sorted in memory per run (default 1048576)
+ *
+ * @author loganlinn
+ *
+ */
+public class BulkLoader {
+	private static final int IND_FASTA_FILE = 0;
+	private static final int IND_HASH_FILE = 1;
+	private static final int IND_HASH_TABLE_SIZE = 2;
+	private static final int IND_MEMORY_FILE = 3;
+	private static final int IND_FIRST_OPTION = 4;
+
+	public static final int DEFAULT_RUN_ENTRIES = 1 << 20;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	public static final String OPTION_HASH = "-hash=";
+	public static final String OPTION_ROBIN_HOOD = "-robinhood";
+	public static final String OPTION_OVERFLOW = "-overflow";
+	public static final String OPTION_RUN = "-run=";
+
+	/**
+	 * Orders entries by home slot. The sorts used are stable, so entries with
+	 * the same home slot stay in file order.
+	 */
+	private static final Comparator<Entry> BY_HOME_SLOT = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return (a.homeSlot < b.homeSlot) ? -1 : (a.homeSlot == b.homeSlot ? 0
+					: 1);
+		}
+	};
+
+	private final int numSlots;
+	private final SequenceHasher hasher;
+	private final int runEntries;
+
+	private final List<Entry> pending = new ArrayList<Entry>();
+	private final List<File> runs = new ArrayList<File>();
+	private int dataLength = 0; // Bytes written to the memory file
+	private int records = 0;
+	private int skipped = 0;
+
+	public static void main(String[] args) throws IOException {
+		SequenceHasher hasher = new PackedDnaHasher();
+		boolean robinHood = false;
+		boolean overflow = false;
+		int runEntries = DEFAULT_RUN_ENTRIES;
+		for (int i = IND_FIRST_OPTION; i < args.length; i++) {
+			if (args[i].startsWith(OPTION_HASH)) {
+				String hash = args[i].substring(OPTION_HASH.length());
+				if ("sfold".equals(hash)) {
+					hasher = new SfoldHasher();
+				} else if ("packed".equals(hash)) {
+					hasher = new PackedDnaHasher();
+				} else {
+					System.err.println("Unknown hash function: " + hash);
+				}
+			} else if (OPTION_ROBIN_HOOD.equals(args[i])) {
+				robinHood = true;
+			} else if (OPTION_OVERFLOW.equals(args[i])) {
+				overflow = true;
+			} else if (args[i].startsWith(OPTION_RUN)) {
+				runEntries = Integer.parseInt(args[i].substring(OPTION_RUN
+						.length()));
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+			}
+		}
+
+		int hashTableSize = Integer.parseInt(args[IND_HASH_TABLE_SIZE]);
+		BulkLoader loader = new BulkLoader(hashTableSize, hasher, runEntries);
+		loader.writeMemoryFile(args[IND_FASTA_FILE], args[IND_MEMORY_FILE]);
+
+		// Every byte written so far is in use
+		MemoryManager memoryManager = new MemoryManager(args[IND_MEMORY_FILE],
+				false, new FreeSpaceIndex(FreeSpaceIndex.FitPolicy.FIRST_FIT),
+				true);
+		BucketStore bucketStore = new BufferPoolBucketStore(
+				args[IND_HASH_FILE], HashTable.SLOTS_IN_BUCKET,
+				BufferPoolBucketStore.DEFAULT_NUM_FRAMES,
+				BufferPoolBucketStore.EvictionPolicy.CLOCK);
+		HashTable hashTable = new HashTable(hashTableSize, memoryManager,
+				bucketStore, hasher);
+		hashTable.setRobinHood(robinHood);
+		hashTable.setOverflow(overflow);
+
+		loader.insertEntries(hashTable, memoryManager);
+
+		System.out.println(hashTable);
+		hashTable.close();
+		memoryManager.close();
+	}
+
+	/**
+	 * @param numSlots
+	 *            size of the table the entries are sorted for
+	 * @param hasher
+	 * @param runEntries
+	 *            entries sorted in memory per run
+	 */
+	public BulkLoader(int numSlots, SequenceHasher hasher, int runEntries) {
+		this.numSlots = numSlots;
+		this.hasher = hasher;
+		this.runEntries = runEntries;
+	}
+
+	/**
+	 * Reads the FASTA file, appending each record's ID and sequence to a new
+	 * memory file, and sorts the entries into runs
+	 *
+	 * @param fastaFile
+	 * @param memoryFile
+	 * @throws IOException
+	 */
+	public void writeMemoryFile(String fastaFile, String memoryFile)
+			throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(fastaFile),
+				BUFFER_SIZE);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				memoryFile), BUFFER_SIZE);
+		try {
+			String line = in.readLine();
+			while (line != null) {
+				if (!line.startsWith(">")) {
+					line = in.readLine(); // Comment or stray sequence line
+					continue;
+				}
+				String[] words = line.substring(1).trim().split("\\s+", 2);
+				String sequenceID = words[0].toUpperCase();
+				boolean valid = sequenceID.length() > 0
+						&& sequenceID.matches("[ACGT]+");
+				if (!valid) {
+					System.out.println("Skipping record " + words[0]
+							+ ": the ID is not a DNA sequence");
+					skipped++;
+				}
+
+				// Pack the ID, then stream the sequence lines after it
+				int sequenceIdOffset = dataLength;
+				if (valid) {
+					byte[] encodedId = new byte[DnaCodec
+							.encodedLength(sequenceID.length())];
+					DnaCodec.encode(sequenceID, 0, sequenceID.length(),
+							encodedId, 0);
+					out.write(encodedId);
+					dataLength += encodedId.length;
+				}
+				int sequenceOffset = dataLength;
+				int sequenceLength = 0;
+				int packed = 0;
+				while ((line = in.readLine()) != null && !line.startsWith(">")) {
+					if (!valid) {
+						continue;
+					}
+					for (int i = 0; i < line.length(); i++) {
+						char base = line.charAt(i);
+						if (Character.isWhitespace(base)) {
+							continue;
+						}
+						int shift = 2 * (sequenceLength % DnaCodec.BASES_PER_BYTE);
+						packed |= DnaCodec.code(base) << shift;
+						if (++sequenceLength % DnaCodec.BASES_PER_BYTE == 0) {
+							out.write(packed);
+							packed = 0;
+						}
+					}
+				}
+				if (!valid) {
+					continue;
+				}
+				if (sequenceLength % DnaCodec.BASES_PER_BYTE != 0) {
+					out.write(packed);
+				}
+				dataLength += DnaCodec.encodedLength(sequenceLength);
+
+				add(new Entry(
+						(int) (hasher.hash(sequenceID) % numSlots),
+						sequenceID, sequenceIdOffset, sequenceOffset,
+						sequenceLength));
+				records++;
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Queues an entry, writing a run once enough are waiting
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	private void add(Entry entry) throws IOException {
+		pending.add(entry);
+		if (pending.size() >= runEntries) {
+			writeRun();
+		}
+	}
+
+	/**
+	 * Sorts the waiting entries and writes them to a new run file
+	 *
+	 * @throws IOException
+	 */
+	private void writeRun() throws IOException {
+		Entry[] entries = pending.toArray(new Entry[pending.size()]);
+		pending.clear();
+		Arrays.sort(entries, BY_HOME_SLOT);
+
+		File run = File.createTempFile("bulk", ".run");
+		run.deleteOnExit();
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(run), BUFFER_SIZE));
+		try {
+			for (Entry entry : entries) {
+				entry.write(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Inserts every entry in home slot order, merging the runs. Entries that
+	 * are rejected give their space in the memory file back.
+	 *
+	 * @param hashTable
+	 *            a new table of the size the entries were sorted for
+	 * @param memoryManager
+	 * @throws IOException
+	 */
+	public void insertEntries(HashTable hashTable, MemoryManager memoryManager)
+			throws IOException {
+		int duplicates = 0;
+		int full = 0;
+		if (runs.isEmpty()) {
+			// Everything fit in memory; no need to go through a file
+			Entry[] entries = pending.toArray(new Entry[pending.size()]);
+			pending.clear();
+			Arrays.sort(entries, BY_HOME_SLOT);
+			for (Entry entry : entries) {
+				int result = insert(hashTable, memoryManager, entry);
+				duplicates += (result == 1) ? 1 : 0;
+				full += (result == 2) ? 1 : 0;
+			}
+		} else {
+			if (!pending.isEmpty()) {
+				writeRun();
+			}
+			PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>();
+			for (int i = 0; i < runs.size(); i++) {
+				RunReader reader = new RunReader(runs.get(i), i);
+				if (reader.next()) {
+					heads.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			while (!heads.isEmpty()) {
+				RunReader reader = heads.poll();
+				int result = insert(hashTable, memoryManager, reader.entry);
+				duplicates += (result == 1) ? 1 : 0;
+				full += (result == 2) ? 1 : 0;
+				if (reader.next()) {
+					heads.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+
+		System.out.println("Loaded " + (records - duplicates - full)
+				+ " of " + (records + skipped) + " records (" + duplicates
+				+ " duplicate IDs, " + full + " rejected by full buckets, "
+				+ skipped + " skipped) through " + runs.size() + " runs");
+	}
+
+	/**
+	 * Inserts one entry
+	 *
+	 * @return 0 if it was inserted, 1 if its ID was a duplicate, 2 if its
+	 *         bucket was full
+	 * @throws IOException
+	 */
+	private int insert(HashTable hashTable, MemoryManager memoryManager,
+			Entry entry) throws IOException {
+		MemoryHandle sequenceIdHandle = new MemoryHandle(
+				entry.sequenceIdOffset, entry.sequenceID.length());
+		MemoryHandle sequenceHandle = new MemoryHandle(entry.sequenceOffset,
+				entry.sequenceLength);
+		int result = 0;
+		try {
+			hashTable.insert(entry.sequenceID, sequenceIdHandle, sequenceHandle);
+		} catch (DuplicateSequenceException e) {
+			result = 1;
+		} catch (HashTableFullException e) {
+			result = 2;
+		}
+		if (result != 0) {
+			// Free the space without reading the sequence back
+			BlockAllocator allocator = memoryManager.getAllocator();
+			allocator.releaseBlock(entry.sequenceIdOffset, MemoryManager
+					.getEncodedSequenceLength(entry.sequenceID.length()));
+			allocator.releaseBlock(entry.sequenceOffset, MemoryManager
+					.getEncodedSequenceLength(entry.sequenceLength));
+		}
+		return result;
+	}
+
+	/**
+	 * A record of the FASTA file: where its ID and sequence went in the
+	 * memory file
+	 *
+	 * @author loganlinn
+	 *
+	 */
+	private static class Entry {
+		private final int homeSlot;
+		private final String sequenceID;
+		private final int sequenceIdOffset;
+		private final int sequenceOffset;
+		private final int sequenceLength;
+
+		public Entry(int homeSlot, String sequenceID, int sequenceIdOffset,
+				int sequenceOffset, int sequenceLength) {
+			this.homeSlot = homeSlot;
+			this.sequenceID = sequenceID;
+			this.sequenceIdOffset = sequenceIdOffset;
+			this.sequenceOffset = sequenceOffset;
+			this.sequenceLength = sequenceLength;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(homeSlot);
+			out.writeUTF(sequenceID);
+			out.writeInt(sequenceIdOffset);
+			out.writeInt(sequenceOffset);
+			out.writeInt(sequenceLength);
+		}
+
+		public static Entry read(DataInputStream in) throws IOException {
+			return new Entry(in.readInt(), in.readUTF(), in.readInt(), in
+					.readInt(), in.readInt());
+		}
+	} /* end Entry */
+
+	/**
+	 * Reads the entries of one run file in order. Readers compare by their
+	 * current entry's home slot, then by run, so runs written earlier (from
+	 * earlier in the FASTA file) win ties.
+	 *
+	 * @author loganlinn
+	 *
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+		private final DataInputStream in;
+		private final int run;
+		private Entry entry; // Current entry
+
+		public RunReader(File file, int run) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), BUFFER_SIZE));
+			this.run = run;
+		}
+
+		/**
+		 * Moves to the next entry
+		 *
+		 * @return false at the end of the run
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			try {
+				entry = Entry.read(in);
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		public int compareTo(RunReader other) {
+			int order = BY_HOME_SLOT.compare(entry, other.entry);
+			return (order != 0) ? order : run - other.run;
+		}
+	} /* end RunReader */
+}
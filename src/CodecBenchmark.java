@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures encode/decode throughput of {@link DnaCodec} against the original
+ * switch based MemoryManager implementation (kept here for comparison).
+ * 
+ * == RUNNING ==
+ * 
+ * CodecBenchmark [bases] [rounds]
+ * 
+ * @author loganlinn
+ * 
+ */
+public class CodecBenchmark {
+	private static final int DEFAULT_BASES = 1 << 24;
+	private static final int DEFAULT_ROUNDS = 10;
+
+	public static void main(String[] args) {
+		int bases = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_BASES;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_ROUNDS;
+
+		char[] chars = new char[bases];
+		Random random = new Random(3114);
+		for (int i = 0; i < bases; i++) {
+			chars[i] = "ACGT".charAt(random.nextInt(4));
+		}
+		String sequence = new String(chars);
+		int numBytes = DnaCodec.encodedLength(bases);
+
+		// Both implementations must agree before timing anything
+		byte[] legacyBytes = legacyEncode(sequence, numBytes);
+		byte[] tableBytes = new byte[numBytes];
+		DnaCodec.encode(chars, 0, bases, tableBytes, 0);
+		if (!Arrays.equals(legacyBytes, tableBytes)) {
+			throw new IllegalStateException("Encodings differ");
+		}
+		char[] decoded = new char[bases];
+		DnaCodec.decode(tableBytes, 0, bases, decoded, 0);
+		if (!sequence.equals(legacyDecode(legacyBytes, bases))
+				|| !sequence.equals(new String(decoded))) {
+			throw new IllegalStateException("Decodings differ");
+		}
+
+		System.out.println("Bases: " + bases + ", rounds: " + rounds);
+
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			legacyBytes = legacyEncode(sequence, numBytes);
+		}
+		report("legacy encode", bases, rounds, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			DnaCodec.encode(chars, 0, bases, tableBytes, 0);
+		}
+		report("table encode", bases, rounds, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			legacyDecode(legacyBytes, bases);
+		}
+		report("legacy decode", bases, rounds, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			DnaCodec.decode(tableBytes, 0, bases, decoded, 0);
+		}
+		report("table decode", bases, rounds, System.nanoTime() - start);
+	}
+
+	/**
+	 * Prints the throughput of a timed run
+	 * 
+	 * @param name
+	 * @param bases
+	 * @param rounds
+	 * @param nanos
+	 */
+	private static void report(String name, int bases, int rounds, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-14s %8.1f Mbases/s%n", name, (double) bases
+				* rounds / seconds / 1e6);
+	}
+
+	/**
+	 * The original MemoryManager.encodeString
+	 * 
+	 * @param sequence
+	 * @param numBytes
+	 * @return
+	 */
+	private static byte[] legacyEncode(String sequence, int numBytes) {
+		byte[] output = new byte[numBytes];
+		StringReader reader = new StringReader(sequence);
+		char[] buffer = new char[4];
+		int charsRead, bytesEncoded = 0;
+		byte encodedValue = 0x0;
+		try {
+			while ((charsRead = reader.read(buffer)) != -1) {
+				for (int i = charsRead - 1; i >= 0; i--) {
+					switch (buffer[i]) {
+					case 'A':
+						encodedValue = 0x0;
+						break;
+					case 'C':
+						encodedValue = 0x1;
+						break;
+					case 'G':
+						encodedValue = 0x2;
+						break;
+					case 'T':
+						encodedValue = 0x3;
+						break;
+					}
+					output[bytesEncoded] = (byte) ((output[bytesEncoded] << 2) | encodedValue);
+				}
+				bytesEncoded++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return output;
+	}
+
+	/**
+	 * The original MemoryManager.decode
+	 * 
+	 * @param data
+	 * @param length
+	 * @return
+	 */
+	private static String legacyDecode(byte[] data, int length) {
+		StringBuilder sb = new StringBuilder();
+		int byteInd = 0, charsDecoded = 0;
+		while (charsDecoded < length) {
+			byte b = data[byteInd];
+			for (int i = 0; i < 4; i++) {
+				switch (b & 0x3) {
+				case 0x0:
+					sb.append('A');
+					break;
+				case 0x1:
+					sb.append('C');
+					break;
+				case 0x2:
+					sb.append('G');
+					break;
+				case 0x3:
+					sb.append('T');
+					break;
+				}
+				if (++charsDecoded >= length)
+					break;
+				b >>= 2;
+			}
+			byteInd++;
+		}
+		return sb.toString();
+	}
+}
@@ -4,7 +4,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Represents and parses a command file passed to the program. - Parse the
@@ -20,16 +29,38 @@ public class CommandFile {
 	private static final String REMOVE_COMMAND = "remove";
 	private static final String PRINT_COMMAND = "print";
 	private static final String SEARCH_COMMAND = "search";
+	private static final String REORGANIZE_COMMAND = "reorganize";
+	private static final String CONTAINS_COMMAND = "contains";
+	private static final String PREFIX_COMMAND = "prefix";
+	private static final String RANGE_COMMAND = "range";
 	private static final String UNKNOWN_COMMAND_ERROR_PREFIX = "Unknown command, ";
 	private static final String LINE_NUMBER_MESSAGE_PREFIX = "(Line ";
 	private static final String LINE_NUMBER_MESSAGE_SUFFIX = ")";
 
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	private static final int QUEUE_LENGTH = 1024; // Between pipeline stages
+	private static final int MAX_SEQUENCE_IN_MEMORY = 1 << 18; // Bases
+	private static final Command END_OF_COMMANDS = new Command(null, null,
+			null, 0);
+	private static final Search END_OF_SEARCHES = new Search(null, null);
+
 	private String commandFilePath; // Path to command file
 	private int lineNumber = 0; // Tracks which line of the command file we are
 								// parsing
+	private int commandCount = 0; // Number of commands executed
 
 	private HashTable hashTable;
 	private MemoryManager memManager;
+	private Compactor compactor; // Runs between commands if set
+	private WriteAheadLog log; // Told about every change if set
+
+	// Consecutive inserts waiting to be made together
+	private int batchSize = 1; // 1 makes every insert on its own
+	private String[] batchIDs;
+	private String[] batchSequences;
+	private int batchLength = 0;
+
+	private int threads = 1; // Running searches
 
 	/**
 	 * Constructs a CommandFile given the path to a command file
@@ -82,15 +113,49 @@ public class CommandFile {
 	 * @throws P3Exception
 	 */
 	public void parse() throws IOException {
+		parse(System.out);
+	}
+
+	/**
+	 * Parses the command file, printing the output of the commands
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void parse(PrintStream out) throws IOException {
 
 		File commandFile = new File(this.commandFilePath);
 
 		BufferedReader br = new BufferedReader(new InputStreamReader(
 				new DataInputStream(new FileInputStream(commandFile))));
-		String line, command, sequenceID = null;
-		MemoryHandle sequenceIdHandle = null;
-		MemoryHandle sequenceHandle = null;
+		try {
+			if (threads > 1) {
+				parsePipelined(br, out);
+			} else {
+				Command command;
+				while ((command = readCommand(br)) != null) {
+					execute(command, out);
+				}
+				insertBatch(out);
+			}
+		} finally {
+			br.close();
+		}
+		if (log != null) {
+			log.commit();
+		}
+
+	}
 
+	/**
+	 * Reads the next command, with its sequence if it is an insert
+	 * 
+	 * @param br
+	 * @return the command, or null at the end of the file
+	 * @throws IOException
+	 */
+	private Command readCommand(BufferedReader br) throws IOException {
+		String line;
 		while ((line = br.readLine()) != null) {
 			lineNumber++;
 			/**
@@ -104,91 +169,538 @@ public class CommandFile {
 			StringTokenizer lineTokens = new StringTokenizer(line);
 
 			if (lineTokens.hasMoreTokens()) {
-				command = lineTokens.nextToken();
-
+				String command = lineTokens.nextToken();
+				commandCount++;
+				String sequenceID = getNextArgument(lineTokens);
 				if (INSERT_COMMAND.equals(command)) {
+					return readInsert(br, sequenceID);
+				}
+				return new Command(command, sequenceID,
+						getNextArgument(lineTokens), lineNumber);
+			}
+		}
+		return null;
+	}
 
-					/*
-					 * Insert command
-					 */
-					sequenceID = getNextArgument(lineTokens);// sequenceId
-					try {
-						String sequence = br.readLine().trim();
-						lineNumber++;
-						if (sequence == null || sequence.isEmpty()) {
-							System.out.println("Expecting a sequence!"
-									+ getLineNumberMessage());
-							continue;
-						}
-						sequenceIdHandle = memManager.storeSequence(sequenceID);
-						sequenceHandle = memManager.storeSequence(sequence);
-						hashTable.insert(sequenceID, sequenceIdHandle,
-								sequenceHandle);
-
-					} catch (HashTableFullException e) {
-						System.out.println(e.getMessage());
-						// Remove the rejected sequence data from memory manager
-						memManager.removeSequence(sequenceIdHandle);
-						memManager.removeSequence(sequenceHandle);
-					} catch (DuplicateSequenceException e) {
-						System.out.println(e.getMessage());
+	/**
+	 * Reads the sequence of an insert. The line after the command is the
+	 * sequence, and each following line that starts with an upper case letter
+	 * continues it; whitespace is ignored. A sequence too long to keep as a
+	 * String is packed into a SequenceWriter as it is read.
+	 * 
+	 * @param br
+	 * @param sequenceID
+	 * @return the insert command
+	 * @throws IOException
+	 */
+	private Command readInsert(BufferedReader br, String sequenceID)
+			throws IOException {
+		StringBuilder sequence = new StringBuilder();
+		SequenceWriter sequenceWriter = null;
+		int c;
+		do {
+			lineNumber++;
+			while ((c = br.read()) != -1 && c != '\n') {
+				if (Character.isWhitespace(c)) {
+					continue;
+				}
+				sequence.append((char) c);
+				if (sequence.length() == MAX_SEQUENCE_IN_MEMORY) {
+					if (sequenceWriter == null) {
+						sequenceWriter = memManager.newSequence();
 					}
+					sequenceWriter.append(sequence);
+					sequence.setLength(0);
+				}
+			}
+		} while (c != -1 && (sequence.length() > 0 || sequenceWriter != null)
+				&& continuesSequence(br));
 
-				} else if (REMOVE_COMMAND.equals(command)) {
+		if (sequenceWriter != null) {
+			sequenceWriter.append(sequence);
+			return new Command(INSERT_COMMAND, sequenceID, null,
+					sequenceWriter, lineNumber);
+		}
+		return new Command(INSERT_COMMAND, sequenceID, sequence.toString(),
+				lineNumber);
+	}
 
-					/*
-					 * Remove command
-					 */
-					sequenceID = getNextArgument(lineTokens);
-					try {
-						hashTable.remove(sequenceID);
-					} catch (SequenceNotFoundException e) {
-						System.out.println(e.getMessage());
+	/**
+	 * Looks at the start of the next line
+	 * 
+	 * @param br
+	 * @return true if the next line is more of a sequence
+	 * @throws IOException
+	 */
+	private static boolean continuesSequence(BufferedReader br)
+			throws IOException {
+		br.mark(1);
+		int c = br.read();
+		br.reset();
+		return c != -1 && Character.isUpperCase(c);
+	}
+
+	/**
+	 * Executes a command, printing its output
+	 * 
+	 * @param command
+	 * @param out
+	 * @throws IOException
+	 *             if the command is unknown
+	 */
+	private void execute(Command command, PrintStream out)
+			throws IOException {
+		String sequenceID = command.sequenceID;
+		MemoryHandle sequenceIdHandle = null;
+		MemoryHandle sequenceHandle = null;
+		if (!INSERT_COMMAND.equals(command.name)) {
+			insertBatch(out); // Keep the commands in order
+		}
+
+		if (INSERT_COMMAND.equals(command.name)) {
+
+			/*
+			 * Insert command
+			 */
+			try {
+				String sequence = command.sequence;
+				if (command.sequenceWriter != null) {
+					insertBatch(out); // Too long to batch
+					if (hashTable.findSlot(sequenceID) >= 0) {
+						// Not worth copying into the memory file, or logging
+						command.sequenceWriter.close();
+						throw new DuplicateSequenceException(sequenceID);
+					}
+					// Only free space is written until the table refers to it
+					sequenceIdHandle = memManager.storeSequence(sequenceID);
+					sequenceHandle = command.sequenceWriter.store();
+					if (log != null) {
+						// Copied from the memory file, never decoded whole
+						log.logInsert(sequenceID, memManager, sequenceHandle);
+					}
+				} else {
+					if (sequence.isEmpty()) {
+						insertBatch(out);
+						out.println("Expecting a sequence!"
+								+ getLineNumberMessage(command));
+						return;
+					}
+					if (batchSize > 1) {
+						batchIDs[batchLength] = sequenceID;
+						batchSequences[batchLength] = sequence;
+						if (++batchLength == batchSize) {
+							insertBatch(out);
+						}
+						return;
 					}
+					if (log != null) {
+						log.logInsert(sequenceID, sequence);
+					}
+					sequenceIdHandle = memManager.storeSequence(sequenceID);
+					sequenceHandle = memManager.storeSequence(sequence);
+				}
+				hashTable.insert(sequenceID, sequenceIdHandle, sequenceHandle);
+
+			} catch (HashTableFullException e) {
+				out.println(e.getMessage());
+				if (log != null) {
+					// The insert is in the log, so replay must undo it too
+					log.logRemove(sequenceID);
+				}
+				// Remove the rejected sequence data from memory manager
+				memManager.releaseSequence(sequenceIdHandle);
+				memManager.releaseSequence(sequenceHandle);
+			} catch (DuplicateSequenceException e) {
+				out.println(e.getMessage());
+				if (sequenceIdHandle != null) {
+					// Remove the rejected sequence data from memory manager;
+					// a shared block only loses the reference stored for this
+					// insert
+					memManager.releaseSequence(sequenceIdHandle);
+					memManager.releaseSequence(sequenceHandle);
+				}
+			}
+
+		} else if (REMOVE_COMMAND.equals(command.name)) {
+
+			/*
+			 * Remove command
+			 */
+			try {
+				if (log != null) {
+					log.logRemove(sequenceID);
+				}
+				hashTable.remove(sequenceID, out);
+			} catch (SequenceNotFoundException e) {
+				out.println(e.getMessage());
+			}
+
+		} else if (PRINT_COMMAND.equals(command.name)) {
 
-				} else if (PRINT_COMMAND.equals(command)) {
+			/*
+			 * Print command
+			 */
+			hashTable.print(out);
+
+		} else if (SEARCH_COMMAND.equals(command.name)) {
+
+			/*
+			 * Search command, find the mode
+			 */
+			try {
+				hashTable.search(sequenceID, out);
+			} catch (SequenceNotFoundException e) {
+				out.println(e.getMessage());
+			}
+
+		} else if (REORGANIZE_COMMAND.equals(command.name)) {
+
+			/*
+			 * Reorganize command, purge tombstones from every bucket
+			 */
+			hashTable.reorganize();
+
+		} else if (CONTAINS_COMMAND.equals(command.name)) {
+
+			/*
+			 * Contains command, find the sequences holding a pattern
+			 */
+			String pattern = sequenceID;
+			if (pattern == null) {
+				out.println("Expecting a pattern!"
+						+ getLineNumberMessage(command));
+				return;
+			}
+			out.println("Sequences containing " + pattern + ":");
+			for (String found : hashTable.findContaining(pattern)) {
+				out.println("  " + found);
+			}
+
+		} else if (PREFIX_COMMAND.equals(command.name)) {
+
+			/*
+			 * Prefix command, list the IDs that start with a prefix
+			 */
+			String prefix = sequenceID;
+			if (prefix == null) {
+				out.println("Expecting a prefix!"
+						+ getLineNumberMessage(command));
+				return;
+			}
+			out.println("Sequence IDs starting with " + prefix + ":");
+			for (String found : hashTable.findWithPrefix(prefix)) {
+				out.println("  " + found);
+			}
 
-					/*
-					 * Print command
-					 */
-					hashTable.print();
+		} else if (RANGE_COMMAND.equals(command.name)) {
 
-				} else if (SEARCH_COMMAND.equals(command)) {
+			/*
+			 * Range command, list the IDs from one ID to another
+			 */
+			String from = sequenceID;
+			String to = command.sequence;
+			if (to == null) {
+				out.println("Expecting two sequence IDs!"
+						+ getLineNumberMessage(command));
+				return;
+			}
+			out.println("Sequence IDs from " + from + " to " + to
+					+ ":");
+			for (String found : hashTable.findInRange(from, to)) {
+				out.println("  " + found);
+			}
+
+		} else {
+
+			// The command isn't recognized, throw an exception
+			throw new IOException(UNKNOWN_COMMAND_ERROR_PREFIX + command.name
+					+ getLineNumberMessage(command));
+		}
 
-					/*
-					 * Search command, find the mode
-					 */
-					sequenceID = getNextArgument(lineTokens); // argument is a
-																// sequence
-																// descriptor
+		afterCommands(1);
+	}
+
+	/**
+	 * Runs the commands in three stages connected by bounded queues: a
+	 * reader thread parses the file, this thread executes the commands, and
+	 * a printer thread prints the results of searches in command order.
+	 * 
+	 * Searches only read the table, so a run of consecutive searches is
+	 * handed to a pool of threads and executed in parallel. A search only
+	 * finds where its sequence is stored; the printer then streams the
+	 * sequence from the memory file, so however many searches are waiting,
+	 * no more than a chunk of one sequence is in memory.
+	 * 
+	 * Any other command first waits until every search before it has been
+	 * printed, then runs and prints its output on this thread. So every
+	 * command sees the table as it would if the commands ran one at a time,
+	 * and no block is freed or moved before the search that found it has
+	 * printed it. The work done after each search (compaction, checkpoints)
+	 * is put off until the next other command; since searches change
+	 * nothing, the result is the same.
+	 * 
+	 * @param br
+	 * @param out
+	 * @throws IOException
+	 */
+	private void parsePipelined(final BufferedReader br, final PrintStream out)
+			throws IOException {
+		final BlockingQueue<Command> commands = new ArrayBlockingQueue<Command>(
+				QUEUE_LENGTH);
+		final BlockingQueue<Search> searches = new ArrayBlockingQueue<Search>(
+				QUEUE_LENGTH);
+		final Semaphore printed = new Semaphore(0); // A permit per search
+		final Exception[] failure = new Exception[1]; // Of the other stages
+
+		Thread reader = new Thread("command-reader") {
+			public void run() {
+				try {
+					Command command;
+					while ((command = readCommand(br)) != null) {
+						commands.put(command);
+					}
+				} catch (Exception e) {
+					failure[0] = e;
+				} finally {
 					try {
-						hashTable.search(sequenceID);
-					} catch (SequenceNotFoundException e) {
-						System.out.println(e.getMessage());
+						commands.put(END_OF_COMMANDS);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		};
+		Thread printer = new Thread("search-output") {
+			public void run() {
+				try {
+					Search search;
+					while ((search = searches.take()) != END_OF_SEARCHES) {
+						try {
+							if (failure[0] == null) {
+								print(search, out);
+							}
+						} finally {
+							printed.release();
+						}
 					}
+				} catch (InterruptedException e) {
+				} catch (Exception e) {
+					failure[0] = e;
+					drain(searches, printed);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		ExecutorService searchers = Executors.newFixedThreadPool(threads);
+		reader.start();
+		printer.start();
 
+		int pendingSearches = 0; // Queued, not printed yet
+		try {
+			Command command;
+			while ((command = commands.take()) != END_OF_COMMANDS) {
+				if (SEARCH_COMMAND.equals(command.name)) {
+					insertBatch(out);
+					Search search = new Search(hashTable, command.sequenceID);
+					search.result = searchers.submit(search);
+					searches.put(search);
+					pendingSearches++;
 				} else {
-
-					// The command isn't recognized, throw an exception
-					throw new IOException(UNKNOWN_COMMAND_ERROR_PREFIX
-							+ command + getLineNumberMessage());
+					printed.acquire(pendingSearches);
+					afterCommands(pendingSearches);
+					pendingSearches = 0;
+					execute(command, out);
+				}
+				if (failure[0] != null) {
+					break;
 				}
+			}
+			printed.acquire(pendingSearches);
+			insertBatch(out);
+			afterCommands(pendingSearches);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		} finally {
+			try {
+				searches.put(END_OF_SEARCHES);
+				printer.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			} finally {
+				searchers.shutdownNow();
+			}
+		}
+		if (failure[0] instanceof IOException) {
+			throw (IOException) failure[0];
+		} else if (failure[0] != null) {
+			throw new RuntimeException(failure[0]);
+		}
+	}
+
+	/**
+	 * Prints the result of a search, waiting for it if need be
+	 * 
+	 * @param search
+	 * @param out
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void print(Search search, PrintStream out) throws IOException,
+			InterruptedException {
+		MemoryHandle sequenceHandle;
+		try {
+			sequenceHandle = search.result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		if (sequenceHandle == null) {
+			out.println(new SequenceNotFoundException(search.sequenceID)
+					.getMessage());
+		} else {
+			memManager.printSequence(sequenceHandle, out);
+		}
+	}
+
+	/**
+	 * Empties a queue of searches without printing them, until the end
+	 * 
+	 * @param searches
+	 * @param printed
+	 *            released once per search, as if it was printed
+	 */
+	private static void drain(BlockingQueue<Search> searches,
+			Semaphore printed) {
+		try {
+			while (searches.take() != END_OF_SEARCHES) {
+				printed.release();
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Makes the inserts waiting in the batch, printing any failures in
+	 * command order
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	private void insertBatch(PrintStream out) throws IOException {
+		if (batchLength == 0) {
+			return;
+		}
+		int n = batchLength;
+		batchLength = 0;
+		String[] sequenceIDs = new String[n];
+		String[] payloads = new String[2 * n]; // ID, sequence, ID, ...
+		for (int i = 0; i < n; i++) {
+			sequenceIDs[i] = batchIDs[i];
+			payloads[2 * i] = batchIDs[i];
+			payloads[2 * i + 1] = batchSequences[i];
+			if (log != null) {
+				log.logInsert(sequenceIDs[i], batchSequences[i]);
+			}
+		}
+		MemoryHandle[] stored = memManager.storeAll(payloads);
+		MemoryHandle[] sequenceIdHandles = new MemoryHandle[n];
+		MemoryHandle[] sequenceHandles = new MemoryHandle[n];
+		for (int i = 0; i < n; i++) {
+			sequenceIdHandles[i] = stored[2 * i];
+			sequenceHandles[i] = stored[2 * i + 1];
+		}
 
+		Exception[] failures = hashTable.insertAll(sequenceIDs,
+				sequenceIdHandles, sequenceHandles);
+		for (int i = 0; i < n; i++) {
+			if (failures[i] == null) {
+				continue;
+			}
+			out.println(failures[i].getMessage());
+			if (failures[i] instanceof HashTableFullException && log != null) {
+				log.logRemove(sequenceIDs[i]);
 			}
+			// Remove the rejected sequence data from memory manager; a
+			// shared block only loses the reference stored for this insert
+			memManager.releaseSequence(sequenceIdHandles[i]);
+			memManager.releaseSequence(sequenceHandles[i]);
 		}
+		afterCommands(n);
+	}
 
+	/**
+	 * Does the work that follows every command: a slice of compaction each,
+	 * and a checkpoint if the log has grown too long
+	 * 
+	 * @param commands
+	 *            number of commands just made
+	 * @throws IOException
+	 */
+	private void afterCommands(int commands) throws IOException {
+		if (compactor != null) {
+			for (int i = 0; i < commands; i++) {
+				compactor.runSlice();
+			}
+		}
+		if (log != null && log.needsCheckpoint()) {
+			log.checkpoint(hashTable, memManager);
+		}
 	}
 
 	/**
-	 * Format a message indicating which line number is currently being parsed
+	 * Format a message indicating which line number a command ended on
 	 * 
 	 * @return
 	 */
-	private String getLineNumberMessage() {
-		return LINE_NUMBER_MESSAGE_PREFIX + lineNumber
+	private String getLineNumberMessage(Command command) {
+		return LINE_NUMBER_MESSAGE_PREFIX + command.lineNumber
 				+ LINE_NUMBER_MESSAGE_SUFFIX;
 	}
 
+	/**
+	 * @param compactor
+	 *            given a slice of work after every command, or null
+	 */
+	public void setCompactor(Compactor compactor) {
+		this.compactor = compactor;
+	}
+
+	/**
+	 * @param log
+	 *            told about every insert and remove, or null
+	 */
+	public void setWriteAheadLog(WriteAheadLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * @param batchSize
+	 *            number of consecutive inserts made together, or 1 to make
+	 *            each insert on its own
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		batchIDs = new String[batchSize];
+		batchSequences = new String[batchSize];
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads running searches, or 1 to run every
+	 *            command in turn on the calling thread
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return number of commands executed by parse
+	 */
+	public int getCommandCount() {
+		return commandCount;
+	}
+
 	/**
 	 * @return the commandFilePath
 	 */
@@ -204,4 +716,54 @@ public class CommandFile {
 		this.commandFilePath = commandFilePath;
 	}
 
+	/**
+	 * A command as read from the command file
+	 * 
+	 * @author loganlinn
+	 * 
+	 */
+	private static class Command {
+		private final String name;
+		private final String sequenceID; // null if missing
+		private final String sequence; // Of an insert, else 2nd argument
+		private final SequenceWriter sequenceWriter; // Instead, if long
+		private final int lineNumber; // Of the command's last line
+
+		public Command(String name, String sequenceID, String sequence,
+				int lineNumber) {
+			this(name, sequenceID, sequence, null, lineNumber);
+		}
+
+		public Command(String name, String sequenceID, String sequence,
+				SequenceWriter sequenceWriter, int lineNumber) {
+			this.name = name;
+			this.sequenceID = sequenceID;
+			this.sequence = sequence;
+			this.sequenceWriter = sequenceWriter;
+			this.lineNumber = lineNumber;
+		}
+	} /* end Command */
+
+	/**
+	 * A search run on a pool thread: it only looks up where the sequence is
+	 * stored, and the printer reads it
+	 * 
+	 * @author loganlinn
+	 * 
+	 */
+	private static class Search implements Callable<MemoryHandle> {
+		private final HashTable hashTable;
+		private final String sequenceID;
+		private Future<MemoryHandle> result; // Set once submitted
+
+		public Search(HashTable hashTable, String sequenceID) {
+			this.hashTable = hashTable;
+			this.sequenceID = sequenceID;
+		}
+
+		public MemoryHandle call() throws IOException {
+			return hashTable.findSequence(sequenceID);
+		}
+	} /* end Search */
+
 }
@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Incrementally compacts the sequence file by sliding live blocks towards the
+ * start of the file and cutting off the free space left at the end.
+ *
+ * The compactor works in slices so it can run between commands without
+ * stalling them: each call to {@link #runSlice()} moves at most sliceBytes of
+ * data (but always at least one block).
+ *
+ * To know which slot refers to a block, the compactor listens to every slot
+ * change in the HashTable and keeps a map of live blocks by offset. That map
+ * is first filled by scanning the hash file, a bounded number of slots per
+ * slice; no blocks are moved until the scan is done.
+ *
+ * Space that is neither free nor referenced by a slot is given back to the
+ * allocator when the compactor reaches it.
+ *
+ * Moving a block overwrites space that the hash file on disk may still refer
+ * to, until the slot's new offset is flushed. So with a write-ahead log, the
+ * entry of every block a slice moves is logged, packed, and synced before
+ * anything is moved; after a crash, replay puts the entry back from the
+ * log, wherever its blocks were left.
+ *
+ * Only works with a {@link FreeSpaceIndex}, and not when blocks are shared
+ * by several slots (deduplication).
+ *
+ * @author loganlinn
+ *
+ */
+public class Compactor implements SlotListener {
+	public static final int DEFAULT_SLICE_BYTES = 1 << 16;
+	private static final int SCAN_SLOTS_PER_SLICE = 4096;
+
+	private final HashTable hashTable;
+	private final MemoryManager memoryManager;
+	private final FreeSpaceIndex freeSpace;
+	private final int sliceBytes;
+	private WriteAheadLog log; // Told about every moved entry if set
+
+	private final TreeMap<Integer, BlockRef> liveBlocks = new TreeMap<Integer, BlockRef>();
+	private int scanSlot = 0; // Next slot for the initial scan
+
+	private long bytesMoved = 0;
+	private long bytesReclaimed = 0;
+
+	/**
+	 * Constructs a compactor and registers it with the hash table
+	 *
+	 * @param hashTable
+	 * @param memoryManager
+	 * @param sliceBytes
+	 *            bytes of data moved per slice at most
+	 */
+	public Compactor(HashTable hashTable, MemoryManager memoryManager,
+			int sliceBytes) {
+		if (!(memoryManager.getAllocator() instanceof FreeSpaceIndex)) {
+			throw new IllegalArgumentException(
+					"Compaction needs a FreeSpaceIndex allocator");
+		}
+		if (memoryManager.isDeduplicating()) {
+			throw new IllegalArgumentException(
+					"Compaction can not move blocks shared by several slots");
+		}
+		this.hashTable = hashTable;
+		this.memoryManager = memoryManager;
+		this.freeSpace = (FreeSpaceIndex) memoryManager.getAllocator();
+		this.sliceBytes = sliceBytes;
+		hashTable.setSlotListener(this);
+	}
+
+	/**
+	 * @param log
+	 *            every entry is logged before its blocks are moved, or null
+	 */
+	public void setWriteAheadLog(WriteAheadLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Does one bounded step of compaction
+	 *
+	 * @return bytes of data moved
+	 * @throws IOException
+	 */
+	public int runSlice() throws IOException {
+		if (scanSlot < hashTable.slotCount()) {
+			scan();
+			return 0;
+		}
+
+		// Plan the slice first, so the entries can be logged before any of
+		// the blocks they refer to are overwritten
+		List<Move> moves = new ArrayList<Move>();
+		int cutAt = -1;
+		int moved = 0;
+		while (moved < sliceBytes) {
+			int[] free = freeSpace.firstBlock();
+			if (free == null) {
+				break; // Nothing to compact
+			}
+			int freeEnd = free[0] + free[1];
+			Map.Entry<Integer, BlockRef> next = liveBlocks
+					.ceilingEntry(free[0]);
+
+			if (next == null) {
+				// Only free (or unreferenced) space is left; cut it off
+				int end = memoryManager.getFileLength();
+				releaseUnreferenced(freeEnd, end);
+				freeSpace.allocateAt(free[0], Math.max(end, freeEnd)
+						- free[0]);
+				cutAt = free[0];
+				bytesReclaimed += end - free[0];
+				break;
+			}
+
+			int blockOffset = next.getKey();
+			if (blockOffset > freeEnd) {
+				// Nothing refers to the space between; free it and retry
+				releaseUnreferenced(freeEnd, blockOffset);
+				continue;
+			}
+
+			BlockRef block = next.getValue();
+			freeSpace.releaseBlock(blockOffset, block.size);
+			freeSpace.allocateAt(free[0], block.size);
+			// Put back at its new offset by the listener, once relocated
+			liveBlocks.remove(blockOffset);
+			moves.add(new Move(block, blockOffset, free[0]));
+			moved += block.size;
+		}
+
+		if (log != null && !moves.isEmpty()) {
+			Set<Integer> logged = new HashSet<Integer>();
+			for (Move move : moves) {
+				int slot = move.block.slot;
+				if (logged.add(slot)) {
+					log.logMove(hashTable.retrieveSequenceID(slot),
+							memoryManager, new MemoryHandle(hashTable
+									.getSequenceOffset(slot), hashTable
+									.getSequenceLength(slot)));
+				}
+			}
+			log.commit();
+		}
+		for (Move move : moves) {
+			memoryManager.moveBlock(move.from, move.to, move.block.size);
+			// The listener callbacks put the entry back in liveBlocks
+			hashTable.relocateHandle(move.block.slot, move.block.field,
+					move.to);
+		}
+		if (cutAt >= 0) {
+			memoryManager.truncate(cutAt);
+		}
+		bytesMoved += moved;
+		return moved;
+	}
+
+	/**
+	 * Frees the parts of [from, to) that are not already free. Nothing in the
+	 * range may be referenced by a slot.
+	 *
+	 * @param from
+	 * @param to
+	 */
+	private void releaseUnreferenced(int from, int to) {
+		while (from < to) {
+			int[] free = freeSpace.blockAtOrAfter(from);
+			int gapEnd = (free == null) ? to : Math.min(to, free[0]);
+			if (gapEnd > from) {
+				freeSpace.releaseBlock(from, gapEnd - from);
+			}
+			if (free == null) {
+				break;
+			}
+			from = free[0] + free[1];
+		}
+	}
+
+	/**
+	 * Adds the blocks of the next range of slots to the live block map
+	 *
+	 * @throws IOException
+	 */
+	private void scan() throws IOException {
+		int end = Math.min(hashTable.slotCount(), scanSlot
+				+ SCAN_SLOTS_PER_SLICE);
+		for (; scanSlot < end; scanSlot++) {
+			if (!hashTable.isSlotAvailable(scanSlot)) {
+				slotFilled(scanSlot, hashTable.getSequenceIdOffset(scanSlot),
+						hashTable.getSequenceIdLength(scanSlot),
+						hashTable.getSequenceOffset(scanSlot),
+						hashTable.getSequenceLength(scanSlot));
+			}
+		}
+	}
+
+	public void slotCleared(int slot, int sequenceIdOffset,
+			int sequenceIdLength, int sequenceOffset, int sequenceLength) {
+		forget(slot, sequenceIdOffset);
+		forget(slot, sequenceOffset);
+	}
+
+	/**
+	 * Drops a block from the live block map, unless another slot has taken it
+	 * over already (entries are copied to their new slot before the old slot
+	 * is cleared)
+	 *
+	 * @param slot
+	 * @param offset
+	 */
+	private void forget(int slot, int offset) {
+		BlockRef block = liveBlocks.get(offset);
+		if (block != null && block.slot == slot) {
+			liveBlocks.remove(offset);
+		}
+	}
+
+	public void slotFilled(int slot, int sequenceIdOffset,
+			int sequenceIdLength, int sequenceOffset, int sequenceLength) {
+		liveBlocks.put(sequenceIdOffset, new BlockRef(slot,
+				HashTable.ID_POS_OFFSET, MemoryManager
+						.getEncodedSequenceLength(sequenceIdLength)));
+		liveBlocks.put(sequenceOffset, new BlockRef(slot,
+				HashTable.SEQ_POS_OFFSET, MemoryManager
+						.getEncodedSequenceLength(sequenceLength)));
+	}
+
+	/**
+	 * @return total bytes of data moved
+	 */
+	public long getBytesMoved() {
+		return bytesMoved;
+	}
+
+	/**
+	 * @return total bytes cut off the end of the sequence file
+	 */
+	public long getBytesReclaimed() {
+		return bytesReclaimed;
+	}
+
+	public String toString() {
+		return "Compactor: moved " + bytesMoved + " bytes, reclaimed "
+				+ bytesReclaimed + " bytes";
+	}
+
+	/**
+	 * A block of the sequence file and the slot handle pointing at it
+	 *
+	 * @author loganlinn
+	 *
+	 */
+	private static class BlockRef {
+		private final int slot;
+		private final int field; // ID_POS_OFFSET or SEQ_POS_OFFSET
+		private final int size; // in bytes
+
+		public BlockRef(int slot, int field, int size) {
+			this.slot = slot;
+			this.field = field;
+			this.size = size;
+		}
+	} /* end BlockRef */
+
+	/**
+	 * A block planned to be moved in the current slice
+	 *
+	 * @author loganlinn
+	 *
+	 */
+	private static class Move {
+		private final BlockRef block;
+		private final int from;
+		private final int to;
+
+		public Move(BlockRef block, int from, int to) {
+			this.block = block;
+			this.from = from;
+			this.to = to;
+		}
+	} /* end Move */
+}
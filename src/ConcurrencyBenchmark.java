@@ -0,0 +1,179 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures how lookups on a ConcurrentHashTable scale with the number of
+ * threads.
+ *
+ * For each bucket store and thread count, a fresh table is half filled with
+ * random IDs. Then every thread looks up random stored IDs, and in the mixed
+ * workload one operation in ten inserts a new ID instead. The throughput of
+ * all threads together is reported.
+ *
+ * == RUNNING ==
+ *
+ * ConcurrencyBenchmark [hash-table-size] [operations-per-thread]
+ *
+ * @author loganlinn
+ *
+ */
+public class ConcurrencyBenchmark {
+	private static final int DEFAULT_TABLE_SIZE = 1 << 18;
+	private static final int DEFAULT_OPERATIONS = 200000;
+	private static final float FILL = 0.5f;
+	private static final int SEQUENCE_LENGTH = 100;
+	private static final int INSERT_EVERY = 10; // operations, when mixed
+
+	public static void main(String[] args) throws Exception {
+		int tableSize = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_TABLE_SIZE;
+		int operations = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_OPERATIONS;
+		int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+
+		System.out.println("store   workload  threads  ops/ms  speedup");
+		for (String store : new String[] { "mapped", "pool" }) {
+			for (boolean mixed : new boolean[] { false, true }) {
+				double single = 0;
+				for (int threads = 1; threads <= maxThreads; threads *= 2) {
+					double rate = run(store, mixed, threads, tableSize,
+							operations);
+					if (threads == 1) {
+						single = rate;
+					}
+					System.out.printf("%-6s  %-8s  %7d  %6.0f  %6.2fx%n",
+							store, mixed ? "mixed" : "search", threads, rate,
+							rate / single);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills a fresh table and runs the workload on it
+	 *
+	 * @return operations per millisecond
+	 */
+	private static double run(String store, boolean mixed, int threads,
+			int tableSize, final int operations) throws Exception {
+		File hashFile = File.createTempFile("bench", ".hash");
+		File memoryFile = File.createTempFile("bench", ".mem");
+		hashFile.deleteOnExit();
+		memoryFile.deleteOnExit();
+
+		final MemoryManager memoryManager = new MemoryManager(memoryFile
+				.getPath(), true);
+		int numBuckets = (tableSize + HashTable.BUCKET_SIZE - 1)
+				/ HashTable.BUCKET_SIZE;
+		BucketStore bucketStore;
+		if ("mapped".equals(store)) {
+			bucketStore = new MappedBucketStore(hashFile.getPath(),
+					HashTable.SLOTS_IN_BUCKET);
+		} else {
+			// Room for every bucket, so only the locking is measured
+			bucketStore = new BufferPoolBucketStore(hashFile.getPath(),
+					HashTable.SLOTS_IN_BUCKET, numBuckets,
+					BufferPoolBucketStore.EvictionPolicy.CLOCK);
+		}
+		final ConcurrentHashTable hashTable = new ConcurrentHashTable(
+				tableSize, memoryManager, bucketStore, new PackedDnaHasher());
+
+		Random random = new Random(3114);
+		final List<String> stored = new ArrayList<String>();
+		Set<String> used = new HashSet<String>();
+		while (stored.size() < FILL * tableSize) {
+			String id = newId(random, used);
+			if (insert(hashTable, memoryManager, id, random)) {
+				stored.add(id);
+			}
+		}
+
+		final boolean insertSome = mixed;
+		Thread[] workers = new Thread[threads];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			workers[t] = new Thread() {
+				public void run() {
+					Random random = new Random(seed);
+					Set<String> used = new HashSet<String>();
+					try {
+						for (int i = 1; i <= operations; i++) {
+							if (insertSome && i % INSERT_EVERY == 0) {
+								// An ID another thread made too is rejected
+								insert(hashTable, memoryManager, newId(random,
+										used), random);
+							} else if (hashTable.getSequence(stored.get(random
+									.nextInt(stored.size()))) == null) {
+								throw new IllegalStateException(
+										"Stored ID not found");
+							}
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+
+		hashTable.close();
+		memoryManager.close();
+		hashFile.delete();
+		memoryFile.delete();
+		return (double) threads * operations / (elapsed / 1e6);
+	}
+
+	/**
+	 * Stores a random sequence under an ID
+	 *
+	 * @return false if the ID was rejected
+	 */
+	private static boolean insert(HashTable hashTable,
+			MemoryManager memoryManager, String id, Random random)
+			throws IOException {
+		char[] bases = new char[SEQUENCE_LENGTH];
+		for (int i = 0; i < bases.length; i++) {
+			bases[i] = "ACGT".charAt(random.nextInt(4));
+		}
+		MemoryHandle idHandle = memoryManager.storeSequence(id);
+		MemoryHandle sequenceHandle = memoryManager.storeSequence(new String(
+				bases));
+		try {
+			hashTable.insert(id, idHandle, sequenceHandle);
+			return true;
+		} catch (HashTableFullException e) {
+		} catch (DuplicateSequenceException e) {
+		}
+		memoryManager.releaseSequence(idHandle);
+		memoryManager.releaseSequence(sequenceHandle);
+		return false;
+	}
+
+	private static String newId(Random random, Set<String> used) {
+		String id;
+		do {
+			char[] bases = new char[8 + random.nextInt(9)];
+			for (int i = 0; i < bases.length; i++) {
+				bases[i] = "ACGT".charAt(random.nextInt(4));
+			}
+			id = new String(bases);
+		} while (!used.add(id));
+		return id;
+	}
+}
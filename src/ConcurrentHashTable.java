@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A HashTable that may be used from several threads at once.
+ *
+ * Buckets are guarded by a fixed number of read/write locks (stripes), the
+ * home bucket of a sequence ID picking the stripe. Lookups take the stripe's
+ * read lock, so any number of them run in parallel; inserts and removes take
+ * its write lock, so a writer only waits for operations on buckets of the
+ * same stripe.
+ *
+ * Whatever changes the layout of the table or walks all of it (reorganize,
+ * print, findContaining, findWithPrefix, findInRange, relocateHandle, flush,
+ * close, the setters) holds a table-wide write lock, and every other
+ * operation holds its read lock. A table that grows or chains overflow
+ * pages can move entries between buckets on any insert or remove, so there
+ * inserts and removes take the table-wide write lock too, and only lookups
+ * run in parallel.
+ *
+ * While a slot listener is set, inserts and removes also take the
+ * table-wide write lock, so the listener is called by one thread at a time
+ * and sees every change in order, whatever the layout. A Compactor can then
+ * be used, as long as its slices run when no other operation does (as
+ * CommandFile runs them, between commands).
+ *
+ * The bucket store and the memory manager must allow access from several
+ * threads, as both stores and the MemoryManager do. search and remove
+ * print as usual; {@link #getSequence(String)} and
+ * {@link #findSequence(String)} look a sequence up without printing.
+ *
+ * @author loganlinn
+ *
+ */
+public class ConcurrentHashTable extends HashTable {
+	public static final int DEFAULT_NUM_STRIPES = 64;
+
+	private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+	private final ReentrantReadWriteLock[] stripes;
+	private boolean listening = false; // Changed under the table write lock
+
+	/**
+	 * Constructs a table on top of an empty bucket store
+	 *
+	 * @param numSlots
+	 * @param sequenceFileMemoryManager
+	 * @param bucketStore
+	 * @param hasher
+	 * @throws IOException
+	 */
+	public ConcurrentHashTable(int numSlots,
+			MemoryManager sequenceFileMemoryManager, BucketStore bucketStore,
+			SequenceHasher hasher) throws IOException {
+		this(numSlots, sequenceFileMemoryManager, bucketStore, hasher,
+				DEFAULT_NUM_STRIPES);
+	}
+
+	/**
+	 * Constructs a table on top of an empty bucket store
+	 *
+	 * @param numSlots
+	 * @param sequenceFileMemoryManager
+	 * @param bucketStore
+	 * @param hasher
+	 * @param numStripes
+	 *            number of bucket locks
+	 * @throws IOException
+	 */
+	public ConcurrentHashTable(int numSlots,
+			MemoryManager sequenceFileMemoryManager, BucketStore bucketStore,
+			SequenceHasher hasher, int numStripes) throws IOException {
+		super(numSlots, sequenceFileMemoryManager, bucketStore, hasher);
+		stripes = newStripes(numStripes);
+	}
+
+	/**
+	 * Opens the table stored in a bucket store that was opened with its
+	 * contents kept
+	 *
+	 * @param sequenceFileMemoryManager
+	 * @param bucketStore
+	 * @throws IOException
+	 */
+	public ConcurrentHashTable(MemoryManager sequenceFileMemoryManager,
+			BucketStore bucketStore) throws IOException {
+		this(sequenceFileMemoryManager, bucketStore, DEFAULT_NUM_STRIPES);
+	}
+
+	/**
+	 * Opens the table stored in a bucket store that was opened with its
+	 * contents kept
+	 *
+	 * @param sequenceFileMemoryManager
+	 * @param bucketStore
+	 * @param numStripes
+	 *            number of bucket locks
+	 * @throws IOException
+	 */
+	public ConcurrentHashTable(MemoryManager sequenceFileMemoryManager,
+			BucketStore bucketStore, int numStripes) throws IOException {
+		super(sequenceFileMemoryManager, bucketStore);
+		stripes = newStripes(numStripes);
+	}
+
+	private static ReentrantReadWriteLock[] newStripes(int numStripes) {
+		if (numStripes < 1) {
+			throw new IllegalArgumentException("Need at least one stripe: "
+					+ numStripes);
+		}
+		ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+		return stripes;
+	}
+
+	/**
+	 * Locks the home bucket of a sequence ID
+	 *
+	 * @param sequenceID
+	 * @param write
+	 *            true to change the bucket
+	 * @return the lock to pass to unlock
+	 */
+	private Lock lock(String sequenceID, boolean write) {
+		tableLock.readLock().lock();
+		// The settings only change under the table-wide write lock, so they
+		// can not change between this check and taking the stripe lock
+		if (write && (!isLayoutFixed() || listening)) {
+			tableLock.readLock().unlock();
+			Lock lock = tableLock.writeLock();
+			lock.lock();
+			return lock;
+		}
+		// The page of a bucket only changes under the table-wide write lock
+		ReentrantReadWriteLock stripe = stripes[(homeSlot(sequenceID) / BUCKET_SIZE)
+				% stripes.length];
+		Lock lock = write ? stripe.writeLock() : stripe.readLock();
+		lock.lock();
+		return lock;
+	}
+
+	/**
+	 * Releases a lock taken by lock
+	 *
+	 * @param lock
+	 */
+	private void unlock(Lock lock) {
+		lock.unlock();
+		if (lock != tableLock.writeLock()) {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	public void insert(String sequenceID, MemoryHandle sequenceIdHandle,
+			MemoryHandle sequenceHandle) throws HashTableFullException,
+			DuplicateSequenceException, IOException {
+		Lock lock = lock(sequenceID, true);
+		try {
+			super.insert(sequenceID, sequenceIdHandle, sequenceHandle);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	public void remove(String sequenceID, PrintStream out)
+			throws SequenceNotFoundException, IOException {
+		Lock lock = lock(sequenceID, true);
+		try {
+			super.remove(sequenceID, out);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	public void search(String sequenceID, PrintStream out)
+			throws SequenceNotFoundException, IOException {
+		Lock lock = lock(sequenceID, false);
+		try {
+			super.search(sequenceID, out);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	public MemoryHandle findSequence(String sequenceID) throws IOException {
+		Lock lock = lock(sequenceID, false);
+		try {
+			return super.findSequence(sequenceID);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	public String getSequence(String sequenceID) throws IOException {
+		Lock lock = lock(sequenceID, false);
+		try {
+			return super.getSequence(sequenceID);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	public List<String> findContaining(String pattern)
+			throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			return super.findContaining(pattern);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public List<String> findWithPrefix(String prefix)
+			throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			return super.findWithPrefix(prefix);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public List<String> findInRange(String from, String to)
+			throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			return super.findInRange(from, to);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public int reorganize() throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			return super.reorganize();
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void print(PrintStream out) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.print(out);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void flush() throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.flush();
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.close();
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setMaxLoadFactor(float maxLoadFactor) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.setMaxLoadFactor(maxLoadFactor);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setOverflow(boolean overflow) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.setOverflow(overflow);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setRobinHood(boolean robinHood) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.setRobinHood(robinHood);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setDeduplicating(boolean deduplicating) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.setDeduplicating(deduplicating);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setKmerIndex(KmerIndex kmerIndex) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.setKmerIndex(kmerIndex);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setIdIndex(IdIndex idIndex) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.setIdIndex(idIndex);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setTombstoneRatio(float tombstoneRatio) {
+		tableLock.writeLock().lock();
+		try {
+			super.setTombstoneRatio(tombstoneRatio);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void setSlotListener(SlotListener slotListener) {
+		tableLock.writeLock().lock();
+		try {
+			super.setSlotListener(slotListener);
+			listening = slotListener != null;
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public void relocateHandle(int slot, int field, int newOffset)
+			throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			super.relocateHandle(slot, field, newOffset);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	public String toString() {
+		return super.toString() + " [" + stripes.length + " stripes]";
+	}
+}
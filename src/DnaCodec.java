@@ -0,0 +1,206 @@
+import java.util.Arrays;
+
+/**
+ * Table driven 2-bit packing of DNA sequences.
+ * 
+ * Each byte holds 4 bases. The first base is in the lowest 2 bits, so a byte
+ * is read from least to most significant bits. A = 00, C = 01, G = 10,
+ * T = 11. A final partial byte has its unused high bits set to 0.
+ * 
+ * None of the methods allocate; the caller supplies the buffers.
+ * 
+ * @author loganlinn
+ * 
+ */
+public final class DnaCodec {
+	public static final int BASES_PER_BYTE = 4;
+
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	/**
+	 * Base character to its 2 bit code. Unknown characters encode as A.
+	 */
+	private static final byte[] ENCODE_TABLE = new byte[128];
+
+	/**
+	 * Base character to its 2 bit code, and anything but A, C, G and T in
+	 * upper case to NOT_A_BASE, which is still set once shifted and or'ed
+	 * into a byte.
+	 */
+	private static final int[] EXACT_ENCODE_TABLE = new int[128];
+	private static final int NOT_A_BASE = 0x100;
+
+	/**
+	 * Byte value to its 4 bases, 4 entries per byte value
+	 */
+	private static final char[] DECODE_TABLE = new char[256 * BASES_PER_BYTE];
+
+	static {
+		Arrays.fill(EXACT_ENCODE_TABLE, NOT_A_BASE);
+		for (int i = 0; i < BASES.length; i++) {
+			EXACT_ENCODE_TABLE[BASES[i]] = i;
+			ENCODE_TABLE[BASES[i]] = (byte) i;
+			ENCODE_TABLE[Character.toLowerCase(BASES[i])] = (byte) i;
+		}
+		for (int b = 0; b < 256; b++) {
+			for (int i = 0; i < BASES_PER_BYTE; i++) {
+				DECODE_TABLE[b * BASES_PER_BYTE + i] = BASES[(b >> (2 * i)) & 0x3];
+			}
+		}
+	}
+
+	private DnaCodec() {
+	}
+
+	/**
+	 * Gets the number of bytes needed to hold a number of bases
+	 * 
+	 * @param length
+	 *            in bases
+	 * @return
+	 */
+	public static int encodedLength(int length) {
+		return (length + BASES_PER_BYTE - 1) >> 2;
+	}
+
+	/**
+	 * Returns the 2 bit code of a base
+	 * 
+	 * @param base
+	 * @return
+	 */
+	public static int code(char base) {
+		return base < ENCODE_TABLE.length ? ENCODE_TABLE[base] : 0;
+	}
+
+	/**
+	 * Packs length bases into encodedLength(length) bytes
+	 * 
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 *            number of bases
+	 * @param dst
+	 * @param dstOffset
+	 */
+	public static void encode(char[] src, int srcOffset, int length,
+			byte[] dst, int dstOffset) {
+		int end = srcOffset + (length & ~0x3);
+		while (srcOffset < end) {
+			dst[dstOffset++] = (byte) (code(src[srcOffset])
+					| (code(src[srcOffset + 1]) << 2)
+					| (code(src[srcOffset + 2]) << 4)
+					| (code(src[srcOffset + 3]) << 6));
+			srcOffset += BASES_PER_BYTE;
+		}
+		int remaining = length & 0x3;
+		if (remaining != 0) {
+			int b = 0;
+			for (int i = 0; i < remaining; i++) {
+				b |= code(src[srcOffset + i]) << (2 * i);
+			}
+			dst[dstOffset] = (byte) b;
+		}
+	}
+
+	/**
+	 * Packs length bases of a CharSequence into encodedLength(length) bytes
+	 * 
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 *            number of bases
+	 * @param dst
+	 * @param dstOffset
+	 */
+	public static void encode(CharSequence src, int srcOffset, int length,
+			byte[] dst, int dstOffset) {
+		int end = srcOffset + (length & ~0x3);
+		while (srcOffset < end) {
+			dst[dstOffset++] = (byte) (code(src.charAt(srcOffset))
+					| (code(src.charAt(srcOffset + 1)) << 2)
+					| (code(src.charAt(srcOffset + 2)) << 4)
+					| (code(src.charAt(srcOffset + 3)) << 6));
+			srcOffset += BASES_PER_BYTE;
+		}
+		int remaining = length & 0x3;
+		if (remaining != 0) {
+			int b = 0;
+			for (int i = 0; i < remaining; i++) {
+				b |= code(src.charAt(srcOffset + i)) << (2 * i);
+			}
+			dst[dstOffset] = (byte) b;
+		}
+	}
+
+	/**
+	 * Packs length bases like encode, if they are all A, C, G or T in upper
+	 * case: exactly the sequences that decode to themselves. One check per
+	 * byte finds any other character.
+	 * 
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 *            number of bases
+	 * @param dst
+	 * @param dstOffset
+	 * @return false, with dst partly written, if a character is not a base
+	 */
+	public static boolean encodeExact(CharSequence src, int srcOffset,
+			int length, byte[] dst, int dstOffset) {
+		int end = srcOffset + (length & ~0x3);
+		while (srcOffset < end) {
+			int b = exactCode(src.charAt(srcOffset))
+					| (exactCode(src.charAt(srcOffset + 1)) << 2)
+					| (exactCode(src.charAt(srcOffset + 2)) << 4)
+					| (exactCode(src.charAt(srcOffset + 3)) << 6);
+			if (b >= NOT_A_BASE) {
+				return false;
+			}
+			dst[dstOffset++] = (byte) b;
+			srcOffset += BASES_PER_BYTE;
+		}
+		int remaining = length & 0x3;
+		if (remaining != 0) {
+			int b = 0;
+			for (int i = 0; i < remaining; i++) {
+				b |= exactCode(src.charAt(srcOffset + i)) << (2 * i);
+			}
+			if (b >= NOT_A_BASE) {
+				return false;
+			}
+			dst[dstOffset] = (byte) b;
+		}
+		return true;
+	}
+
+	private static int exactCode(char base) {
+		return base < EXACT_ENCODE_TABLE.length ? EXACT_ENCODE_TABLE[base]
+				: NOT_A_BASE;
+	}
+
+	/**
+	 * Unpacks length bases starting at the first base of src[srcOffset]
+	 * 
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 *            number of bases
+	 * @param dst
+	 * @param dstOffset
+	 */
+	public static void decode(byte[] src, int srcOffset, int length,
+			char[] dst, int dstOffset) {
+		int fullBytes = length >> 2;
+		for (int i = 0; i < fullBytes; i++) {
+			System.arraycopy(DECODE_TABLE, (src[srcOffset + i] & 0xFF)
+					* BASES_PER_BYTE, dst, dstOffset, BASES_PER_BYTE);
+			dstOffset += BASES_PER_BYTE;
+		}
+		int remaining = length & 0x3;
+		if (remaining != 0) {
+			System.arraycopy(DECODE_TABLE, (src[srcOffset + fullBytes] & 0xFF)
+					* BASES_PER_BYTE, dst, dstOffset, remaining);
+		}
+	}
+}
@@ -0,0 +1,500 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of the free blocks of the sequence file.
+ *
+ * Free blocks are kept in a balanced search tree (a treap) ordered by offset.
+ * Every node also knows the largest block size in its subtree, so both
+ * finding the neighbours of a released block and finding the first block
+ * that is big enough take O(log n) instead of a walk of the whole list.
+ *
+ * For best fit, a second tree orders the blocks by size (then offset).
+ *
+ * Adjacent free blocks are always merged, so no two blocks in the index
+ * touch.
+ *
+ * @author loganlinn
+ *
+ */
+public class FreeSpaceIndex implements BlockAllocator {
+
+	/**
+	 * Which free block an allocation is taken from
+	 */
+	public enum FitPolicy {
+		/**
+		 * The block with the lowest offset that is big enough
+		 */
+		FIRST_FIT,
+		/**
+		 * The smallest block that is big enough, lowest offset on ties
+		 */
+		BEST_FIT
+	}
+
+	private final FitPolicy policy;
+	private final Random priorities = new Random(3114);
+	private Node root = null; // Offset ordered tree
+	private final TreeSet<Node> bySize; // Size ordered, only for best fit
+	private int numBlocks = 0;
+
+	/**
+	 * Constructs an empty index
+	 *
+	 * @param policy
+	 */
+	public FreeSpaceIndex(FitPolicy policy) {
+		this.policy = policy;
+		bySize = (policy == FitPolicy.BEST_FIT) ? new TreeSet<Node>() : null;
+	}
+
+	/**
+	 * Marks a block as free, merging it with the free blocks immediately
+	 * before and after it.
+	 *
+	 * Release Scenarios:
+	 *
+	 * -- There is a free block immediately before the released block ->
+	 * increase size of free block
+	 *
+	 * -- There is a free block immediately after -> it grows to start at the
+	 * released offset
+	 *
+	 * -- Both -> the two are merged with the released block into one
+	 *
+	 * -- Neither -> a new free block is added
+	 *
+	 * @param offset
+	 * @param size
+	 *            in bytes
+	 */
+	public void releaseBlock(int offset, int size) {
+		if (size <= 0) {
+			return;
+		}
+		int end = offset + size;
+		Node prev = floor(offset);
+		Node next = ceiling(end);
+		if (prev != null && prev.end() != offset) {
+			prev = null;
+		}
+		if (next != null && next.offset != end) {
+			next = null;
+		}
+
+		if (prev != null) {
+			remove(prev);
+			offset = prev.offset;
+			size += prev.size;
+		}
+		if (next != null) {
+			remove(next);
+			size += next.size;
+		}
+		insert(offset, size);
+	}
+
+	/**
+	 * Allocates space for an encoded sequence, given its size in bytes.
+	 *
+	 * -- If a free block has the exact size, it is removed
+	 *
+	 * -- If a free block is larger, the front of it is taken
+	 *
+	 * -- If no free block is large enough, the space goes at the end of the
+	 * file. If the last free block runs up to the end of the file, it is used
+	 * as the start of the new space.
+	 *
+	 * @param blockSize
+	 *            in bytes
+	 * @param endOfFile
+	 *            number of bytes in use in the file
+	 * @return the byte offset in the file where the block starts
+	 */
+	public int allocateBlock(int blockSize, int endOfFile) {
+		Node block = (policy == FitPolicy.BEST_FIT) ? bestFit(blockSize)
+				: firstFit(blockSize);
+		if (block != null) {
+			int offset = block.offset;
+			remove(block);
+			if (block.size > blockSize) {
+				insert(offset + blockSize, block.size - blockSize);
+			}
+			return offset;
+		}
+
+		Node last = last();
+		if (last != null && last.end() >= endOfFile) {
+			remove(last); // take this free block
+			return last.offset;
+		}
+		return endOfFile;
+	}
+
+	/**
+	 * Marks [offset, offset+size) as used. The range must lie inside one free
+	 * block.
+	 *
+	 * @param offset
+	 * @param size
+	 *            in bytes
+	 * @return false if the range is not entirely free
+	 */
+	public boolean allocateAt(int offset, int size) {
+		Node block = floor(offset);
+		if (block == null || block.end() < offset + size) {
+			return false;
+		}
+		remove(block);
+		if (block.offset < offset) {
+			insert(block.offset, offset - block.offset);
+		}
+		if (block.end() > offset + size) {
+			insert(offset + size, block.end() - (offset + size));
+		}
+		return true;
+	}
+
+	public void reset(int length) {
+		root = null;
+		if (bySize != null) {
+			bySize.clear();
+		}
+		numBlocks = 0;
+		releaseBlock(0, length);
+	}
+
+	/**
+	 * Writes the number of free blocks, then the offset and size of each in
+	 * offset order
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeInt(numBlocks);
+		save(root, out);
+	}
+
+	private void save(Node node, DataOutput out) throws IOException {
+		if (node == null) {
+			return;
+		}
+		save(node.left, out);
+		out.writeInt(node.offset);
+		out.writeInt(node.size);
+		save(node.right, out);
+	}
+
+	public void load(DataInput in) throws IOException {
+		reset(0);
+		for (int i = in.readInt(); i > 0; i--) {
+			int offset = in.readInt();
+			insert(offset, in.readInt());
+		}
+	}
+
+	/**
+	 * @return the free block with the highest offset, as {offset, size}, or
+	 *         null
+	 */
+	public int[] lastBlock() {
+		Node last = last();
+		return last == null ? null : new int[] { last.offset, last.size };
+	}
+
+	/**
+	 * @param offset
+	 * @return the first free block starting at or after offset, as {offset,
+	 *         size}, or null
+	 */
+	public int[] blockAtOrAfter(int offset) {
+		Node next = ceiling(offset);
+		return next == null ? null : new int[] { next.offset, next.size };
+	}
+
+	/**
+	 * @return the free block with the lowest offset, as {offset, size}, or
+	 *         null
+	 */
+	public int[] firstBlock() {
+		Node first = root;
+		if (first == null) {
+			return null;
+		}
+		while (first.left != null) {
+			first = first.left;
+		}
+		return new int[] { first.offset, first.size };
+	}
+
+	/**
+	 * @return number of free blocks
+	 */
+	public int length() {
+		return numBlocks;
+	}
+
+	/**
+	 * Print the free blocks in offset order
+	 */
+	public void print(PrintStream out) {
+		if (numBlocks == 0) {
+			out.println("Free Block List: none");
+		} else {
+			out.println("Free Block List:");
+			out.println(this);
+		}
+	}
+
+	/**
+	 * One line per free block, in offset order
+	 */
+	public String toString() {
+		StringBuilder out = new StringBuilder(numBlocks * 32);
+		appendInOrder(root, out);
+		return out.toString();
+	}
+
+	private void appendInOrder(Node node, StringBuilder out) {
+		if (node == null) {
+			return;
+		}
+		appendInOrder(node.left, out);
+		if (out.length() > 0) {
+			out.append("\n");
+		}
+		out.append("  ").append(node);
+		appendInOrder(node.right, out);
+	}
+
+	/*
+	 * Searches
+	 */
+
+	/**
+	 * @param offset
+	 * @return the block with the largest offset <= offset
+	 */
+	private Node floor(int offset) {
+		Node node = root, best = null;
+		while (node != null) {
+			if (node.offset <= offset) {
+				best = node;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param offset
+	 * @return the block with the smallest offset >= offset
+	 */
+	private Node ceiling(int offset) {
+		Node node = root, best = null;
+		while (node != null) {
+			if (node.offset >= offset) {
+				best = node;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return best;
+	}
+
+	private Node last() {
+		Node node = root;
+		if (node == null) {
+			return null;
+		}
+		while (node.right != null) {
+			node = node.right;
+		}
+		return node;
+	}
+
+	/**
+	 * Descends towards the leftmost block with size >= blockSize, using the
+	 * subtree maximums to skip subtrees with no big enough block
+	 *
+	 * @param blockSize
+	 * @return
+	 */
+	private Node firstFit(int blockSize) {
+		Node node = root;
+		while (node != null && node.maxSize >= blockSize) {
+			if (node.left != null && node.left.maxSize >= blockSize) {
+				node = node.left;
+			} else if (node.size >= blockSize) {
+				return node;
+			} else {
+				node = node.right;
+			}
+		}
+		return null;
+	}
+
+	private Node bestFit(int blockSize) {
+		return bySize.ceiling(new Node(-1, blockSize, 0));
+	}
+
+	/*
+	 * Treap maintenance
+	 */
+
+	private void insert(int offset, int size) {
+		Node node = new Node(offset, size, priorities.nextInt());
+		root = insert(root, node);
+		if (bySize != null) {
+			bySize.add(node);
+		}
+		numBlocks++;
+	}
+
+	private Node insert(Node subtree, Node node) {
+		if (subtree == null) {
+			return node;
+		}
+		if (node.offset < subtree.offset) {
+			subtree.left = insert(subtree.left, node);
+			if (subtree.left.priority > subtree.priority) {
+				subtree = rotateRight(subtree);
+			}
+		} else {
+			subtree.right = insert(subtree.right, node);
+			if (subtree.right.priority > subtree.priority) {
+				subtree = rotateLeft(subtree);
+			}
+		}
+		subtree.update();
+		return subtree;
+	}
+
+	private void remove(Node node) {
+		root = remove(root, node.offset);
+		if (bySize != null) {
+			bySize.remove(node);
+		}
+		numBlocks--;
+	}
+
+	private Node remove(Node subtree, int offset) {
+		if (subtree == null) {
+			return null;
+		}
+		if (offset < subtree.offset) {
+			subtree.left = remove(subtree.left, offset);
+		} else if (offset > subtree.offset) {
+			subtree.right = remove(subtree.right, offset);
+		} else {
+			// Rotate the node down until it has at most one child
+			if (subtree.left == null) {
+				return subtree.right;
+			} else if (subtree.right == null) {
+				return subtree.left;
+			} else if (subtree.left.priority > subtree.right.priority) {
+				subtree = rotateRight(subtree);
+				subtree.right = remove(subtree.right, offset);
+			} else {
+				subtree = rotateLeft(subtree);
+				subtree.left = remove(subtree.left, offset);
+			}
+		}
+		subtree.update();
+		return subtree;
+	}
+
+	private Node rotateRight(Node node) {
+		Node left = node.left;
+		node.left = left.right;
+		left.right = node;
+		node.update();
+		left.update();
+		return left;
+	}
+
+	private Node rotateLeft(Node node) {
+		Node right = node.right;
+		node.right = right.left;
+		right.left = node;
+		node.update();
+		right.update();
+		return right;
+	}
+
+	/**
+	 * Represents a free area in the file
+	 *
+	 * @author loganlinn
+	 *
+	 */
+	private static class Node implements Comparable<Node> {
+		private final int offset; // location in file
+		private final int size; // block size in bytes
+		private final int priority;
+		private int maxSize; // largest size in this subtree
+		private Node left;
+		private Node right;
+
+		/**
+		 * Constructs a FreeBlock node
+		 *
+		 * @param offset
+		 *            from beginning of file in BYTES
+		 * @param size
+		 *            of block in BYTES
+		 * @param priority
+		 *            treap heap priority
+		 */
+		public Node(int offset, int size, int priority) {
+			this.offset = offset;
+			this.size = size;
+			this.priority = priority;
+			this.maxSize = size;
+		}
+
+		/**
+		 * @return the offset of the end of the free block
+		 */
+		public int end() {
+			return offset + size;
+		}
+
+		/**
+		 * Recomputes the subtree maximum from the children
+		 */
+		public void update() {
+			maxSize = size;
+			if (left != null && left.maxSize > maxSize) {
+				maxSize = left.maxSize;
+			}
+			if (right != null && right.maxSize > maxSize) {
+				maxSize = right.maxSize;
+			}
+		}
+
+		/**
+		 * Orders by size, then offset
+		 */
+		public int compareTo(Node other) {
+			if (size != other.size) {
+				return size < other.size ? -1 : 1;
+			}
+			return offset < other.offset ? -1 : (offset == other.offset ? 0
+					: 1);
+		}
+
+		/**
+		 * Print a message representing this free block
+		 */
+		public String toString() {
+			return "[Offset: " + offset + ", Size:" + size + "]";
+		}
+	} /* end Node */
+}
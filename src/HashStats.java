@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * Reports how well each hash function spreads a set of sequence IDs over a
+ * hash table: how full the buckets get and how many slots an insert probes.
+ *
+ * The IDs are placed in memory the way HashTable places them (probing
+ * forward from the home slot, wrapping within the bucket), so no files are
+ * written.
+ *
+ * The ID file is either a command file, in which case the IDs of the insert
+ * commands are used, or a list of IDs, one per line.
+ *
+ * == RUNNING ==
+ *
+ * HashStats <id-file> <hash-table-size>
+ *
+ * @author loganlinn
+ *
+ */
+public class HashStats {
+	private static final int BUCKET_SIZE = HashTable.BUCKET_SIZE;
+
+	public static void main(String[] args) throws IOException {
+		Set<String> ids = readIds(args[0]);
+		int numSlots = Integer.parseInt(args[1]);
+
+		System.out.println(ids.size() + " IDs, " + numSlots + " slots");
+		report("packed", new PackedDnaHasher(), ids, numSlots);
+		report("sfold", new SfoldHasher(), ids, numSlots);
+	}
+
+	/**
+	 * Places the IDs with one hash function and prints the histograms
+	 *
+	 * @param name
+	 * @param hasher
+	 * @param ids
+	 * @param numSlots
+	 */
+	private static void report(String name, SequenceHasher hasher,
+			Set<String> ids, int numSlots) {
+		int numBuckets = (numSlots + BUCKET_SIZE - 1) / BUCKET_SIZE;
+		boolean[] taken = new boolean[numBuckets * BUCKET_SIZE];
+		int[] bucketCounts = new int[numBuckets];
+		int[] probeHistogram = new int[BUCKET_SIZE + 1];
+		long totalProbes = 0;
+		int placed = 0;
+		int rejected = 0;
+
+		for (String id : ids) {
+			int home = (int) (hasher.hash(id) % numSlots);
+			int slot = home;
+			int probes = 1;
+			while (taken[slot]) {
+				slot = (slot % BUCKET_SIZE == BUCKET_SIZE - 1) ? slot
+						- BUCKET_SIZE + 1 : slot + 1;
+				if (slot == home) {
+					break;
+				}
+				probes++;
+			}
+			if (taken[slot]) {
+				rejected++; // Bucket full
+				continue;
+			}
+			taken[slot] = true;
+			bucketCounts[slot / BUCKET_SIZE]++;
+			probeHistogram[probes]++;
+			totalProbes += probes;
+			placed++;
+		}
+
+		int[] occupancyHistogram = new int[BUCKET_SIZE + 1];
+		for (int count : bucketCounts) {
+			occupancyHistogram[count]++;
+		}
+
+		System.out.println();
+		System.out.println("== " + name + " ==");
+		System.out.println("placed " + placed + ", rejected (bucket full) "
+				+ rejected);
+		System.out.printf("mean probe length %.3f%n", placed == 0 ? 0.0
+				: (double) totalProbes / placed);
+		System.out.println("Bucket occupancy (slots used: buckets)");
+		printHistogram(occupancyHistogram, 0);
+		System.out.println("Probe length (slots probed: inserts)");
+		printHistogram(probeHistogram, 1);
+	}
+
+	/**
+	 * Prints the non-empty entries of a histogram with a bar scaled to the
+	 * largest entry
+	 *
+	 * @param histogram
+	 * @param first
+	 *            first index to print
+	 */
+	private static void printHistogram(int[] histogram, int first) {
+		int max = 1;
+		for (int count : histogram) {
+			max = Math.max(max, count);
+		}
+		for (int i = first; i < histogram.length; i++) {
+			if (histogram[i] == 0) {
+				continue;
+			}
+			StringBuilder bar = new StringBuilder();
+			for (int j = (int) ((long) histogram[i] * 50 / max); j > 0; j--) {
+				bar.append('#');
+			}
+			System.out.printf("  %2d: %8d %s%n", i, histogram[i], bar);
+		}
+	}
+
+	/**
+	 * Reads the distinct IDs of a command file or an ID list
+	 *
+	 * @param fileName
+	 * @return the IDs in the order first seen
+	 * @throws IOException
+	 */
+	private static Set<String> readIds(String fileName) throws IOException {
+		Set<String> ids = new LinkedHashSet<String>();
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				StringTokenizer tokens = new StringTokenizer(line);
+				if (line.startsWith("#") || !tokens.hasMoreTokens()) {
+					continue;
+				}
+				String first = tokens.nextToken();
+				if ("insert".equals(first)) {
+					ids.add(tokens.nextToken());
+					br.readLine(); // the sequence
+				} else if (!"remove".equals(first) && !"search".equals(first)
+						&& !"print".equals(first)) {
+					ids.add(first);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return ids;
+	}
+}
@@ -1,5 +1,18 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Each slot of the hash table stores two memory handles: One memory handle is
@@ -8,8 +21,52 @@ import java.io.RandomAccessFile;
  * Memory handles are two 4-byte integers: First is the position in the file of
  * the associated string, the 2nd is the length (in characters) of the string
  * 
- * Each bucket holds 512 bytes; This is 32 table slots since each slot stores
- * two memory handles. (a memory handle is 8-bytes in total)
+ * After the handles, each slot stores a 3-byte fingerprint of the sequence
+ * ID, and in the high byte the position of the ID's home slot within the
+ * bucket. Probes compare fingerprints before reading any ID from the memory
+ * file.
+ * 
+ * Each bucket holds 656 bytes; A 16-byte header, then 32 table slots of two
+ * memory handles and a fingerprint (20 bytes each). The header starts with
+ * counts of the bucket's tombstones and live entries. Once enough of a
+ * bucket's slots are tombstones, its live entries are packed back towards
+ * their home slots and the tombstones become empty slots again, so misses
+ * stop early.
+ * 
+ * Optionally, entries are placed by Robin Hood hashing: an insert takes the
+ * slot of any entry that is closer to its home slot than the new entry is,
+ * and moves that entry on instead. This evens out probe lengths, lets a miss
+ * stop as soon as it passes an entry closer to home, and lets removes shift
+ * the following entries back instead of leaving tombstones.
+ * 
+ * The table can grow by linear hashing: once the load factor passes a
+ * threshold, the next bucket in order is split in two, its entries divided
+ * between it and a new bucket at the end of the file. A sequence ID's home
+ * slot is its hash modulo S*2^level, or modulo S*2^(level+1) if its bucket
+ * has already been split this round (S is the number of slots the table
+ * started with). Since S is a whole number of buckets, an entry either stays
+ * in its bucket or moves to the same position in the new bucket. An insert
+ * splits at most one bucket; if its home bucket is full and not split yet,
+ * the entry goes to an overflow page, which is emptied when the split
+ * reaches the bucket.
+ * 
+ * Optionally, a bucket that is full links to a chain of overflow buckets
+ * (pages) instead of rejecting inserts. The rest of the header holds the
+ * first overflow page and the number of entries in the chain, so the chain
+ * is only read when it holds something. Overflow pages share the hash file
+ * with the buckets: a bucket's page number is its number plus the number of
+ * overflow pages that were allocated before it was created. Those counts
+ * are kept as "spares", one for each run of buckets created in between
+ * overflow allocations. Slot numbers are page * 32 + position. Overflow
+ * pages are marked by a chain count of -1.
+ * 
+ * The hash file's header holds the table's parameters, so an existing table
+ * can be reopened. On a clean close, the state that is not in the buckets
+ * (the memory file's free blocks and the spares) is written to pages past the
+ * last bucket, and the header is marked clean. Reopening a clean file reads
+ * that back; after an unclean shutdown it is rebuilt by one pass over the
+ * hash file instead. When entries share blocks, the references to each
+ * block are counted again on every reopen.
  * 
  * @author loganlinn
  * 
@@ -21,9 +78,11 @@ public class HashTable {
 													// in the hash table
 
 	protected static final int BUCKET_SIZE = 32; // slots
-	protected static final int SLOT_SIZE = 4; // 4-byte integers
+	protected static final int SLOT_SIZE = 5; // 4-byte integers
 	protected static final int SLOT_ITEM_BYTES = 4; // 4 bytes
-	protected static final int SLOTS_IN_BUCKET = BUCKET_SIZE * SLOT_SIZE;
+	protected static final int BUCKET_HEADER_SIZE = 4; // 4-byte integers
+	protected static final int SLOTS_IN_BUCKET = BUCKET_HEADER_SIZE
+			+ BUCKET_SIZE * SLOT_SIZE;
 	protected static final int BYTES_IN_BUCKET = SLOTS_IN_BUCKET
 			* SLOT_ITEM_BYTES;
 
@@ -32,220 +91,1708 @@ public class HashTable {
 	protected static final int ID_LEN_OFFSET = 1;
 	protected static final int SEQ_POS_OFFSET = 2;
 	protected static final int SEQ_LEN_OFFSET = 3;
+	protected static final int FINGERPRINT_OFFSET = 4;
+
+	// Offsets of data in the bucket header
+	protected static final int TOMBSTONE_COUNT_OFFSET = 0;
+	protected static final int LIVE_COUNT_OFFSET = 1;
+	protected static final int OVERFLOW_PAGE_OFFSET = 2; // Next page in chain
+	protected static final int OVERFLOW_COUNT_OFFSET = 3; // Entries in chain
+
+	// The fingerprint value also holds the home position in the bucket
+	protected static final int FINGERPRINT_MASK = 0x00ffffff;
+	protected static final int HOME_INDEX_SHIFT = 24;
+
+	// Marks an overflow page, in place of its chain count
+	protected static final int OVERFLOW_PAGE_MARK = -1;
+
+	// Offsets of data in the hash file header
+	private static final int HEADER_MAGIC = 0x444e4854; // "DNHT"
+	private static final int HEADER_VERSION = 1;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 1;
+	private static final int CLEAN_OFFSET = 2; // 1 after a clean close
+	private static final int BUCKET_INTS_OFFSET = 3;
+	private static final int NUM_SLOTS_OFFSET = 4;
+	private static final int HASHER_OFFSET = 5;
+	private static final int ADDRESS_SLOTS_OFFSET = 6;
+	private static final int MAX_LOAD_OFFSET = 7;
+	private static final int ROBIN_HOOD_OFFSET = 8;
+	private static final int OVERFLOW_OFFSET = 9;
+	// Only valid when clean
+	private static final int NUM_ENTRIES_OFFSET = 10;
+	private static final int NUM_BUCKETS_OFFSET = 11;
+	private static final int NUM_OVERFLOW_PAGES_OFFSET = 12;
+	private static final int FREE_OVERFLOW_PAGE_OFFSET = 13;
+	private static final int LEVEL_OFFSET = 14;
+	private static final int SPLIT_BUCKET_OFFSET = 15;
+	private static final int CHECKPOINT_BYTES_OFFSET = 16;
+	private static final int DEDUPLICATE_OFFSET = 17;
+
+	// Hash functions a table can be reopened with
+	private static final int PACKED_HASHER = 0;
+	private static final int SFOLD_HASHER = 1;
+
+	public static final float DEFAULT_TOMBSTONE_RATIO = 0.25f;
+	private static final int PRINT_BUFFER_SIZE = 1 << 16; // chars
+
+	/**
+	 * Contents of a new bucket: no tombstones, every slot empty
+	 */
+	private static final int[] EMPTY_BUCKET = new int[SLOTS_IN_BUCKET];
+	static {
+		Arrays.fill(EMPTY_BUCKET, EMPTY_SLOT);
+		EMPTY_BUCKET[TOMBSTONE_COUNT_OFFSET] = 0;
+		EMPTY_BUCKET[LIVE_COUNT_OFFSET] = 0;
+		EMPTY_BUCKET[OVERFLOW_COUNT_OFFSET] = 0;
+	}
 
 	protected final int numSlots;
 	protected final MemoryManager memoryManager;
 
-	private int[] currentBucket; // Data of the current bucket from disk
-	private int currentBucketNum = 0; // Number of currently read bucket
-										// (slot/BUCKET_SIZE)
-	private boolean currentBucketDirty = true; // Indicates if the bucket stored
-												// in memory has been written to
+	protected BucketStore bucketStore;
+	private SequenceHasher hasher;
+	private SlotListener slotListener; // Told about every slot change
+	private KmerIndex kmerIndex; // Kept up to date if set
+	private IdIndex idIndex; // Kept up to date if set
+
+	private int numEntries = 0;
+	private float tombstoneRatio = DEFAULT_TOMBSTONE_RATIO;
+	private boolean robinHood = false;
+	private final AtomicLong slotsProbed = new AtomicLong(); // By lookups
+
+	// Linear hashing state
+	private float maxLoadFactor = 0; // 0 if the table never grows
+	private int addressSlots; // S, home slots before any split
+	private int level = 0; // Number of times the table has doubled
+	private int splitBucket = 0; // Next bucket to split
+
+	// Overflow chaining state
+	private boolean overflow = false;
+	private int numBuckets; // Not counting overflow pages
+	private int numOverflowPages = 0; // Including free ones
+	private int freeOverflowPage = EMPTY_SLOT; // First page of the free list
+	private int[] spareBuckets = new int[4]; // Buckets from spareBuckets[i]
+	private int[] sparePages = new int[4]; // on follow sparePages[i] overflow
+	private int numSpares = 0; // pages
+
+	/**
+	 * Constructs a HashTable
+	 * 
+	 * @param fileName
+	 * @param numSlots
+	 * @throws IOException
+	 */
+	public HashTable(String fileName, int numSlots,
+			MemoryManager sequenceFileMemoryManager) throws IOException {
+		this(fileName, numSlots, sequenceFileMemoryManager, false);
+	}
+
+	/**
+	 * Constructs a HashTable, optionally mapping the hash file into memory so
+	 * slots are read and written in place
+	 * 
+	 * @param fileName
+	 * @param numSlots
+	 * @param sequenceFileMemoryManager
+	 * @param memoryMapped
+	 * @throws IOException
+	 */
+	public HashTable(String fileName, int numSlots,
+			MemoryManager sequenceFileMemoryManager, boolean memoryMapped)
+			throws IOException {
+		this(numSlots, sequenceFileMemoryManager, memoryMapped ? new MappedBucketStore(
+				fileName, SLOTS_IN_BUCKET) : new BufferPoolBucketStore(
+				fileName, SLOTS_IN_BUCKET,
+				BufferPoolBucketStore.DEFAULT_NUM_FRAMES,
+				BufferPoolBucketStore.EvictionPolicy.CLOCK));
+	}
+
+	/**
+	 * Constructs a HashTable on top of an empty bucket store
+	 * 
+	 * @param numSlots
+	 * @param sequenceFileMemoryManager
+	 * @param bucketStore
+	 * @throws IOException
+	 */
+	public HashTable(int numSlots, MemoryManager sequenceFileMemoryManager,
+			BucketStore bucketStore) throws IOException {
+		this(numSlots, sequenceFileMemoryManager, bucketStore,
+				new PackedDnaHasher());
+	}
+
+	/**
+	 * Constructs a HashTable on top of an empty bucket store, placing IDs with
+	 * the given hash function
+	 * 
+	 * @param numSlots
+	 * @param sequenceFileMemoryManager
+	 * @param bucketStore
+	 * @param hasher
+	 * @throws IOException
+	 */
+	public HashTable(int numSlots, MemoryManager sequenceFileMemoryManager,
+			BucketStore bucketStore, SequenceHasher hasher) throws IOException {
+		this.numSlots = numSlots;
+		this.memoryManager = sequenceFileMemoryManager;
+		this.bucketStore = bucketStore;
+		this.hasher = hasher;
+		this.addressSlots = numSlots;
+		emptyHashFile();
+		writeHeader(false);
+		// Without a header on disk the file can not be reopened after a crash
+		bucketStore.flush();
+	}
+
+	/**
+	 * Opens the table stored in a bucket store that was opened with its
+	 * contents kept. If the table was not closed cleanly, the free blocks of
+	 * the memory file are rebuilt from the hash file.
+	 * 
+	 * @param sequenceFileMemoryManager
+	 *            opened with its contents kept
+	 * @param bucketStore
+	 * @throws IOException
+	 *             if the file does not hold a table
+	 */
+	public HashTable(MemoryManager sequenceFileMemoryManager,
+			BucketStore bucketStore) throws IOException {
+		this.memoryManager = sequenceFileMemoryManager;
+		this.bucketStore = bucketStore;
+		if (bucketStore.getHeaderInt(MAGIC_OFFSET) != HEADER_MAGIC
+				|| bucketStore.getHeaderInt(VERSION_OFFSET) != HEADER_VERSION
+				|| bucketStore.getHeaderInt(BUCKET_INTS_OFFSET) != SLOTS_IN_BUCKET) {
+			throw new IOException("Not a hash file of this version");
+		}
+		numSlots = bucketStore.getHeaderInt(NUM_SLOTS_OFFSET);
+		switch (bucketStore.getHeaderInt(HASHER_OFFSET)) {
+		case PACKED_HASHER:
+			hasher = new PackedDnaHasher();
+			break;
+		case SFOLD_HASHER:
+			hasher = new SfoldHasher();
+			break;
+		default:
+			throw new IOException("Unknown hash function");
+		}
+		addressSlots = bucketStore.getHeaderInt(ADDRESS_SLOTS_OFFSET);
+		maxLoadFactor = Float.intBitsToFloat(bucketStore
+				.getHeaderInt(MAX_LOAD_OFFSET));
+		robinHood = bucketStore.getHeaderInt(ROBIN_HOOD_OFFSET) != 0;
+		overflow = bucketStore.getHeaderInt(OVERFLOW_OFFSET) != 0;
+
+		if (bucketStore.getHeaderInt(CLEAN_OFFSET) == 0 || !readCheckpoint()) {
+			rebuild();
+		}
+		if (bucketStore.getHeaderInt(DEDUPLICATE_OFFSET) != 0) {
+			memoryManager.setDeduplicating(true);
+			countReferences();
+		}
+		// Until the next clean close, only the buckets can be trusted
+		writeHeader(false);
+		bucketStore.flush();
+	}
+
+	/**
+	 * Fills the (empty) hash file with empty slots
+	 * 
+	 * @throws IOException
+	 */
+	private void emptyHashFile() throws IOException {
+		numBuckets = (numSlots + BUCKET_SIZE - 1) / BUCKET_SIZE;
+		bucketStore.setNumBuckets(numBuckets, EMPTY_BUCKET);
+	}
+
+	/**
+	 * Writes the table's parameters and counts to the hash file header
+	 * 
+	 * @param clean
+	 *            whether the counts and the checkpoint pages are valid
+	 * @throws IOException
+	 */
+	private void writeHeader(boolean clean) throws IOException {
+		bucketStore.putHeaderInt(MAGIC_OFFSET, HEADER_MAGIC);
+		bucketStore.putHeaderInt(VERSION_OFFSET, HEADER_VERSION);
+		bucketStore.putHeaderInt(CLEAN_OFFSET, clean ? 1 : 0);
+		bucketStore.putHeaderInt(BUCKET_INTS_OFFSET, SLOTS_IN_BUCKET);
+		bucketStore.putHeaderInt(NUM_SLOTS_OFFSET, numSlots);
+		bucketStore.putHeaderInt(HASHER_OFFSET,
+				(hasher instanceof SfoldHasher) ? SFOLD_HASHER : PACKED_HASHER);
+		bucketStore.putHeaderInt(ADDRESS_SLOTS_OFFSET, addressSlots);
+		bucketStore.putHeaderInt(MAX_LOAD_OFFSET, Float
+				.floatToIntBits(maxLoadFactor));
+		bucketStore.putHeaderInt(ROBIN_HOOD_OFFSET, robinHood ? 1 : 0);
+		bucketStore.putHeaderInt(OVERFLOW_OFFSET, overflow ? 1 : 0);
+		bucketStore.putHeaderInt(DEDUPLICATE_OFFSET, memoryManager
+				.isDeduplicating() ? 1 : 0);
+		bucketStore.putHeaderInt(NUM_ENTRIES_OFFSET, numEntries);
+		bucketStore.putHeaderInt(NUM_BUCKETS_OFFSET, numBuckets);
+		bucketStore.putHeaderInt(NUM_OVERFLOW_PAGES_OFFSET, numOverflowPages);
+		bucketStore.putHeaderInt(FREE_OVERFLOW_PAGE_OFFSET, freeOverflowPage);
+		bucketStore.putHeaderInt(LEVEL_OFFSET, level);
+		bucketStore.putHeaderInt(SPLIT_BUCKET_OFFSET, splitBucket);
+	}
+
+	/**
+	 * Writes the memory file's free blocks and the spares to pages after the
+	 * last page of the table
+	 * 
+	 * @throws IOException
+	 */
+	private void writeCheckpoint() throws IOException {
+		BlockAllocator allocator = memoryManager.getAllocator();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(memoryManager.getFileLength());
+		out.writeUTF(allocator.getClass().getName());
+		allocator.save(out);
+		out.writeInt(numSpares);
+		for (int i = 0; i < numSpares; i++) {
+			out.writeInt(spareBuckets[i]);
+			out.writeInt(sparePages[i]);
+		}
+		out.close();
+
+		int numBytes = bytes.size();
+		int ints = (numBytes + SLOT_ITEM_BYTES - 1) / SLOT_ITEM_BYTES;
+		ByteBuffer buffer = ByteBuffer.allocate(ints * SLOT_ITEM_BYTES);
+		buffer.put(bytes.toByteArray());
+		buffer.flip();
+		IntBuffer values = buffer.asIntBuffer();
+		int firstPage = numBuckets + numOverflowPages;
+		bucketStore.setNumBuckets(firstPage + (ints + SLOTS_IN_BUCKET - 1)
+				/ SLOTS_IN_BUCKET, EMPTY_BUCKET);
+		for (int i = 0; i < ints; i++) {
+			bucketStore.putInt(firstPage + i / SLOTS_IN_BUCKET, i
+					% SLOTS_IN_BUCKET, values.get(i));
+		}
+		bucketStore.putHeaderInt(CHECKPOINT_BYTES_OFFSET, numBytes);
+	}
+
+	/**
+	 * Restores the counts from a clean header and the state written by
+	 * writeCheckpoint, then drops the checkpoint pages
+	 * 
+	 * @return false if the checkpoint was written with a different kind of
+	 *         allocator
+	 * @throws IOException
+	 */
+	private boolean readCheckpoint() throws IOException {
+		numEntries = bucketStore.getHeaderInt(NUM_ENTRIES_OFFSET);
+		numBuckets = bucketStore.getHeaderInt(NUM_BUCKETS_OFFSET);
+		numOverflowPages = bucketStore.getHeaderInt(NUM_OVERFLOW_PAGES_OFFSET);
+		freeOverflowPage = bucketStore.getHeaderInt(FREE_OVERFLOW_PAGE_OFFSET);
+		level = bucketStore.getHeaderInt(LEVEL_OFFSET);
+		splitBucket = bucketStore.getHeaderInt(SPLIT_BUCKET_OFFSET);
+		int numBytes = bucketStore.getHeaderInt(CHECKPOINT_BYTES_OFFSET);
+
+		int firstPage = numBuckets + numOverflowPages;
+		int ints = (numBytes + SLOT_ITEM_BYTES - 1) / SLOT_ITEM_BYTES;
+		ByteBuffer buffer = ByteBuffer.allocate(ints * SLOT_ITEM_BYTES);
+		IntBuffer values = buffer.asIntBuffer();
+		for (int i = 0; i < ints; i++) {
+			values.put(bucketStore.getInt(firstPage + i / SLOTS_IN_BUCKET, i
+					% SLOTS_IN_BUCKET));
+		}
+		bucketStore.setNumBuckets(firstPage, EMPTY_BUCKET);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				buffer.array(), 0, numBytes));
+		int dataLength = in.readInt();
+		BlockAllocator allocator = memoryManager.getAllocator();
+		if (!allocator.getClass().getName().equals(in.readUTF())) {
+			return false;
+		}
+		allocator.load(in);
+		memoryManager.truncate(dataLength);
+		numSpares = in.readInt();
+		spareBuckets = new int[Math.max(4, numSpares)];
+		sparePages = new int[spareBuckets.length];
+		for (int i = 0; i < numSpares; i++) {
+			spareBuckets[i] = in.readInt();
+			sparePages[i] = in.readInt();
+		}
+		return true;
+	}
+
+	/**
+	 * Recovers after an unclean shutdown: finds the overflow pages, drops
+	 * entries that cannot be trusted, counts the entries and marks every
+	 * block a slot refers to as used in the memory file. Everything else in
+	 * the memory file becomes free.
+	 * 
+	 * Pages reach the hash file in no particular order, so after a crash an
+	 * entry may have been left behind in its old bucket by a split or a
+	 * reorganization, or may refer to space that was freed and reused, or to
+	 * space past the end of the memory file. Such entries are cleared (the
+	 * write-ahead log puts back the ones that should be there), and the
+	 * buckets they were in are reorganized. An entry left behind when its
+	 * blocks were freed and reused overlaps the entry that reused them;
+	 * there is no telling which is stale, so both are cleared.
+	 * 
+	 * @throws IOException
+	 */
+	private void rebuild() throws IOException {
+		// A mapped hash file grows a region at a time; the pages past the
+		// last one written are all zeros, and no real page links to page 0
+		int pages = bucketStore.getNumBuckets();
+		while (pages > 1 && getOverflowPage(pages - 1) == 0) {
+			pages--;
+		}
+		bucketStore.setNumBuckets(pages, EMPTY_BUCKET);
+
+		numEntries = 0;
+		numBuckets = 0;
+		numOverflowPages = 0;
+		freeOverflowPage = EMPTY_SLOT;
+		numSpares = 0;
+		for (int page = 0; page < pages; page++) {
+			if (getOverflowCount(page) == OVERFLOW_PAGE_MARK) {
+				numOverflowPages++;
+				addSpare();
+			} else {
+				numBuckets++;
+			}
+		}
+
+		// Where linear hashing got to follows from the number of buckets
+		level = 0;
+		splitBucket = 0;
+		if (maxLoadFactor > 0) {
+			int startBuckets = addressSlots / BUCKET_SIZE;
+			while (startBuckets << (level + 1) <= numBuckets) {
+				level++;
+			}
+			splitBucket = numBuckets - (startBuckets << level);
+		}
+
+		// Check every entry of every bucket and its chain
+		boolean[] inChain = new boolean[pages];
+		boolean[] damaged = new boolean[pages]; // Buckets to reorganize
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			int page = pageOf(bucket);
+			Set<String> ids = new HashSet<String>();
+			boolean cleared = false;
+			int chainEntries = 0;
+			int chainPage = page;
+			while (chainPage != EMPTY_SLOT) {
+				int firstSlot = chainPage * BUCKET_SIZE;
+				for (int slot = firstSlot; slot < firstSlot + BUCKET_SIZE; slot++) {
+					if (isSlotAvailable(slot)) {
+						continue;
+					}
+					if (!isEntryValid(slot, page, ids)) {
+						clearSlot(slot);
+						cleared = true;
+					} else if (chainPage != page) {
+						chainEntries++;
+					}
+				}
+				int next = getOverflowPage(chainPage);
+				if (next != EMPTY_SLOT
+						&& (next < 0 || next >= pages || inChain[next] || getOverflowCount(next) != OVERFLOW_PAGE_MARK)) {
+					// The rest of the chain was lost
+					bucketStore.putInt(chainPage, OVERFLOW_PAGE_OFFSET,
+							EMPTY_SLOT);
+					next = EMPTY_SLOT;
+				}
+				if (next != EMPTY_SLOT) {
+					inChain[next] = true;
+				}
+				chainPage = next;
+			}
+			bucketStore.putInt(page, OVERFLOW_COUNT_OFFSET, chainEntries);
+			if (cleared) {
+				damaged[page] = true;
+			}
+		}
+
+		// Overflow pages outside every chain are free
+		for (int page = pages - 1; page >= 0; page--) {
+			if (getOverflowCount(page) == OVERFLOW_PAGE_MARK && !inChain[page]) {
+				int firstSlot = page * BUCKET_SIZE;
+				for (int slot = firstSlot; slot < firstSlot + BUCKET_SIZE; slot++) {
+					if (!isSlotEmpty(slot)) {
+						clearSlot(slot);
+					}
+				}
+				freeOverflowPage(page);
+			}
+		}
+		dropOverlappingEntries(damaged);
+		for (int page = 0; page < pages; page++) {
+			if (damaged[page]) {
+				reorganizeBucket(page);
+			}
+		}
+
+		int[] blocks = new int[64]; // offset, size pairs
+		int numBlocks = 0;
+		int dataLength = 0;
+		for (int page = 0; page < pages; page++) {
+			numEntries += getLiveCount(page);
+			int firstSlot = page * BUCKET_SIZE;
+			for (int slot = firstSlot; slot < firstSlot + BUCKET_SIZE; slot++) {
+				if (isSlotAvailable(slot)) {
+					continue;
+				}
+				if (numBlocks + 4 > blocks.length) {
+					blocks = Arrays.copyOf(blocks, blocks.length * 2);
+				}
+				blocks[numBlocks++] = getSequenceIdOffset(slot);
+				blocks[numBlocks++] = MemoryManager
+						.getEncodedSequenceLength(getSequenceIdLength(slot));
+				blocks[numBlocks++] = getSequenceOffset(slot);
+				blocks[numBlocks++] = MemoryManager
+						.getEncodedSequenceLength(getSequenceLength(slot));
+				dataLength = Math.max(dataLength, Math.max(blocks[numBlocks - 4]
+						+ blocks[numBlocks - 3], blocks[numBlocks - 2]
+						+ blocks[numBlocks - 1]));
+			}
+		}
+
+		BlockAllocator allocator = memoryManager.getAllocator();
+		allocator.reset(dataLength);
+		for (int i = 0; i < numBlocks; i += 2) {
+			allocator.allocateAt(blocks[i], blocks[i + 1]);
+		}
+		memoryManager.truncate(dataLength);
+	}
+
+	/**
+	 * Clears every entry with a block that overlaps a block of another entry
+	 * in the memory file. Blocks that are the same block are shared, not
+	 * overlapping, if the table deduplicates.
+	 * 
+	 * @param damaged
+	 *            set for the pages of the buckets entries are cleared from
+	 * @throws IOException
+	 */
+	private void dropOverlappingEntries(boolean[] damaged) throws IOException {
+		boolean shared = bucketStore.getHeaderInt(DEDUPLICATE_OFFSET) != 0;
+		int[] slots = new int[64];
+		int[] owners = new int[64]; // Page of the bucket of each slot
+		long[] blocks = new long[128]; // offset, then 2 * entry + field
+		int numFound = 0;
+		int numBlocks = 0;
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			int page = pageOf(bucket);
+			for (int chainPage = page; chainPage != EMPTY_SLOT; chainPage = getOverflowPage(chainPage)) {
+				int firstSlot = chainPage * BUCKET_SIZE;
+				for (int slot = firstSlot; slot < firstSlot + BUCKET_SIZE; slot++) {
+					if (isSlotAvailable(slot)) {
+						continue;
+					}
+					if (numFound == slots.length) {
+						slots = Arrays.copyOf(slots, numFound * 2);
+						owners = Arrays.copyOf(owners, numFound * 2);
+						blocks = Arrays.copyOf(blocks, numFound * 4);
+					}
+					slots[numFound] = slot;
+					owners[numFound] = page;
+					if (getSequenceIdLength(slot) > 0) {
+						blocks[numBlocks++] = ((long) getSequenceIdOffset(slot) << 32)
+								| (2 * numFound);
+					}
+					if (getSequenceLength(slot) > 0) {
+						blocks[numBlocks++] = ((long) getSequenceOffset(slot) << 32)
+								| (2 * numFound + 1);
+					}
+					numFound++;
+				}
+			}
+		}
+		Arrays.sort(blocks, 0, numBlocks);
+
+		// Sweep runs of blocks that overlap one another
+		boolean[] overlapping = new boolean[numFound];
+		int runStart = 0;
+		long runEnd = 0;
+		boolean conflict = false;
+		for (int i = 0; i <= numBlocks; i++) {
+			long offset = (i < numBlocks) ? blocks[i] >>> 32 : Long.MAX_VALUE;
+			if (offset >= runEnd) {
+				for (int j = runStart; conflict && j < i; j++) {
+					overlapping[(int) blocks[j] / 2] = true;
+				}
+				runStart = i;
+				runEnd = 0;
+				conflict = false;
+			} else if (!shared || offset != blocks[i - 1] >>> 32
+					|| blockSize(blocks[i], slots) != blockSize(blocks[i - 1], slots)) {
+				conflict = true;
+			}
+			if (i < numBlocks) {
+				runEnd = Math.max(runEnd, offset + blockSize(blocks[i], slots));
+			}
+		}
+
+		for (int i = 0; i < numFound; i++) {
+			if (!overlapping[i]) {
+				continue;
+			}
+			if (slots[i] / BUCKET_SIZE != owners[i]) {
+				removeFromOverflow(owners[i], slots[i]);
+			} else {
+				clearSlot(slots[i]);
+			}
+			damaged[owners[i]] = true;
+		}
+	}
+
+	/**
+	 * @param block
+	 *            as sorted by dropOverlappingEntries
+	 * @param slots
+	 *            of the entries
+	 * @return the size in bytes of the block
+	 * @throws IOException
+	 */
+	private int blockSize(long block, int[] slots) throws IOException {
+		int entry = (int) block;
+		int slot = slots[entry / 2];
+		int length = (entry % 2 == 0) ? getSequenceIdLength(slot)
+				: getSequenceLength(slot);
+		return MemoryManager.getEncodedSequenceLength(length);
+	}
+
+	/**
+	 * Tells the memory manager about every block the entries refer to, so
+	 * shared blocks are only freed with their last entry
+	 * 
+	 * @throws IOException
+	 */
+	private void countReferences() throws IOException {
+		for (int slot = 0; slot < slotCount(); slot++) {
+			if (!isSlotAvailable(slot)) {
+				memoryManager.addReference(getSequenceIdOffset(slot),
+						getSequenceIdLength(slot));
+				memoryManager.addReference(getSequenceOffset(slot),
+						getSequenceLength(slot));
+			}
+		}
+	}
+
+	/**
+	 * Checks that an entry found while rebuilding belongs where it is: its
+	 * blocks lie inside the memory file, the stored ID matches the
+	 * fingerprint, hashes to this bucket and was not already seen in it
+	 * 
+	 * @param slot
+	 * @param page
+	 *            of the bucket the slot belongs to
+	 * @param ids
+	 *            IDs seen in the bucket so far
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isEntryValid(int slot, int page, Set<String> ids)
+			throws IOException {
+		long fileLength = memoryManager.getFileLength();
+		int idLength = getSequenceIdLength(slot);
+		int sequenceLength = getSequenceLength(slot);
+		if (idLength < 0 || sequenceLength < 0 || getSequenceOffset(slot) < 0
+				|| (long) getSequenceIdOffset(slot)
+						+ MemoryManager.getEncodedSequenceLength(idLength) > fileLength
+				|| (long) getSequenceOffset(slot)
+						+ MemoryManager.getEncodedSequenceLength(sequenceLength) > fileLength) {
+			return false;
+		}
+		String sequenceID = retrieveSequenceID(slot);
+		int homeSlot = homeSlot(sequenceID);
+		return getFingerprint(slot) == fingerprint(sequenceID)
+				&& homeSlot / BUCKET_SIZE == page
+				&& getSlotValue(slot, FINGERPRINT_OFFSET) >>> HOME_INDEX_SHIFT == homeSlot
+						% BUCKET_SIZE && ids.add(sequenceID);
+	}
+
+	/**
+	 * Writes every change so far to the hash file. The header stays marked
+	 * unclean until close.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		bucketStore.flush();
+	}
+
+	/**
+	 * @return the store holding the hash file's buckets
+	 */
+	public BucketStore getBucketStore() {
+		return bucketStore;
+	}
+
+	/**
+	 * @param slotListener
+	 *            notified of every change to a slot, or null
+	 */
+	public void setSlotListener(SlotListener slotListener) {
+		this.slotListener = slotListener;
+	}
+
+	/**
+	 * Keeps a k-mer index of the sequences up to date, and uses it to find
+	 * the sequences containing a pattern. An index that does not hold as many
+	 * sequences as the table is filled again from the table. The index is
+	 * closed with the table.
+	 * 
+	 * @param kmerIndex
+	 *            or null
+	 * @throws IOException
+	 */
+	public void setKmerIndex(KmerIndex kmerIndex) throws IOException {
+		this.kmerIndex = kmerIndex;
+		if (kmerIndex != null && kmerIndex.getNumSequences() != numEntries) {
+			kmerIndex.clear();
+			for (int slot = 0; slot < slotCount(); slot++) {
+				if (!isSlotAvailable(slot)) {
+					kmerIndex.add(new MemoryHandle(getSequenceIdOffset(slot),
+							getSequenceIdLength(slot)), openSequence(slot));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps an ordered index of the sequence IDs up to date, and uses it to
+	 * find the IDs with a prefix or in a range. An index that does not hold
+	 * as many IDs as the table is filled again from the table. The index is
+	 * closed with the table.
+	 * 
+	 * @param idIndex
+	 *            or null
+	 * @throws IOException
+	 */
+	public void setIdIndex(IdIndex idIndex) throws IOException {
+		this.idIndex = idIndex;
+		if (idIndex != null && idIndex.getNumIds() != numEntries) {
+			idIndex.clear();
+			for (int slot = 0; slot < slotCount(); slot++) {
+				if (!isSlotAvailable(slot)) {
+					idIndex.add(retrieveSequenceID(slot), new MemoryHandle(
+							getSequenceIdOffset(slot), getSequenceIdLength(slot)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lets the table grow one bucket at a time to keep the load factor at or
+	 * under maxLoadFactor. Must be set while the table is empty; the initial
+	 * size is rounded up to a whole number of buckets.
+	 * 
+	 * @param maxLoadFactor
+	 *            entries per slot, or 0 to keep the size fixed
+	 * @throws IOException
+	 */
+	public void setMaxLoadFactor(float maxLoadFactor) throws IOException {
+		if (numEntries > 0 || level > 0 || splitBucket > 0) {
+			throw new IllegalStateException(
+					"The load factor can only be set on an empty table");
+		}
+		this.maxLoadFactor = maxLoadFactor;
+		this.addressSlots = (maxLoadFactor > 0) ? numBuckets * BUCKET_SIZE
+				: numSlots;
+		writeHeader(false);
+	}
+
+	/**
+	 * Lets full buckets chain to overflow pages instead of rejecting inserts.
+	 * Must be set while the table is empty.
+	 * 
+	 * @param overflow
+	 * @throws IOException
+	 */
+	public void setOverflow(boolean overflow) throws IOException {
+		if (numEntries > 0) {
+			throw new IllegalStateException(
+					"Overflow can only be turned on or off on an empty table");
+		}
+		this.overflow = overflow;
+		writeHeader(false);
+	}
+
+	/**
+	 * Sets how full of tombstones a bucket may get before it is reorganized
+	 * 
+	 * @param tombstoneRatio
+	 *            fraction of the bucket's slots, or 0 to only reorganize on
+	 *            demand
+	 */
+	public void setTombstoneRatio(float tombstoneRatio) {
+		this.tombstoneRatio = tombstoneRatio;
+	}
+
+	/**
+	 * Chooses Robin Hood placement instead of plain linear probing. Must be
+	 * set while the table is empty.
+	 * 
+	 * @param robinHood
+	 * @throws IOException
+	 */
+	public void setRobinHood(boolean robinHood) throws IOException {
+		if (numEntries > 0) {
+			throw new IllegalStateException(
+					"The probing policy can only be set on an empty table");
+		}
+		this.robinHood = robinHood;
+		writeHeader(false);
+	}
+
+	/**
+	 * Lets entries with the same sequence share one block of the memory
+	 * file (see {@link MemoryManager#setDeduplicating(boolean)}). Must be set
+	 * while the table is empty; a reopened table keeps the setting it was
+	 * created with.
+	 * 
+	 * @param deduplicating
+	 * @throws IOException
+	 */
+	public void setDeduplicating(boolean deduplicating) throws IOException {
+		if (numEntries > 0) {
+			throw new IllegalStateException(
+					"Deduplication can only be turned on or off on an empty table");
+		}
+		memoryManager.setDeduplicating(deduplicating);
+		writeHeader(false);
+	}
+
+	/**
+	 * @return the number of slots looked at by lookups so far
+	 */
+	public long getSlotsProbed() {
+		return slotsProbed.get();
+	}
+
+	/**
+	 * @return the number of sequences stored
+	 */
+	public int size() {
+		return numEntries;
+	}
+
+	/**
+	 * Adds to the number of entries. Inserts and removes into different
+	 * buckets may run at the same time in a {@link ConcurrentHashTable}.
+	 * 
+	 * @param delta
+	 * @return the new number of entries
+	 */
+	private synchronized int countEntries(int delta) {
+		numEntries += delta;
+		return numEntries;
+	}
+
+	/**
+	 * @return true if entries never move to another bucket or page: the table
+	 *         neither grows nor chains overflow pages
+	 */
+	protected boolean isLayoutFixed() {
+		return maxLoadFactor == 0 && !overflow;
+	}
+
+	/**
+	 * @return the number of slots in the hash file, including any slots of
+	 *         the last bucket past numSlots and of overflow pages
+	 */
+	public int slotCount() {
+		return bucketStore.getNumBuckets() * BUCKET_SIZE;
+	}
+
+	public String toString() {
+		return "Hash table: " + numEntries + " entries in " + numBuckets
+				+ " buckets and " + numOverflowPages + " overflow pages (level "
+				+ level + ", next split " + splitBucket + ")";
+	}
+
+	/**
+	 * Saves the state needed to reopen the table quickly, marks the hash file
+	 * clean, and closes it. The memory manager must still be open.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		writeCheckpoint();
+		writeHeader(true);
+		bucketStore.close();
+		if (kmerIndex != null) {
+			kmerIndex.close();
+		}
+		if (idIndex != null) {
+			idIndex.close();
+		}
+	}
+
+	/**
+	 * Inserts a sequence into the HashTable
+	 * 
+	 * @param sequenceID
+	 * @param sequenceHandle
+	 * @throws HashTableFullException
+	 * @throws DuplicateSequenceException
+	 * @throws IOException
+	 */
+	public void insert(String sequenceID, MemoryHandle sequenceIdHandle,
+			MemoryHandle sequenceHandle) throws HashTableFullException,
+			DuplicateSequenceException, IOException {
+
+		int fingerprint = fingerprint(sequenceID);
+		byte[] packedId = packId(sequenceID);
+		int openSlot = findOpenSlot(sequenceID, fingerprint, packedId);
+		boolean split = false; // At most one bucket is split per insert
+		if (openSlot < 0 && maxLoadFactor > 0 && !overflow) {
+			// Split the next bucket, which may be the full one, and try
+			// again. If the full bucket is further on, the entry waits in an
+			// overflow page until the bucket is split, so no insert splits
+			// more than one bucket.
+			splitNextBucket();
+			split = true;
+			openSlot = findOpenSlot(sequenceID, fingerprint, packedId);
+		}
+
+		// If there was no open slot, we must have a full table
+		if (openSlot < 0 && !overflow && maxLoadFactor == 0) {
+			throw new HashTableFullException();
+		}
+		int homeSlot = homeSlot(sequenceID);
+		int[] entry = new int[SLOT_SIZE];
+		entry[ID_POS_OFFSET] = sequenceIdHandle.getByteOffset();
+		entry[ID_LEN_OFFSET] = sequenceIdHandle.getSequenceLength();
+		entry[SEQ_POS_OFFSET] = sequenceHandle.getByteOffset();
+		entry[SEQ_LEN_OFFSET] = sequenceHandle.getSequenceLength();
+		entry[FINGERPRINT_OFFSET] = fingerprint
+				| ((homeSlot % BUCKET_SIZE) << HOME_INDEX_SHIFT);
+		if (openSlot < 0 || robinHood) {
+			placeEntry(homeSlot, entry);
+		} else {
+			writeSlot(openSlot, entry[ID_POS_OFFSET], entry[ID_LEN_OFFSET],
+					entry[SEQ_POS_OFFSET], entry[SEQ_LEN_OFFSET],
+					entry[FINGERPRINT_OFFSET]);
+		}
+		int entries = countEntries(1);
+		if (kmerIndex != null) {
+			kmerIndex.add(sequenceIdHandle, memoryManager.openSequence(
+					sequenceHandle.getByteOffset(), sequenceHandle
+							.getSequenceLength()));
+		}
+		if (idIndex != null) {
+			idIndex.add(sequenceID, sequenceIdHandle);
+		}
+
+		if (maxLoadFactor > 0 && !split
+				&& entries > maxLoadFactor * numBuckets * BUCKET_SIZE) {
+			splitNextBucket();
+		}
+	}
+
+	/**
+	 * Inserts a batch of sequences. The inserts are made in order of home
+	 * bucket, so each bucket is read and written about once for the whole
+	 * batch instead of once per insert. Inserts into the same bucket keep
+	 * their order, so a repeated ID in the batch is the one reported as a
+	 * duplicate, and a full bucket rejects the same inserts.
+	 * 
+	 * @param sequenceIDs
+	 * @param sequenceIdHandles
+	 * @param sequenceHandles
+	 * @return for each insert, null if it succeeded, or the
+	 *         HashTableFullException or DuplicateSequenceException it failed
+	 *         with
+	 * @throws IOException
+	 */
+	public Exception[] insertAll(String[] sequenceIDs,
+			MemoryHandle[] sequenceIdHandles, MemoryHandle[] sequenceHandles)
+			throws IOException {
+		int n = sequenceIDs.length;
+		long[] byBucket = new long[n]; // bucket, then index
+		for (int i = 0; i < n; i++) {
+			byBucket[i] = ((long) (homeSlot(sequenceIDs[i]) / BUCKET_SIZE) << 32)
+					| i;
+		}
+		Arrays.sort(byBucket);
+
+		Exception[] failures = new Exception[n];
+		for (long key : byBucket) {
+			int i = (int) key;
+			try {
+				insert(sequenceIDs[i], sequenceIdHandles[i], sequenceHandles[i]);
+			} catch (HashTableFullException e) {
+				failures[i] = e;
+			} catch (DuplicateSequenceException e) {
+				failures[i] = e;
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Probes for the slot a new sequence ID should go in
+	 * 
+	 * @param sequenceID
+	 * @param fingerprint
+	 *            fingerprint(sequenceID)
+	 * @param packedId
+	 *            packId(sequenceID)
+	 * @return the first available slot (the home slot with Robin Hood
+	 *         placement), or -1 if the bucket is full
+	 * @throws DuplicateSequenceException
+	 *             if the sequence ID is already stored
+	 * @throws IOException
+	 */
+	private int findOpenSlot(String sequenceID, int fingerprint,
+			byte[] packedId) throws DuplicateSequenceException, IOException {
+		int homeSlot = homeSlot(sequenceID);
+		if (robinHood) {
+			if (findSlot(sequenceID, fingerprint, packedId) >= 0) {
+				throw new DuplicateSequenceException(sequenceID);
+			}
+			return getLiveCount(homeSlot / BUCKET_SIZE) < BUCKET_SIZE ? homeSlot
+					: -1;
+		}
+		int currentSlot = homeSlot;
+		int openSlot = -1; // First slot the sequence could go in
+		int probes = 0; // Counted once, as several threads may be looking
+
+		do {
+			probes++;
+			if (isSlotEmpty(currentSlot)) {
+				// Nothing is stored past an empty slot
+				if (openSlot < 0) {
+					openSlot = currentSlot;
+				}
+				break;
+			} else if (isSlotTombstone(currentSlot)) {
+				// Reuse the slot, but keep checking for a duplicate
+				if (openSlot < 0) {
+					openSlot = currentSlot;
+				}
+			} else if (slotMatches(currentSlot, sequenceID, fingerprint,
+					packedId)) {
+				slotsProbed.addAndGet(probes);
+				throw new DuplicateSequenceException(sequenceID);
+			}
+
+			// Move to the next slot in the probing sequence
+			currentSlot = nextSlot(currentSlot);
+
+		} while (currentSlot != homeSlot); // loop while we haven't returned
+											// back to the slot we started on
+		slotsProbed.addAndGet(probes);
+
+		if (findInOverflow(homeSlot / BUCKET_SIZE, sequenceID, fingerprint,
+				packedId) >= 0) {
+			throw new DuplicateSequenceException(sequenceID);
+		}
+		return openSlot;
+	}
+
+	/**
+	 * Splits the next bucket in linear hashing order: a bucket is added to
+	 * the end of the file, and the entries of the split bucket are placed
+	 * again with one more bit of the hash. Tombstones of the split bucket are
+	 * dropped.
+	 * 
+	 * @throws IOException
+	 */
+	protected void splitNextBucket() throws IOException {
+		int page = pageOf(splitBucket);
+		bucketStore.setNumBuckets(numBuckets + numOverflowPages + 1,
+				EMPTY_BUCKET);
+		numBuckets++;
+		int[][] entries = takeEntries(page);
+
+		splitBucket++;
+		if (splitBucket == (addressSlots / BUCKET_SIZE) << level) {
+			// Every bucket of this round is split, the table has doubled
+			level++;
+			splitBucket = 0;
+		}
+
+		// Put them back where the new address says
+		for (int[] entry : entries) {
+			String sequenceID = memoryManager.retrieveSequence(
+					entry[ID_POS_OFFSET], entry[ID_LEN_OFFSET]);
+			placeEntry(homeSlot(sequenceID), entry);
+		}
+	}
+
+	/**
+	 * Reorganizes every bucket that has tombstones, or overflow entries that
+	 * could move back into the bucket
+	 * 
+	 * @return the number of buckets reorganized
+	 * @throws IOException
+	 */
+	public int reorganize() throws IOException {
+		int reorganized = 0;
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			int page = pageOf(bucket);
+			if (getTombstoneCount(page) > 0
+					|| (getOverflowCount(page) > 0 && getLiveCount(page) < BUCKET_SIZE)) {
+				reorganizeBucket(page);
+				reorganized++;
+			}
+		}
+		return reorganized;
+	}
+
+	/**
+	 * Packs the live entries of a bucket back in from their home slots,
+	 * turning all of its tombstones into empty slots. Entries of its overflow
+	 * chain move back into the bucket while there is room. Uses the home
+	 * positions stored in the slots, so no IDs are read.
+	 * 
+	 * @param page
+	 *            of the bucket
+	 * @throws IOException
+	 */
+	protected void reorganizeBucket(int page) throws IOException {
+		int[][] entries = takeEntries(page);
+		for (int[] entry : entries) {
+			placeEntry(page * BUCKET_SIZE
+					+ (entry[FINGERPRINT_OFFSET] >>> HOME_INDEX_SHIFT), entry);
+		}
+	}
+
+	/**
+	 * Empties every slot of a bucket and its overflow chain, and frees the
+	 * overflow pages
+	 * 
+	 * @param page
+	 *            of the bucket
+	 * @return the values of the live slots that were emptied
+	 * @throws IOException
+	 */
+	private int[][] takeEntries(int page) throws IOException {
+		int[][] entries = new int[BUCKET_SIZE + getOverflowCount(page)][];
+		int numTaken = 0;
+		int overflowPage = getOverflowPage(page);
+		bucketStore.putInt(page, OVERFLOW_PAGE_OFFSET, EMPTY_SLOT);
+		bucketStore.putInt(page, OVERFLOW_COUNT_OFFSET, 0);
+		while (page != EMPTY_SLOT) {
+			int firstSlot = page * BUCKET_SIZE;
+			for (int slot = firstSlot; slot < firstSlot + BUCKET_SIZE; slot++) {
+				if (isSlotEmpty(slot)) {
+					continue;
+				}
+				if (!isSlotTombstone(slot)) {
+					int[] entry = new int[SLOT_SIZE];
+					for (int field = 0; field < SLOT_SIZE; field++) {
+						entry[field] = getSlotValue(slot, field);
+					}
+					entries[numTaken++] = entry;
+				}
+				clearSlot(slot);
+			}
+			page = overflowPage;
+			if (page != EMPTY_SLOT) {
+				overflowPage = getOverflowPage(page);
+				freeOverflowPage(page);
+			}
+		}
+		int[][] taken = new int[numTaken][];
+		System.arraycopy(entries, 0, taken, 0, numTaken);
+		return taken;
+	}
+
+	/**
+	 * Writes an entry to the first available slot from its home slot or, with
+	 * Robin Hood placement, to the first slot holding an entry closer to its
+	 * own home (which is then placed further on in the same way). If the
+	 * bucket is full, the entry goes in its overflow chain, which must be
+	 * turned on or the table must grow.
+	 * 
+	 * @param homeSlot
+	 * @param entry
+	 *            the slot values, see writeSlot
+	 * @throws IOException
+	 */
+	private void placeEntry(int homeSlot, int[] entry) throws IOException {
+		if (getLiveCount(homeSlot / BUCKET_SIZE) == BUCKET_SIZE) {
+			placeInOverflow(homeSlot / BUCKET_SIZE, entry);
+			return;
+		}
+		int slot = homeSlot;
+		int distance = 0; // From the home slot of entry
+		while (!isSlotAvailable(slot)) {
+			int displacement = robinHood ? getDisplacement(slot) : 0;
+			if (robinHood && displacement < distance) {
+				// Take the slot, carry on with the entry that was in it
+				int[] displaced = new int[SLOT_SIZE];
+				for (int field = 0; field < SLOT_SIZE; field++) {
+					displaced[field] = getSlotValue(slot, field);
+				}
+				writeSlot(slot, entry[ID_POS_OFFSET], entry[ID_LEN_OFFSET],
+						entry[SEQ_POS_OFFSET], entry[SEQ_LEN_OFFSET],
+						entry[FINGERPRINT_OFFSET]);
+				entry = displaced;
+				distance = displacement;
+			}
+			slot = nextSlot(slot);
+			distance++;
+		}
+		writeSlot(slot, entry[ID_POS_OFFSET], entry[ID_LEN_OFFSET],
+				entry[SEQ_POS_OFFSET], entry[SEQ_LEN_OFFSET],
+				entry[FINGERPRINT_OFFSET]);
+	}
+
+	/**
+	 * Writes an entry to the first overflow page of a bucket that has room,
+	 * adding a page to the end of the chain if none has
+	 * 
+	 * @param page
+	 *            of the bucket
+	 * @param entry
+	 *            the slot values, see writeSlot
+	 * @throws IOException
+	 */
+	private void placeInOverflow(int page, int[] entry) throws IOException {
+		int last = page;
+		int overflowPage = getOverflowPage(page);
+		while (overflowPage != EMPTY_SLOT
+				&& getLiveCount(overflowPage) == BUCKET_SIZE) {
+			last = overflowPage;
+			overflowPage = getOverflowPage(overflowPage);
+		}
+		if (overflowPage == EMPTY_SLOT) {
+			overflowPage = allocateOverflowPage();
+			bucketStore.putInt(last, OVERFLOW_PAGE_OFFSET, overflowPage);
+		}
+		int slot = overflowPage * BUCKET_SIZE;
+		while (!isSlotEmpty(slot)) {
+			slot++;
+		}
+		writeSlot(slot, entry[ID_POS_OFFSET], entry[ID_LEN_OFFSET],
+				entry[SEQ_POS_OFFSET], entry[SEQ_LEN_OFFSET],
+				entry[FINGERPRINT_OFFSET]);
+		bucketStore.putInt(page, OVERFLOW_COUNT_OFFSET,
+				getOverflowCount(page) + 1);
+	}
+
+	/**
+	 * Empties a slot of an overflow page, unlinking and freeing the page if it
+	 * was the last entry on it
+	 * 
+	 * @param page
+	 *            of the bucket the chain belongs to
+	 * @param slot
+	 * @throws IOException
+	 */
+	private void removeFromOverflow(int page, int slot) throws IOException {
+		int overflowPage = slot / BUCKET_SIZE;
+		clearSlot(slot);
+		bucketStore.putInt(page, OVERFLOW_COUNT_OFFSET,
+				getOverflowCount(page) - 1);
+		if (getLiveCount(overflowPage) > 0) {
+			return;
+		}
+		int previous = page;
+		while (getOverflowPage(previous) != overflowPage) {
+			previous = getOverflowPage(previous);
+		}
+		bucketStore.putInt(previous, OVERFLOW_PAGE_OFFSET,
+				getOverflowPage(overflowPage));
+		freeOverflowPage(overflowPage);
+	}
+
+	/**
+	 * Takes a page off the free list, or adds one to the end of the hash file
+	 * 
+	 * @return the page, empty and unlinked
+	 * @throws IOException
+	 */
+	private int allocateOverflowPage() throws IOException {
+		int page = freeOverflowPage;
+		if (page != EMPTY_SLOT) {
+			freeOverflowPage = getOverflowPage(page);
+			bucketStore.putInt(page, OVERFLOW_PAGE_OFFSET, EMPTY_SLOT);
+			return page;
+		}
+		page = numBuckets + numOverflowPages;
+		bucketStore.setNumBuckets(page + 1, EMPTY_BUCKET);
+		bucketStore.putInt(page, OVERFLOW_COUNT_OFFSET, OVERFLOW_PAGE_MARK);
+		numOverflowPages++;
+		addSpare();
+		return page;
+	}
+
+	/**
+	 * Records that buckets created from now on come after all the overflow
+	 * pages there are now
+	 */
+	private void addSpare() {
+		if (numSpares > 0 && spareBuckets[numSpares - 1] == numBuckets) {
+			sparePages[numSpares - 1] = numOverflowPages;
+		} else {
+			if (numSpares == spareBuckets.length) {
+				spareBuckets = Arrays.copyOf(spareBuckets, numSpares * 2);
+				sparePages = Arrays.copyOf(sparePages, numSpares * 2);
+			}
+			spareBuckets[numSpares] = numBuckets;
+			sparePages[numSpares] = numOverflowPages;
+			numSpares++;
+		}
+	}
+
+	/**
+	 * Puts an empty overflow page on the free list
+	 * 
+	 * @param page
+	 * @throws IOException
+	 */
+	private void freeOverflowPage(int page) throws IOException {
+		bucketStore.putInt(page, OVERFLOW_PAGE_OFFSET, freeOverflowPage);
+		freeOverflowPage = page;
+	}
+
+	/**
+	 * Removes the entry in a slot by shifting the entries after it back one
+	 * slot, up to the first empty slot or entry already in its home slot.
+	 * Robin Hood placement only; leaves no tombstone.
+	 * 
+	 * @param slot
+	 * @throws IOException
+	 */
+	private void shiftBack(int slot) throws IOException {
+		int next = nextSlot(slot);
+		int removed = slot;
+		while (next != removed && !isSlotEmpty(next)
+				&& getDisplacement(next) > 0) {
+			writeSlot(slot, getSequenceIdOffset(next),
+					getSequenceIdLength(next), getSequenceOffset(next),
+					getSequenceLength(next), getSlotValue(next,
+							FINGERPRINT_OFFSET));
+			slot = next;
+			next = nextSlot(next);
+		}
+		clearSlot(slot);
+	}
+
+	/**
+	 * Removes a sequence from the HashTable
+	 * 
+	 * @param sequenceID
+	 * @throws SequenceNotFoundException
+	 * @throws IOException
+	 */
+	public void remove(String sequenceID) throws SequenceNotFoundException,
+			IOException {
+		remove(sequenceID, System.out);
+	}
+
+	/**
+	 * Removes a sequence from the HashTable, printing it
+	 * 
+	 * @param sequenceID
+	 * @param out
+	 * @throws SequenceNotFoundException
+	 * @throws IOException
+	 */
+	public void remove(String sequenceID, PrintStream out)
+			throws SequenceNotFoundException, IOException {
+		int slot = findSlot(sequenceID);
+		if (slot < 0) {
+			throw new SequenceNotFoundException(sequenceID);
+		}
+
+		// Print the full sequence
+		out.println("Sequence Removed: " + sequenceID);
+		printSequence(slot, out);
+
+		removeEntry(sequenceID, slot);
+	}
+
+	/**
+	 * Removes the entry in a slot, without printing anything
+	 * 
+	 * @param sequenceID
+	 *            the ID stored in the slot
+	 * @param slot
+	 *            as returned by findSlot
+	 * @throws IOException
+	 */
+	protected void removeEntry(String sequenceID, int slot) throws IOException {
+		if (kmerIndex != null) {
+			kmerIndex.remove(new MemoryHandle(getSequenceIdOffset(slot),
+					getSequenceIdLength(slot)), openSequence(slot));
+		}
+		if (idIndex != null) {
+			idIndex.remove(sequenceID, new MemoryHandle(
+					getSequenceIdOffset(slot), getSequenceIdLength(slot)));
+		}
+		// Remove the sequence ID from MM
+		memoryManager.releaseSequence(getSequenceIdOffset(slot),
+				getSequenceIdLength(slot));
+		// Remove the sequence from MM
+		memoryManager.releaseSequence(getSequenceOffset(slot),
+				getSequenceLength(slot));
+		// Clear the slot in the hash table
+		int bucket = homeSlot(sequenceID) / BUCKET_SIZE;
+		if (slot / BUCKET_SIZE != bucket) {
+			removeFromOverflow(bucket, slot);
+		} else if (robinHood) {
+			shiftBack(slot);
+		} else {
+			removeSlot(slot);
+		}
+		countEntries(-1);
 
-	protected RandomAccessFile hashFile;
+		if (tombstoneRatio > 0
+				&& getTombstoneCount(bucket) >= tombstoneRatio * BUCKET_SIZE) {
+			reorganizeBucket(bucket);
+		}
+	}
 
 	/**
-	 * Constructs a HashTable
+	 * Searches for a sequence in the HashTable
 	 * 
-	 * @param fileName
-	 * @param numSlots
+	 * @param sequenceID
+	 * @throws SequenceNotFoundException
 	 * @throws IOException
 	 */
-	public HashTable(String fileName, int numSlots,
-			MemoryManager sequenceFileMemoryManager) throws IOException {
-		this.numSlots = numSlots;
-		this.memoryManager = sequenceFileMemoryManager;
-		// Create hash table
-		hashFile = new RandomAccessFile(fileName, "rw");
-		emptyHashFile();
+	public void search(String sequenceID) throws SequenceNotFoundException,
+			IOException {
+		search(sequenceID, System.out);
 	}
 
 	/**
-	 * Empties the contents of the hash file and fills the empty slots
+	 * Searches for a sequence in the HashTable, printing it
 	 * 
+	 * @param sequenceID
+	 * @param out
+	 * @throws SequenceNotFoundException
 	 * @throws IOException
 	 */
-	private void emptyHashFile() throws IOException {
-		hashFile.setLength(0);
-		hashFile.setLength(numSlots * BYTES_IN_BUCKET);
-		hashFile.seek(0);
-		for (int i = 0; i < numSlots * SLOT_SIZE; i++) {
-			hashFile.writeInt(EMPTY_SLOT);
+	public void search(String sequenceID, PrintStream out)
+			throws SequenceNotFoundException, IOException {
+		int slot = findSlot(sequenceID);
+		if (slot < 0) {
+			throw new SequenceNotFoundException(sequenceID);
 		}
+		// Print the full sequence
+		printSequence(slot, out);
 	}
 
 	/**
-	 * Reads a bucket
+	 * Looks up where a sequence is stored, without reading it
 	 * 
-	 * @param slot
-	 * @return
+	 * @param sequenceID
+	 * @return the handle of the sequence, or null if the sequence ID is not
+	 *         stored
 	 * @throws IOException
 	 */
-	public int[] readBucket(int slot) throws IOException {
-		int bucketNum = slot / BUCKET_SIZE;
-
-		if (currentBucketNum != bucketNum || currentBucketDirty) {
-			int[] bucket = new int[SLOTS_IN_BUCKET];
-			byte[] bucket_bytes = new byte[BYTES_IN_BUCKET];
-			// System.out.println("Reading Bucket #" + bucketNum
-			// + (currentBucketDirty ? " (dirty)" : "") + " (slot:" + slot
-			// + ")");
-			// Seek to beginning of bucket
-			hashFile.seek((long) bucketNum * BYTES_IN_BUCKET);
-			// Read entire bucket into memory
-			hashFile.read(bucket_bytes);
-
-			// Convert the bucket to integer array
-			for (int i = 0; i < SLOTS_IN_BUCKET; i++) {
-				bucket[i] = (bucket_bytes[i * SLOT_ITEM_BYTES] << 24)
-						| (bucket_bytes[i * SLOT_ITEM_BYTES + 1] << 16)
-						| (bucket_bytes[i * SLOT_ITEM_BYTES + 2] << 8)
-						| (bucket_bytes[i * SLOT_ITEM_BYTES + 3]);
-			}
-			currentBucket = bucket;
-			currentBucketNum = bucketNum;
-			currentBucketDirty = false;
+	public MemoryHandle findSequence(String sequenceID) throws IOException {
+		int slot = findSlot(sequenceID);
+		if (slot < 0) {
+			return null;
 		}
+		return new MemoryHandle(getSequenceOffset(slot),
+				getSequenceLength(slot));
+	}
 
-		return currentBucket;
+	/**
+	 * Looks up a sequence without printing anything
+	 * 
+	 * @param sequenceID
+	 * @return the sequence, or null if the sequence ID is not stored
+	 * @throws IOException
+	 */
+	public String getSequence(String sequenceID) throws IOException {
+		int slot = findSlot(sequenceID);
+		if (slot < 0) {
+			return null;
+		}
+		return memoryManager.retrieveSequence(getSequenceOffset(slot),
+				getSequenceLength(slot));
 	}
 
 	/**
-	 * Inserts a sequence into the HashTable
+	 * Probes for the slot holding a sequence ID. The ID is packed once here,
+	 * for every slot the probe compares it with.
 	 * 
 	 * @param sequenceID
-	 * @param sequenceHandle
-	 * @throws HashTableFullException
-	 * @throws DuplicateSequenceException
+	 * @return the slot, or -1 if the sequence ID is not stored
 	 * @throws IOException
 	 */
-	public void insert(String sequenceID, MemoryHandle sequenceIdHandle,
-			MemoryHandle sequenceHandle) throws HashTableFullException,
-			DuplicateSequenceException, IOException {
+	protected int findSlot(String sequenceID) throws IOException {
+		return findSlot(sequenceID, fingerprint(sequenceID),
+				packId(sequenceID));
+	}
 
-		int homeSlot = sfold(sequenceID);
+	/**
+	 * Probes for the slot holding a sequence ID
+	 * 
+	 * @param sequenceID
+	 * @param fingerprint
+	 *            fingerprint(sequenceID)
+	 * @param packedId
+	 *            packId(sequenceID)
+	 * @return the slot, or -1 if the sequence ID is not stored
+	 * @throws IOException
+	 */
+	private int findSlot(String sequenceID, int fingerprint, byte[] packedId)
+			throws IOException {
+		int homeSlot = homeSlot(sequenceID);
 		int currentSlot = homeSlot;
-
-		// Read the bucket from disk where this sequence will be inserted
-		readBucket(homeSlot);
-
+		int distance = 0; // From the home slot
+		int probes = 0; // Counted once, as several threads may be looking
 		do {
-			if (isSlotAvailable(currentSlot)) {
-				// We found an open slot, write to it
-				writeSlot(currentSlot, sequenceIdHandle.getByteOffset(),
-						sequenceIdHandle.getSequenceLength(),
-						sequenceHandle.getByteOffset(),
-						sequenceHandle.getSequenceLength());
-
-				return;
-
-			} else if (getSequenceIdLength(currentSlot) == sequenceID.length()) {
-				// Check if this sequence is already stored.
-				// Since this requires querying the MemoryManager, only check
-				// when the sequences are the same length
-				if (sequenceID.equals(retrieveSequenceID(currentSlot))) {
-					throw new DuplicateSequenceException(sequenceID);
-				}
+			probes++;
+			if (isSlotEmpty(currentSlot)) {
+				break;
+			} else if (isSlotTombstone(currentSlot)) {
+				// Keep looking
+			} else if (slotMatches(currentSlot, sequenceID, fingerprint,
+					packedId)) {
+				slotsProbed.addAndGet(probes);
+				return currentSlot;
+			} else if (robinHood && getDisplacement(currentSlot) < distance) {
+				// The ID would have taken this slot if it were stored
+				break;
 			}
-
-			// Move to the next slot in the probing sequence
 			currentSlot = nextSlot(currentSlot);
+			distance++;
+		} while (currentSlot != homeSlot);
+		slotsProbed.addAndGet(probes);
 
-		} while (currentSlot != homeSlot); // loop while we haven't returned
-											// back to the slot we started on
-
-		// If we didnt insert (and return) in the loop, we must have a full
-		// table
-		throw new HashTableFullException();
+		// Not in the bucket, but it may have overflowed
+		return findInOverflow(homeSlot / BUCKET_SIZE, sequenceID, fingerprint,
+				packedId);
 	}
 
 	/**
-	 * Removes a sequence from the HashTable
+	 * Looks for a sequence ID in the overflow chain of a bucket. Nothing is
+	 * read past the bucket's header if the chain is empty.
 	 * 
+	 * @param page
+	 *            of the bucket
 	 * @param sequenceID
-	 * @throws SequenceNotFoundException
+	 * @param fingerprint
+	 *            fingerprint(sequenceID)
+	 * @param packedId
+	 *            packId(sequenceID)
+	 * @return the slot, or -1 if the sequence ID is not in the chain
 	 * @throws IOException
 	 */
-	public void remove(String sequenceID) throws SequenceNotFoundException,
-			IOException {
-		int homeSlot = sfold(sequenceID);
-		int currentSlot = homeSlot;
-		readBucket(homeSlot);
-		do {
-			if (isSlotEmpty(currentSlot)) {
-				throw new SequenceNotFoundException(sequenceID);
-			} else if (!isSlotTombstone(currentSlot)
-					&& getSequenceIdLength(currentSlot) == sequenceID.length()) {
-				// Check if we found it
-				if (sequenceID.equals(retrieveSequenceID(currentSlot))) {
-					// Print the full sequence
-					System.out.println("Sequence Removed: " + sequenceID);
-					printSequence(currentSlot);
-
-					// Remove the sequence ID from MM
-					memoryManager.removeSequence(
-							getSequenceIdOffset(currentSlot),
-							getSequenceIdLength(currentSlot));
-					// Remove the sequence from MM
-					memoryManager.removeSequence(
-							getSequenceOffset(currentSlot),
-							getSequenceLength(currentSlot));
-					// Clear the slot in the hash table
-					removeSlot(currentSlot);
-
-					if ((int) currentSlot / BUCKET_SIZE == currentBucketNum) {
-						currentBucketDirty = true;
-					}
-
-					return;
+	private int findInOverflow(int page, String sequenceID, int fingerprint,
+			byte[] packedId) throws IOException {
+		if (getOverflowCount(page) == 0) {
+			return -1;
+		}
+		int probes = 0;
+		for (page = getOverflowPage(page); page != EMPTY_SLOT; page = getOverflowPage(page)) {
+			int firstSlot = page * BUCKET_SIZE;
+			for (int slot = firstSlot; slot < firstSlot + BUCKET_SIZE; slot++) {
+				probes++;
+				if (!isSlotEmpty(slot)
+						&& slotMatches(slot, sequenceID, fingerprint, packedId)) {
+					slotsProbed.addAndGet(probes);
+					return slot;
 				}
 			}
-			currentSlot = nextSlot(currentSlot);
-		} while (currentSlot != homeSlot);
+		}
+		slotsProbed.addAndGet(probes);
+		return -1;
+	}
 
-		// Bucket is full, and sequenceID wasn't found
-		throw new SequenceNotFoundException(sequenceID);
+	/**
+	 * Checks if an occupied slot holds the sequence ID. The fingerprint and
+	 * length are compared first, so the MemoryManager is only asked for the
+	 * stored ID when it is almost certainly a match, about once an
+	 * operation. The packed ID, packed once by the caller for the whole
+	 * lookup, is then compared with the stored bytes, which are not decoded.
+	 * 
+	 * @param slot
+	 * @param sequenceID
+	 * @param fingerprint
+	 *            fingerprint(sequenceID)
+	 * @param packedId
+	 *            packId(sequenceID)
+	 * @return
+	 * @throws IOException
+	 */
+	protected boolean slotMatches(int slot, String sequenceID,
+			int fingerprint, byte[] packedId) throws IOException {
+		if (getFingerprint(slot) != fingerprint
+				|| getSequenceIdLength(slot) != sequenceID.length()) {
+			return false;
+		}
+		return packedId != null
+				&& memoryManager.sequenceEquals(getSequenceIdOffset(slot),
+						sequenceID.length(), packedId);
 	}
 
 	/**
-	 * Searches for a sequence in the HashTable
+	 * Packs a sequence ID the way the MemoryManager stores it
 	 * 
 	 * @param sequenceID
-	 * @throws SequenceNotFoundException
+	 * @return the packed ID, or null if it has a character other than A, C,
+	 *         G or T, since no stored ID decodes to it
+	 */
+	private static byte[] packId(String sequenceID) {
+		byte[] packedId = new byte[DnaCodec.encodedLength(sequenceID.length())];
+		return DnaCodec.encodeExact(sequenceID, 0, sequenceID.length(),
+				packedId, 0) ? packedId : null;
+	}
+
+	/**
+	 * Prints a full sequence located in the indicated slot
+	 * 
+	 * @param slot
 	 * @throws IOException
 	 */
-	public void search(String sequenceID) throws SequenceNotFoundException,
-			IOException {
-		int homeSlot = sfold(sequenceID);
-		int currentSlot = homeSlot;
-		readBucket(homeSlot);
-		do {
-			if (isSlotEmpty(currentSlot)) {
-				throw new SequenceNotFoundException(sequenceID);
-			} else if (!isSlotTombstone(currentSlot)
-					&& getSequenceIdLength(currentSlot) == sequenceID.length()) {
-				// Check if we found it
-				if (sequenceID.equals(retrieveSequenceID(currentSlot))) {
-					// Print the full sequence
-					printSequence(currentSlot);
-					return;
+	public void printSequence(int slot) throws IOException {
+		printSequence(slot, System.out);
+	}
+
+	/**
+	 * Prints a full sequence located in the indicated slot
+	 * 
+	 * @param slot
+	 * @param out
+	 * @throws IOException
+	 */
+	public void printSequence(int slot, PrintStream out) throws IOException {
+		memoryManager.printSequence(new MemoryHandle(getSequenceOffset(slot),
+				getSequenceLength(slot)), out);
+	}
+
+	/**
+	 * Finds the sequences that contain a pattern. With a k-mer index, only the
+	 * sequences in the lists of the pattern's rarest k-mers are read;
+	 * without one, or for a pattern shorter than k, every sequence is.
+	 * 
+	 * @param pattern
+	 *            bases, in either case
+	 * @return the IDs of the sequences, sorted
+	 * @throws IOException
+	 */
+	public List<String> findContaining(String pattern)
+			throws IOException {
+		pattern = pattern.toUpperCase();
+		List<String> found = new ArrayList<String>();
+		long[] candidates = (kmerIndex != null) ? kmerIndex
+				.candidates(pattern) : null;
+		if (candidates != null) {
+			for (long candidate : candidates) {
+				String sequenceID = memoryManager.retrieveSequence(
+						(int) (candidate >>> 32), (int) candidate);
+				int slot = findSlot(sequenceID);
+				if (slot >= 0 && sequenceContains(slot, pattern)) {
+					found.add(sequenceID);
 				}
 			}
-			currentSlot = nextSlot(currentSlot);
-		} while (currentSlot != homeSlot);
+		} else {
+			for (int slot = 0; slot < slotCount(); slot++) {
+				if (!isSlotAvailable(slot) && sequenceContains(slot, pattern)) {
+					found.add(retrieveSequenceID(slot));
+				}
+			}
+		}
+		Collections.sort(found);
+		return found;
+	}
+
+	/**
+	 * Finds the sequence IDs that start with a prefix. With an ID index, only
+	 * the pages of the index holding them are read; without one, every ID
+	 * is.
+	 * 
+	 * @param prefix
+	 *            bases, in either case
+	 * @return the IDs, sorted
+	 * @throws IOException
+	 */
+	public List<String> findWithPrefix(String prefix)
+			throws IOException {
+		prefix = prefix.toUpperCase();
+		if (idIndex != null) {
+			return idIndex.withPrefix(prefix);
+		}
+		List<String> found = new ArrayList<String>();
+		for (int slot = 0; slot < slotCount(); slot++) {
+			String sequenceID = retrieveSequenceID(slot);
+			if (sequenceID != null && sequenceID.startsWith(prefix)) {
+				found.add(sequenceID);
+			}
+		}
+		Collections.sort(found);
+		return found;
+	}
 
-		throw new SequenceNotFoundException(sequenceID);
+	/**
+	 * Finds the sequence IDs in a range, in lexicographic order. With an ID
+	 * index, only the pages of the index holding them are read; without one,
+	 * every ID is.
+	 * 
+	 * @param from
+	 *            first ID of the range, bases in either case
+	 * @param to
+	 *            last ID of the range, bases in either case
+	 * @return the IDs from from to to, both included, sorted
+	 * @throws IOException
+	 */
+	public List<String> findInRange(String from, String to)
+			throws IOException {
+		from = from.toUpperCase();
+		to = to.toUpperCase();
+		if (idIndex != null) {
+			return idIndex.inRange(from, to);
+		}
+		List<String> found = new ArrayList<String>();
+		for (int slot = 0; slot < slotCount(); slot++) {
+			String sequenceID = retrieveSequenceID(slot);
+			if (sequenceID != null && sequenceID.compareTo(from) >= 0
+					&& sequenceID.compareTo(to) <= 0) {
+				found.add(sequenceID);
+			}
+		}
+		Collections.sort(found);
+		return found;
 	}
 
 	/**
-	 * Prints a full sequence located in the indicated slot
+	 * Reads the sequence in a slot a chunk at a time, looking for a pattern
 	 * 
 	 * @param slot
+	 * @param pattern
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean sequenceContains(int slot, String pattern)
+			throws IOException {
+		if (pattern.length() == 0) {
+			return true;
+		}
+		int length = getSequenceLength(slot);
+		if (length < pattern.length()) {
+			return false;
+		}
+		SequenceReader sequence = openSequence(slot);
+		// The end of each chunk is kept, for a match that spans two chunks
+		StringBuilder window = new StringBuilder();
+		char[] buffer = new char[Math.min(length, PRINT_BUFFER_SIZE)];
+		int n;
+		while ((n = sequence.read(buffer, 0, buffer.length)) > 0) {
+			window.append(buffer, 0, n);
+			if (window.indexOf(pattern) >= 0) {
+				return true;
+			}
+			window.delete(0, Math.max(0, window.length()
+					- (pattern.length() - 1)));
+		}
+		return false;
+	}
+
+	/**
+	 * @param slot
+	 * @return a reader of the sequence stored in a slot
 	 */
-	public void printSequence(int slot) {
-		String sequence = memoryManager.retrieveSequence(
-				getSequenceOffset(slot), getSequenceLength(slot));
-		System.out.println(sequence);
+	private SequenceReader openSequence(int slot) throws IOException {
+		return memoryManager.openSequence(getSequenceOffset(slot),
+				getSequenceLength(slot));
 	}
 
 	/**
@@ -254,19 +1801,26 @@ public class HashTable {
 	 * @throws IOException
 	 */
 	public void print() throws IOException {
-		System.out.println("SequenceIDs:");
-		for (int slot = 0; slot < numSlots; slot++) {
-			// Retrieve each bucket from hash file
-			if (slot % BUCKET_SIZE == 0) {
-				readBucket(slot);
-			}
+		print(System.out);
+	}
+
+	/**
+	 * Prints every sequence ID and its slot, then the free blocks of the
+	 * memory file
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void print(PrintStream out) throws IOException {
+		out.println("SequenceIDs:");
+		for (int slot = 0; slot < slotCount(); slot++) {
 			if (!isSlotAvailable(slot)) {
-				System.out.print("  ");
-				System.out.print(retrieveSequenceID(slot));
-				System.out.println(": hash slot [" + slot + "]");
+				out.print("  ");
+				out.print(retrieveSequenceID(slot));
+				out.println(": hash slot [" + slot + "]");
 			}
 		}
-		memoryManager.printFreeBlocks();
+		memoryManager.printFreeBlocks(out);
 	}
 
 	/**
@@ -274,8 +1828,9 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
 	 */
-	public String retrieveSequenceID(int slot) {
+	public String retrieveSequenceID(int slot) throws IOException {
 		// Check if a sequence id is actually stored in this slot
 		if (isSlotAvailable(slot)) {
 			return null;
@@ -292,25 +1847,91 @@ public class HashTable {
 	 * @param sequenceIdLength
 	 * @param sequenceOffset
 	 * @param sequenceLength
+	 * @param fingerprint
+	 *            the ID's fingerprint, with its home position in the bucket
+	 *            shifted into the high byte
 	 * @throws IOException
 	 */
 	public void writeSlot(int slot, MemoryHandle sequenceIdHandle,
-			MemoryHandle sequenceHandle) throws IOException {
+			MemoryHandle sequenceHandle, int fingerprint) throws IOException {
 		writeSlot(slot, sequenceIdHandle.getByteOffset(),
 				sequenceIdHandle.getSequenceLength(),
 				sequenceHandle.getByteOffset(),
-				sequenceHandle.getSequenceLength());
+				sequenceHandle.getSequenceLength(), fingerprint);
 	}
 
 	public void writeSlot(int slot, int sequenceIdOffset, int sequenceIdLength,
-			int sequenceOffset, int sequenceLength) throws IOException {
+			int sequenceOffset, int sequenceLength, int fingerprint)
+			throws IOException {
 		// System.out.println("Writing "+sequenceIdOffset+" "+sequenceIdLength+" "+sequenceOffset+" "+sequenceLength); // Debug message
-		hashFile.seek(slot * SLOT_SIZE * SLOT_ITEM_BYTES);
-		hashFile.writeInt(sequenceIdOffset);
-		hashFile.writeInt(sequenceIdLength);
-		hashFile.writeInt(sequenceOffset);
-		hashFile.writeInt(sequenceLength);
-		currentBucketDirty = true;
+		int oldIdOffset = getSequenceIdOffset(slot);
+		if (slotListener != null && oldIdOffset >= 0) {
+			slotListener.slotCleared(slot, oldIdOffset,
+					getSequenceIdLength(slot), getSequenceOffset(slot),
+					getSequenceLength(slot));
+		}
+		int bucket = slot / BUCKET_SIZE;
+		int index = bucketInd(slot);
+		// Keep the bucket's counts up to date
+		if (oldIdOffset < 0 && sequenceIdOffset >= 0) {
+			bucketStore.putInt(bucket, LIVE_COUNT_OFFSET,
+					getLiveCount(bucket) + 1);
+		} else if (oldIdOffset >= 0 && sequenceIdOffset < 0) {
+			bucketStore.putInt(bucket, LIVE_COUNT_OFFSET,
+					getLiveCount(bucket) - 1);
+		}
+		if (oldIdOffset == TOMBSTONE_SLOT && sequenceIdOffset != TOMBSTONE_SLOT) {
+			bucketStore.putInt(bucket, TOMBSTONE_COUNT_OFFSET,
+					getTombstoneCount(bucket) - 1);
+		} else if (oldIdOffset != TOMBSTONE_SLOT
+				&& sequenceIdOffset == TOMBSTONE_SLOT) {
+			bucketStore.putInt(bucket, TOMBSTONE_COUNT_OFFSET,
+					getTombstoneCount(bucket) + 1);
+		}
+		bucketStore.putInt(bucket, index + ID_POS_OFFSET, sequenceIdOffset);
+		bucketStore.putInt(bucket, index + ID_LEN_OFFSET, sequenceIdLength);
+		bucketStore.putInt(bucket, index + SEQ_POS_OFFSET, sequenceOffset);
+		bucketStore.putInt(bucket, index + SEQ_LEN_OFFSET, sequenceLength);
+		bucketStore.putInt(bucket, index + FINGERPRINT_OFFSET, fingerprint);
+		if (slotListener != null && sequenceIdOffset >= 0) {
+			slotListener.slotFilled(slot, sequenceIdOffset, sequenceIdLength,
+					sequenceOffset, sequenceLength);
+		}
+	}
+
+	/**
+	 * Points one of the handles of a slot at a new offset, eg after the
+	 * memory manager moved the block
+	 * 
+	 * @param slot
+	 * @param field
+	 *            ID_POS_OFFSET or SEQ_POS_OFFSET
+	 * @param newOffset
+	 * @throws IOException
+	 */
+	public void relocateHandle(int slot, int field, int newOffset)
+			throws IOException {
+		int sequenceIdOffset = getSequenceIdOffset(slot);
+		int sequenceOffset = getSequenceOffset(slot);
+		if (field == ID_POS_OFFSET) {
+			if (kmerIndex != null) {
+				kmerIndex.moveId(new MemoryHandle(sequenceIdOffset,
+						getSequenceIdLength(slot)), newOffset,
+						openSequence(slot));
+			}
+			if (idIndex != null) {
+				// The ID was copied to newOffset already
+				idIndex.moveId(memoryManager.retrieveSequence(newOffset,
+						getSequenceIdLength(slot)), new MemoryHandle(
+						sequenceIdOffset, getSequenceIdLength(slot)), newOffset);
+			}
+			sequenceIdOffset = newOffset;
+		} else {
+			sequenceOffset = newOffset;
+		}
+		writeSlot(slot, sequenceIdOffset, getSequenceIdLength(slot),
+				sequenceOffset, getSequenceLength(slot), getSlotValue(slot,
+						FINGERPRINT_OFFSET));
 	}
 
 	/**
@@ -320,7 +1941,8 @@ public class HashTable {
 	 * @throws IOException
 	 */
 	public void clearSlot(int slot) throws IOException {
-		writeSlot(slot, EMPTY_SLOT, EMPTY_SLOT, EMPTY_SLOT, EMPTY_SLOT);
+		writeSlot(slot, EMPTY_SLOT, EMPTY_SLOT, EMPTY_SLOT, EMPTY_SLOT,
+				EMPTY_SLOT);
 	}
 
 	/**
@@ -331,7 +1953,7 @@ public class HashTable {
 	 */
 	public void removeSlot(int slot) throws IOException {
 		writeSlot(slot, TOMBSTONE_SLOT, TOMBSTONE_SLOT, TOMBSTONE_SLOT,
-				TOMBSTONE_SLOT);
+				TOMBSTONE_SLOT, TOMBSTONE_SLOT);
 	}
 
 	/**
@@ -339,9 +1961,10 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
 	 */
-	protected int getSequenceIdLength(int slot) {
-		return currentBucket[currentBucketInd(slot) + ID_LEN_OFFSET];
+	protected int getSequenceIdLength(int slot) throws IOException {
+		return getSlotValue(slot, ID_LEN_OFFSET);
 	}
 
 	/**
@@ -349,9 +1972,10 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
 	 */
-	protected int getSequenceIdOffset(int slot) {
-		return currentBucket[currentBucketInd(slot) + ID_POS_OFFSET];
+	protected int getSequenceIdOffset(int slot) throws IOException {
+		return getSlotValue(slot, ID_POS_OFFSET);
 	}
 
 	/**
@@ -359,9 +1983,10 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
 	 */
-	protected int getSequenceLength(int slot) {
-		return currentBucket[currentBucketInd(slot) + SEQ_LEN_OFFSET];
+	protected int getSequenceLength(int slot) throws IOException {
+		return getSlotValue(slot, SEQ_LEN_OFFSET);
 	}
 
 	/**
@@ -369,9 +1994,80 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
+	 */
+	protected int getSequenceOffset(int slot) throws IOException {
+		return getSlotValue(slot, SEQ_POS_OFFSET);
+	}
+
+	/**
+	 * Returns the sequence ID fingerprint stored in a slot
+	 * 
+	 * @param slot
+	 * @return
+	 * @throws IOException
+	 */
+	protected int getFingerprint(int slot) throws IOException {
+		return getSlotValue(slot, FINGERPRINT_OFFSET) & FINGERPRINT_MASK;
+	}
+
+	/**
+	 * Returns the number of tombstones in a bucket
+	 * 
+	 * @param bucket
+	 * @return
+	 * @throws IOException
+	 */
+	protected int getTombstoneCount(int bucket) throws IOException {
+		return bucketStore.getInt(bucket, TOMBSTONE_COUNT_OFFSET);
+	}
+
+	/**
+	 * Returns the number of live entries in a bucket
+	 * 
+	 * @param bucket
+	 * @return
+	 * @throws IOException
+	 */
+	protected int getLiveCount(int bucket) throws IOException {
+		return bucketStore.getInt(bucket, LIVE_COUNT_OFFSET);
+	}
+
+	/**
+	 * Returns the first overflow page linked from a bucket (or the next page
+	 * linked from an overflow page)
+	 * 
+	 * @param page
+	 * @return the page, or EMPTY_SLOT
+	 * @throws IOException
+	 */
+	protected int getOverflowPage(int page) throws IOException {
+		return bucketStore.getInt(page, OVERFLOW_PAGE_OFFSET);
+	}
+
+	/**
+	 * Returns the number of entries in the overflow chain of a bucket
+	 * 
+	 * @param page
+	 *            of the bucket
+	 * @return
+	 * @throws IOException
+	 */
+	protected int getOverflowCount(int page) throws IOException {
+		return bucketStore.getInt(page, OVERFLOW_COUNT_OFFSET);
+	}
+
+	/**
+	 * Returns how many slots past its home slot the entry in a slot is
+	 * 
+	 * @param slot
+	 * @return
+	 * @throws IOException
 	 */
-	protected int getSequenceOffset(int slot) {
-		return currentBucket[currentBucketInd(slot) + SEQ_POS_OFFSET];
+	protected int getDisplacement(int slot) throws IOException {
+		int homeIndex = getSlotValue(slot, FINGERPRINT_OFFSET)
+				>>> HOME_INDEX_SHIFT;
+		return (slot % BUCKET_SIZE - homeIndex + BUCKET_SIZE) % BUCKET_SIZE;
 	}
 
 	/**
@@ -379,9 +2075,10 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
 	 */
-	protected boolean isSlotEmpty(int slot) {
-		return (currentBucket[currentBucketInd(slot)] == EMPTY_SLOT);
+	protected boolean isSlotEmpty(int slot) throws IOException {
+		return (getSlotValue(slot, ID_POS_OFFSET) == EMPTY_SLOT);
 	}
 
 	/**
@@ -389,9 +2086,23 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
+	 */
+	protected boolean isSlotTombstone(int slot) throws IOException {
+		return (getSlotValue(slot, ID_POS_OFFSET) == TOMBSTONE_SLOT);
+	}
+
+	/**
+	 * Reads one of the values stored in a slot
+	 * 
+	 * @param slot
+	 * @param field
+	 *            offset of the value within the slot, eg ID_POS_OFFSET
+	 * @return
+	 * @throws IOException
 	 */
-	protected boolean isSlotTombstone(int slot) {
-		return (currentBucket[currentBucketInd(slot)] == TOMBSTONE_SLOT);
+	protected int getSlotValue(int slot, int field) throws IOException {
+		return bucketStore.getInt(slot / BUCKET_SIZE, bucketInd(slot) + field);
 	}
 
 	/**
@@ -400,10 +2111,10 @@ public class HashTable {
 	 * @param slot
 	 * @return
 	 */
-	protected int currentBucketInd(int slot) {
+	protected int bucketInd(int slot) {
 		// System.out.println("  "+slot+"->"+((slot % BUCKET_SIZE) *
 		// SLOT_SIZE));
-		return (slot % BUCKET_SIZE) * SLOT_SIZE;
+		return BUCKET_HEADER_SIZE + (slot % BUCKET_SIZE) * SLOT_SIZE;
 	}
 
 	/**
@@ -411,8 +2122,9 @@ public class HashTable {
 	 * 
 	 * @param slot
 	 * @return
+	 * @throws IOException
 	 */
-	protected boolean isSlotAvailable(int slot) {
+	protected boolean isSlotAvailable(int slot) throws IOException {
 		return isSlotEmpty(slot) || isSlotTombstone(slot);
 	}
 
@@ -431,28 +2143,74 @@ public class HashTable {
 	}
 
 	/**
-	 * Hashes sequenceIDs
+	 * Computes the 24-bit fingerprint stored with a sequence ID. It is mixed
+	 * independently of the slot hash, so IDs that collide on a slot still almost
+	 * always have different fingerprints.
 	 * 
-	 * @param s
-	 * @param M
+	 * @param sequenceID
 	 * @return
 	 */
-	private int sfold(String s) {
-		int intLength = s.length() / 4;
-		long sum = 0;
-		for (int j = 0; j < intLength; j++) {
-			char c[] = s.substring(j * 4, (j * 4) + 4).toCharArray();
-			for (int k = 0; k < c.length; k++) {
-				sum += c[k] << (8 * k);
-			}
+	protected static int fingerprint(String sequenceID) {
+		long h = 0xcbf29ce484222325L; // FNV-1a
+		for (int i = 0; i < sequenceID.length(); i++) {
+			h = (h ^ sequenceID.charAt(i)) * 0x100000001b3L;
 		}
+		// Final avalanche so every input bit reaches the low 32 bits
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h & FINGERPRINT_MASK;
+	}
+
+	/**
+	 * Gets the slot where probing for a sequence ID starts
+	 * 
+	 * @param sequenceID
+	 * @return
+	 */
+	protected int homeSlot(String sequenceID) {
+		int address = homeAddress(sequenceID);
+		return pageOf(address / BUCKET_SIZE) * BUCKET_SIZE + address
+				% BUCKET_SIZE;
+	}
 
-		char c[] = s.substring(intLength * 4).toCharArray();
-		for (int k = 0; k < c.length; k++) {
-			sum += c[k] << (8 * k);
+	/**
+	 * Gets the page of the hash file holding a bucket
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	protected int pageOf(int bucket) {
+		// Find the last run of buckets starting at or before this one
+		int overflowPages = 0;
+		int low = 0;
+		int high = numSpares - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (spareBuckets[mid] <= bucket) {
+				overflowPages = sparePages[mid];
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
 		}
+		return bucket + overflowPages;
+	}
 
-		sum = (sum * sum) >> 8;
-		return (int) (Math.abs(sum) % this.numSlots);
+	/**
+	 * Gets the home slot of a sequence ID as if there were no overflow pages
+	 * 
+	 * @param sequenceID
+	 * @return
+	 */
+	private int homeAddress(String sequenceID) {
+		long hash = hasher.hash(sequenceID);
+		long slots = (long) addressSlots << level;
+		int slot = (int) (hash % slots);
+		if (slot / BUCKET_SIZE < splitBucket) {
+			// This bucket was split, use the next level's address
+			slot = (int) (hash % (slots << 1));
+		}
+		return slot;
 	}
 }
@@ -0,0 +1,630 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A B+-tree of the sequence IDs in a table, in lexicographic order, so the
+ * IDs that start with a prefix or fall in a range are found by reading only
+ * the pages that hold them.
+ *
+ * The tree is ordered by a 64-bit key made from the ID: its first
+ * PREFIX_BASES bases packed 2 bits a base, first base highest and padded
+ * with A, followed by its length, or LONG_ID for any longer ID. Comparing
+ * keys compares the IDs, except that longer IDs with the same first
+ * PREFIX_BASES bases have the same key; those are kept in order of the
+ * offset of their ID in the memory file, so every entry of the tree is
+ * unique. An ID no longer than PREFIX_BASES is read back from its key alone;
+ * a longer one is read from the memory file.
+ *
+ * The pages are buckets of a BucketStore. A leaf holds up to MAX_ENTRIES
+ * (key, ID offset, ID length) entries and is linked to the leaves on either
+ * side; an inner page holds up to MAX_ENTRIES separators, each the smallest
+ * (key, ID offset) of the child to its right. A page that is emptied by a
+ * remove is taken out of the tree and reused, but pages are not merged, so
+ * a tree that shrank a lot may be less full than it could be.
+ *
+ * Like the k-mer index, the root and the sizes are written to the header on
+ * close and the file is marked clean. An index that was not closed cleanly
+ * is emptied when it is opened, to be filled again from the table.
+ *
+ * @author loganlinn
+ *
+ */
+public class IdIndex {
+	public static final int PAGE_INTS = 256;
+	public static final int PREFIX_BASES = 28; // Packed into a key
+
+	private static final int LONG_ID = PREFIX_BASES + 1; // Length in a key
+	private static final int LENGTH_BITS = 5; // Enough for LONG_ID
+	private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+	private static final String BASES = "ACGT";
+
+	// Layout of a page
+	private static final int LEAF_OFFSET = 0; // 1 for a leaf
+	private static final int COUNT_OFFSET = 1; // Entries or separators
+	private static final int NEXT_OFFSET = 2; // Leaf to the right, or free
+	private static final int PREVIOUS_OFFSET = 3; // Leaf to the left
+	private static final int FIRST_CHILD_OFFSET = 4; // Of an inner page
+	private static final int FIRST_ENTRY_OFFSET = 5;
+	private static final int ENTRY_INTS = 4;
+	private static final int MAX_ENTRIES = (PAGE_INTS - FIRST_ENTRY_OFFSET)
+			/ ENTRY_INTS;
+
+	// Layout of an entry; a separator has its child in place of the length
+	private static final int KEY_HIGH = 0;
+	private static final int KEY_LOW = 1;
+	private static final int ID_OFFSET = 2;
+	private static final int ID_LENGTH = 3;
+	private static final int CHILD = 3;
+
+	private static final int NO_PAGE = -1;
+	private static final int[] EMPTY_PAGE = new int[PAGE_INTS];
+
+	// Offsets of data in the index file header
+	private static final int HEADER_MAGIC = 0x49444958; // "IDIX"
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CLEAN_OFFSET = 1; // 1 after a clean close
+	private static final int ROOT_OFFSET = 2;
+	private static final int NUM_PAGES_OFFSET = 3;
+	private static final int FREE_PAGE_OFFSET = 4;
+	private static final int NUM_IDS_OFFSET = 5;
+
+	private final BucketStore store;
+	private final MemoryManager memoryManager; // Holding the long IDs
+	private int root;
+	private int numPages = 0; // Free ones included
+	private int freePage = NO_PAGE; // Chained through NEXT_OFFSET
+	private int numIds = 0;
+
+	/**
+	 * Opens an index
+	 *
+	 * @param store
+	 *            holding the pages; PAGE_INTS integers a bucket
+	 * @param memoryManager
+	 *            holding the IDs
+	 * @param reopen
+	 *            true to keep the index in the store, if it was closed
+	 *            cleanly. Otherwise the index starts empty, and if reopen was
+	 *            asked for getNumIds() is -1 until it is filled again.
+	 * @throws IOException
+	 */
+	public IdIndex(BucketStore store, MemoryManager memoryManager,
+			boolean reopen) throws IOException {
+		this.store = store;
+		this.memoryManager = memoryManager;
+		if (reopen && store.getNumBuckets() > 0
+				&& store.getHeaderInt(MAGIC_OFFSET) == HEADER_MAGIC
+				&& store.getHeaderInt(CLEAN_OFFSET) != 0) {
+			root = store.getHeaderInt(ROOT_OFFSET);
+			numPages = store.getHeaderInt(NUM_PAGES_OFFSET);
+			freePage = store.getHeaderInt(FREE_PAGE_OFFSET);
+			numIds = store.getHeaderInt(NUM_IDS_OFFSET);
+		} else {
+			clear();
+			if (reopen) {
+				numIds = -1;
+			}
+		}
+		// Until the next clean close, the file can not be trusted
+		writeHeader(false);
+		store.flush();
+	}
+
+	/**
+	 * Empties the index
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clear() throws IOException {
+		numPages = 0;
+		freePage = NO_PAGE;
+		numIds = 0;
+		store.setNumBuckets(0, EMPTY_PAGE);
+		root = newPage(true);
+	}
+
+	private void writeHeader(boolean clean) throws IOException {
+		store.putHeaderInt(MAGIC_OFFSET, HEADER_MAGIC);
+		store.putHeaderInt(CLEAN_OFFSET, clean ? 1 : 0);
+		store.putHeaderInt(ROOT_OFFSET, root);
+		store.putHeaderInt(NUM_PAGES_OFFSET, numPages);
+		store.putHeaderInt(FREE_PAGE_OFFSET, freePage);
+		store.putHeaderInt(NUM_IDS_OFFSET, numIds);
+	}
+
+	/**
+	 * Adds an ID
+	 *
+	 * @param sequenceID
+	 * @param sequenceIdHandle
+	 *            where the ID is stored
+	 * @throws IOException
+	 */
+	public synchronized void add(String sequenceID,
+			MemoryHandle sequenceIdHandle) throws IOException {
+		int[] entry = { 0, 0, sequenceIdHandle.getByteOffset(),
+				sequenceIdHandle.getSequenceLength() };
+		setKey(entry, 0, key(sequenceID));
+		int[] separator = insert(root, entry);
+		if (separator != null) {
+			// The root was split; the tree grows a level
+			int page = newPage(false);
+			int[] contents = readPage(page);
+			contents[FIRST_CHILD_OFFSET] = root;
+			System.arraycopy(separator, 0, contents, FIRST_ENTRY_OFFSET,
+					ENTRY_INTS);
+			contents[COUNT_OFFSET] = 1;
+			writePage(page, contents);
+			root = page;
+		}
+		numIds++;
+	}
+
+	/**
+	 * Removes an ID
+	 *
+	 * @param sequenceID
+	 * @param sequenceIdHandle
+	 *            where the ID is stored
+	 * @throws IOException
+	 */
+	public synchronized void remove(String sequenceID,
+			MemoryHandle sequenceIdHandle) throws IOException {
+		if (!delete(root, key(sequenceID), sequenceIdHandle.getByteOffset())) {
+			return;
+		}
+		numIds--;
+		// Drop roots with a single child, and start over from a leaf if the
+		// last child went
+		while (!isLeaf(root) && store.getInt(root, COUNT_OFFSET) == 0) {
+			int child = store.getInt(root, FIRST_CHILD_OFFSET);
+			freePage(root);
+			root = (child != NO_PAGE) ? child : newPage(true);
+		}
+	}
+
+	/**
+	 * Updates an ID that was moved in the memory file
+	 *
+	 * @param sequenceID
+	 * @param sequenceIdHandle
+	 *            where the ID was stored
+	 * @param newOffset
+	 *            where it is now
+	 * @throws IOException
+	 */
+	public synchronized void moveId(String sequenceID,
+			MemoryHandle sequenceIdHandle, int newOffset) throws IOException {
+		// The offset orders IDs with the same key, so the entry may move
+		remove(sequenceID, sequenceIdHandle);
+		add(sequenceID, new MemoryHandle(newOffset, sequenceIdHandle
+				.getSequenceLength()));
+	}
+
+	/**
+	 * Finds the IDs that start with a prefix
+	 *
+	 * @param prefix
+	 *            upper case bases
+	 * @return the IDs, sorted
+	 * @throws IOException
+	 */
+	public synchronized List<String> withPrefix(String prefix)
+			throws IOException {
+		List<String> found = new ArrayList<String>();
+		for (String sequenceID : scan(key(prefix), lastKey(prefix))) {
+			if (sequenceID.startsWith(prefix)) {
+				found.add(sequenceID);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the IDs in a range
+	 *
+	 * @param from
+	 *            first ID of the range, upper case bases
+	 * @param to
+	 *            last ID of the range, upper case bases
+	 * @return the IDs from from to to, both included, sorted
+	 * @throws IOException
+	 */
+	public synchronized List<String> inRange(String from, String to)
+			throws IOException {
+		List<String> found = new ArrayList<String>();
+		for (String sequenceID : scan(key(from), key(to))) {
+			if (sequenceID.compareTo(from) >= 0 && sequenceID.compareTo(to) <= 0) {
+				found.add(sequenceID);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of IDs in the index, or -1 if it has to be filled
+	 *         again
+	 */
+	public synchronized int getNumIds() {
+		return numIds;
+	}
+
+	/**
+	 * Saves the root and sizes, marks the file clean, and closes it
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		writeHeader(true);
+		store.close();
+	}
+
+	public synchronized String toString() {
+		int height = 1;
+		try {
+			for (int page = root; !isLeaf(page); page = store.getInt(page,
+					FIRST_CHILD_OFFSET)) {
+				height++;
+			}
+		} catch (IOException e) {
+			height = -1;
+		}
+		return "ID index: " + numIds + " IDs in " + numPages
+				+ " pages, height " + height;
+	}
+
+	/**
+	 * Makes the key of an ID (or of a prefix, as the smallest key of the IDs
+	 * starting with it)
+	 *
+	 * @param sequenceID
+	 * @return
+	 */
+	private static long key(String sequenceID) {
+		long packed = 0;
+		for (int i = 0; i < PREFIX_BASES; i++) {
+			packed = (packed << 2)
+					| (i < sequenceID.length() ? DnaCodec.code(sequenceID
+							.charAt(i)) : 0);
+		}
+		return (packed << LENGTH_BITS)
+				| Math.min(sequenceID.length(), LONG_ID);
+	}
+
+	/**
+	 * @param prefix
+	 * @return the largest key of the IDs starting with a prefix
+	 */
+	private static long lastKey(String prefix) {
+		long packed = 0;
+		for (int i = 0; i < PREFIX_BASES; i++) {
+			packed = (packed << 2)
+					| (i < prefix.length() ? DnaCodec.code(prefix.charAt(i))
+							: BASES.length() - 1);
+		}
+		return (packed << LENGTH_BITS) | LONG_ID;
+	}
+
+	/**
+	 * Reads the IDs of the entries with keys from fromKey to toKey, in order
+	 *
+	 * @param fromKey
+	 * @param toKey
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> scan(long fromKey, long toKey) throws IOException {
+		List<String> found = new ArrayList<String>();
+		// An offset of -1 is before every entry with the key
+		int page = root;
+		while (!isLeaf(page)) {
+			page = child(page, childIndex(page, fromKey, -1));
+		}
+		int i = position(page, fromKey, -1);
+		boolean sameKeys = false; // Ordered by offset, not by ID
+		long previousKey = -1;
+		while (page != NO_PAGE) {
+			int count = store.getInt(page, COUNT_OFFSET);
+			for (; i < count; i++) {
+				long key = getKey(page, i);
+				if (key > toKey) {
+					count = -1;
+					break;
+				}
+				int at = FIRST_ENTRY_OFFSET + i * ENTRY_INTS;
+				int length = store.getInt(page, at + ID_LENGTH);
+				if (length <= PREFIX_BASES) {
+					found.add(decode(key));
+				} else {
+					found.add(memoryManager.retrieveSequence(store.getInt(
+							page, at + ID_OFFSET), length));
+					sameKeys |= (key == previousKey);
+				}
+				previousKey = key;
+			}
+			page = (count < 0) ? NO_PAGE : store.getInt(page, NEXT_OFFSET);
+			i = 0;
+		}
+		if (sameKeys) {
+			Collections.sort(found);
+		}
+		return found;
+	}
+
+	/**
+	 * @param key
+	 *            of an ID no longer than PREFIX_BASES
+	 * @return the ID
+	 */
+	private static String decode(long key) {
+		char[] bases = new char[(int) (key & LENGTH_MASK)];
+		long packed = key >>> LENGTH_BITS;
+		for (int i = 0; i < bases.length; i++) {
+			int shift = 2 * (PREFIX_BASES - 1 - i);
+			bases[i] = BASES.charAt((int) (packed >>> shift) & 0x3);
+		}
+		return new String(bases);
+	}
+
+	/**
+	 * Adds an entry to the subtree under a page
+	 *
+	 * @param page
+	 * @param entry
+	 * @return the separator to add to the parent if the page was split, or
+	 *         null
+	 * @throws IOException
+	 */
+	private int[] insert(int page, int[] entry) throws IOException {
+		long key = getKey(entry, 0);
+		int offset = entry[ID_OFFSET];
+		int at;
+		if (isLeaf(page)) {
+			at = position(page, key, offset);
+		} else {
+			at = childIndex(page, key, offset);
+			int[] separator = insert(child(page, at), entry);
+			if (separator == null) {
+				return null;
+			}
+			entry = separator; // Goes right after the child
+		}
+
+		int count = store.getInt(page, COUNT_OFFSET);
+		if (count < MAX_ENTRIES) {
+			// Room in the page: shift the entries after it along
+			int first = FIRST_ENTRY_OFFSET + at * ENTRY_INTS;
+			int last = FIRST_ENTRY_OFFSET + count * ENTRY_INTS - 1;
+			for (int i = last; i >= first; i--) {
+				store.putInt(page, i + ENTRY_INTS, store.getInt(page, i));
+			}
+			for (int i = 0; i < ENTRY_INTS; i++) {
+				store.putInt(page, first + i, entry[i]);
+			}
+			store.putInt(page, COUNT_OFFSET, count + 1);
+			return null;
+		}
+
+		// Split: the upper half goes to a new page to the right
+		int[] contents = readPage(page);
+		int[] entries = new int[(count + 1) * ENTRY_INTS];
+		System.arraycopy(contents, FIRST_ENTRY_OFFSET, entries, 0, at
+				* ENTRY_INTS);
+		System.arraycopy(entry, 0, entries, at * ENTRY_INTS, ENTRY_INTS);
+		System.arraycopy(contents, FIRST_ENTRY_OFFSET + at * ENTRY_INTS,
+				entries, (at + 1) * ENTRY_INTS, (count - at) * ENTRY_INTS);
+		count++;
+		int left = count / 2;
+		int right = newPage(contents[LEAF_OFFSET] != 0);
+		int[] rightContents = readPage(right);
+		int[] separator = new int[ENTRY_INTS];
+		System.arraycopy(entries, left * ENTRY_INTS, separator, 0, ENTRY_INTS);
+		separator[CHILD] = right;
+		int firstRight = left;
+		if (contents[LEAF_OFFSET] != 0) {
+			rightContents[NEXT_OFFSET] = contents[NEXT_OFFSET];
+			rightContents[PREVIOUS_OFFSET] = page;
+			if (contents[NEXT_OFFSET] != NO_PAGE) {
+				store.putInt(contents[NEXT_OFFSET], PREVIOUS_OFFSET, right);
+			}
+			contents[NEXT_OFFSET] = right;
+		} else {
+			// The middle separator moves up, its child starts the new page
+			rightContents[FIRST_CHILD_OFFSET] = entries[left * ENTRY_INTS
+					+ CHILD];
+			firstRight++;
+		}
+		System.arraycopy(entries, 0, contents, FIRST_ENTRY_OFFSET, left
+				* ENTRY_INTS);
+		contents[COUNT_OFFSET] = left;
+		System.arraycopy(entries, firstRight * ENTRY_INTS, rightContents,
+				FIRST_ENTRY_OFFSET, (count - firstRight) * ENTRY_INTS);
+		rightContents[COUNT_OFFSET] = count - firstRight;
+		writePage(page, contents);
+		writePage(right, rightContents);
+		return separator;
+	}
+
+	/**
+	 * Removes an entry from the subtree under a page, and takes pages it
+	 * empties out of the tree
+	 *
+	 * @param page
+	 * @param key
+	 * @param offset
+	 *            of the ID
+	 * @return false if the entry was not found
+	 * @throws IOException
+	 */
+	private boolean delete(int page, long key, int offset) throws IOException {
+		int count = store.getInt(page, COUNT_OFFSET);
+		if (isLeaf(page)) {
+			int at = position(page, key, offset) - 1;
+			if (at < 0 || getKey(page, at) != key
+					|| store.getInt(page, FIRST_ENTRY_OFFSET + at * ENTRY_INTS
+							+ ID_OFFSET) != offset) {
+				return false;
+			}
+			removeEntry(page, at, count);
+			return true;
+		}
+
+		int at = childIndex(page, key, offset);
+		int child = child(page, at);
+		if (!delete(child, key, offset)) {
+			return false;
+		}
+		if (isLeaf(child) ? store.getInt(child, COUNT_OFFSET) > 0 : store
+				.getInt(child, FIRST_CHILD_OFFSET) != NO_PAGE) {
+			return true;
+		}
+		// Drop the empty child with the separator next to it
+		if (isLeaf(child)) {
+			int previous = store.getInt(child, PREVIOUS_OFFSET);
+			int next = store.getInt(child, NEXT_OFFSET);
+			if (previous != NO_PAGE) {
+				store.putInt(previous, NEXT_OFFSET, next);
+			}
+			if (next != NO_PAGE) {
+				store.putInt(next, PREVIOUS_OFFSET, previous);
+			}
+		}
+		freePage(child);
+		if (at > 0) {
+			removeEntry(page, at - 1, count);
+		} else if (count > 0) {
+			store.putInt(page, FIRST_CHILD_OFFSET, child(page, 1));
+			removeEntry(page, 0, count);
+		} else {
+			store.putInt(page, FIRST_CHILD_OFFSET, NO_PAGE);
+		}
+		return true;
+	}
+
+	private void removeEntry(int page, int at, int count) throws IOException {
+		for (int i = FIRST_ENTRY_OFFSET + at * ENTRY_INTS; i < FIRST_ENTRY_OFFSET
+				+ (count - 1) * ENTRY_INTS; i++) {
+			store.putInt(page, i, store.getInt(page, i + ENTRY_INTS));
+		}
+		store.putInt(page, COUNT_OFFSET, count - 1);
+	}
+
+	/**
+	 * @return the number of entries of a leaf before (key, offset)
+	 * @throws IOException
+	 */
+	private int position(int page, long key, int offset) throws IOException {
+		int low = 0;
+		int high = store.getInt(page, COUNT_OFFSET);
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compare(page, middle, key, offset) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the index of the child of an inner page that (key, offset)
+	 *         belongs under, the number of separators not after it
+	 * @throws IOException
+	 */
+	private int childIndex(int page, long key, int offset) throws IOException {
+		// Separators are ordered the same way as leaf entries
+		return position(page, key, offset);
+	}
+
+	/**
+	 * @return the index'th child of an inner page
+	 * @throws IOException
+	 */
+	private int child(int page, int index) throws IOException {
+		if (index == 0) {
+			return store.getInt(page, FIRST_CHILD_OFFSET);
+		}
+		return store.getInt(page, FIRST_ENTRY_OFFSET + (index - 1)
+				* ENTRY_INTS + CHILD);
+	}
+
+	/**
+	 * Compares the entry at an index of a page with (key, offset)
+	 *
+	 * @return less than, equal to or greater than 0
+	 * @throws IOException
+	 */
+	private int compare(int page, int index, long key, int offset)
+			throws IOException {
+		long entryKey = getKey(page, index);
+		if (entryKey != key) {
+			return entryKey < key ? -1 : 1;
+		}
+		int entryOffset = store.getInt(page, FIRST_ENTRY_OFFSET + index
+				* ENTRY_INTS + ID_OFFSET);
+		return entryOffset < offset ? -1 : (entryOffset == offset ? 0 : 1);
+	}
+
+	private long getKey(int page, int index) throws IOException {
+		int at = FIRST_ENTRY_OFFSET + index * ENTRY_INTS;
+		return ((long) store.getInt(page, at + KEY_HIGH) << 32)
+				| (store.getInt(page, at + KEY_LOW) & 0xffffffffL);
+	}
+
+	private static long getKey(int[] entries, int at) {
+		return ((long) entries[at + KEY_HIGH] << 32)
+				| (entries[at + KEY_LOW] & 0xffffffffL);
+	}
+
+	private static void setKey(int[] entries, int at, long key) {
+		entries[at + KEY_HIGH] = (int) (key >>> 32);
+		entries[at + KEY_LOW] = (int) key;
+	}
+
+	private boolean isLeaf(int page) throws IOException {
+		return store.getInt(page, LEAF_OFFSET) != 0;
+	}
+
+	private int[] readPage(int page) throws IOException {
+		int[] contents = new int[PAGE_INTS];
+		for (int i = 0; i < PAGE_INTS; i++) {
+			contents[i] = store.getInt(page, i);
+		}
+		return contents;
+	}
+
+	private void writePage(int page, int[] contents) throws IOException {
+		for (int i = 0; i < PAGE_INTS; i++) {
+			store.putInt(page, i, contents[i]);
+		}
+	}
+
+	/**
+	 * @param leaf
+	 * @return an empty page, reused from the free list if there is one
+	 * @throws IOException
+	 */
+	private int newPage(boolean leaf) throws IOException {
+		int page = freePage;
+		if (page != NO_PAGE) {
+			freePage = store.getInt(page, NEXT_OFFSET);
+		} else {
+			page = numPages++;
+			store.setNumBuckets(numPages, EMPTY_PAGE);
+		}
+		store.putInt(page, LEAF_OFFSET, leaf ? 1 : 0);
+		store.putInt(page, COUNT_OFFSET, 0);
+		store.putInt(page, NEXT_OFFSET, NO_PAGE);
+		store.putInt(page, PREVIOUS_OFFSET, NO_PAGE);
+		store.putInt(page, FIRST_CHILD_OFFSET, NO_PAGE);
+		return page;
+	}
+
+	private void freePage(int page) throws IOException {
+		store.putInt(page, NEXT_OFFSET, freePage);
+		freePage = page;
+	}
+}
@@ -0,0 +1,439 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An inverted index from k-mers (runs of k bases) to the sequences that
+ * contain them, so the sequences that contain a pattern can be found without
+ * reading every sequence.
+ *
+ * A k-mer is packed 2 bits a base, first base highest, into a number below
+ * 4^k. Each k-mer has a posting list of the sequences it occurs in, once per
+ * sequence. A posting is the offset and length of the sequence's ID in the
+ * memory file: unlike the slot, it stays the same while the entry moves
+ * around the hash table. The lists are chains of pages in a BucketStore,
+ * newest page first. A removed posting is replaced by the last posting of
+ * the first page, so only the first page of a chain is ever partly full.
+ *
+ * The first page and the length of every list are kept in memory. On close
+ * they are written to pages past the last posting page and the header is
+ * marked clean, like the checkpoint of the hash file. An index that was not
+ * closed cleanly is emptied when it is opened, to be filled again from the
+ * table.
+ *
+ * A pattern is looked up through its rarest k-mers. The sequences found are
+ * only candidates, which still have to be checked against the memory file.
+ *
+ * @author loganlinn
+ *
+ */
+public class KmerIndex {
+	public static final int DEFAULT_K = 8;
+	public static final int MAX_K = 10;
+	public static final int PAGE_INTS = 16;
+
+	// Layout of a posting page
+	private static final int COUNT_OFFSET = 0;
+	private static final int NEXT_OFFSET = 1;
+	private static final int FIRST_POSTING_OFFSET = 2;
+	private static final int POSTING_INTS = 2; // ID offset, ID length
+	private static final int POSTINGS_IN_PAGE = (PAGE_INTS - FIRST_POSTING_OFFSET)
+			/ POSTING_INTS;
+	private static final int NO_PAGE = -1;
+	private static final int[] EMPTY_PAGE = new int[PAGE_INTS];
+
+	// Offsets of data in the index file header
+	private static final int HEADER_MAGIC = 0x4b4d4552; // "KMER"
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CLEAN_OFFSET = 1; // 1 after a clean close
+	private static final int K_OFFSET = 2;
+	private static final int NUM_PAGES_OFFSET = 3;
+	private static final int FREE_PAGE_OFFSET = 4;
+	private static final int NUM_SEQUENCES_OFFSET = 5;
+
+	// A list is intersected with the candidates found so far only while it
+	// is at most this many times longer; past that, checking the candidates
+	// against the memory file is cheaper than reading the list
+	private static final int INTERSECT_RATIO = 16;
+	private static final int READ_BUFFER_SIZE = 1 << 14; // chars
+
+	private final BucketStore store;
+	private final int k;
+	private final int kmerMask;
+	private final int[] heads; // First page of each list
+	private final int[] lengths; // Postings in each list
+	private int numPages = 0; // Posting pages, free ones included
+	private int freePage = NO_PAGE; // Chained through NEXT_OFFSET
+	private int numSequences = 0;
+	private long numPostings = 0;
+	private final BitSet kmers; // Of the sequence being read
+
+	/**
+	 * Opens an index
+	 *
+	 * @param store
+	 *            holding the posting pages; PAGE_INTS integers a bucket
+	 * @param k
+	 *            bases in a k-mer, at most MAX_K
+	 * @param reopen
+	 *            true to keep the index in the store, if it was closed
+	 *            cleanly with the same k. Otherwise the index starts empty,
+	 *            and if reopen was asked for getNumSequences() is -1 until it
+	 *            is filled again.
+	 * @throws IOException
+	 */
+	public KmerIndex(BucketStore store, int k, boolean reopen)
+			throws IOException {
+		if (k < 1 || k > MAX_K) {
+			throw new IllegalArgumentException("k must be from 1 to " + MAX_K
+					+ ": " + k);
+		}
+		this.store = store;
+		this.k = k;
+		kmerMask = (1 << (2 * k)) - 1;
+		heads = new int[1 << (2 * k)];
+		lengths = new int[heads.length];
+		kmers = new BitSet(heads.length);
+
+		if (reopen && store.getNumBuckets() > 0
+				&& store.getHeaderInt(MAGIC_OFFSET) == HEADER_MAGIC
+				&& store.getHeaderInt(CLEAN_OFFSET) != 0
+				&& store.getHeaderInt(K_OFFSET) == k) {
+			readCheckpoint();
+		} else {
+			clear();
+			if (reopen) {
+				numSequences = -1;
+			}
+		}
+		// Until the next clean close, the file can not be trusted
+		writeHeader(false);
+		store.flush();
+	}
+
+	/**
+	 * Empties the index
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clear() throws IOException {
+		Arrays.fill(heads, NO_PAGE);
+		Arrays.fill(lengths, 0);
+		numPages = 0;
+		freePage = NO_PAGE;
+		numSequences = 0;
+		numPostings = 0;
+		store.setNumBuckets(0, EMPTY_PAGE);
+	}
+
+	private void writeHeader(boolean clean) throws IOException {
+		store.putHeaderInt(MAGIC_OFFSET, HEADER_MAGIC);
+		store.putHeaderInt(CLEAN_OFFSET, clean ? 1 : 0);
+		store.putHeaderInt(K_OFFSET, k);
+		store.putHeaderInt(NUM_PAGES_OFFSET, numPages);
+		store.putHeaderInt(FREE_PAGE_OFFSET, freePage);
+		store.putHeaderInt(NUM_SEQUENCES_OFFSET, numSequences);
+	}
+
+	/**
+	 * Writes the first page and length of every list to pages past the last
+	 * posting page
+	 *
+	 * @throws IOException
+	 */
+	private void writeCheckpoint() throws IOException {
+		int ints = 2 * heads.length;
+		store.setNumBuckets(numPages + (ints + PAGE_INTS - 1) / PAGE_INTS,
+				EMPTY_PAGE);
+		for (int i = 0; i < heads.length; i++) {
+			store.putInt(numPages + 2 * i / PAGE_INTS, 2 * i % PAGE_INTS,
+					heads[i]);
+			store.putInt(numPages + (2 * i + 1) / PAGE_INTS, (2 * i + 1)
+					% PAGE_INTS, lengths[i]);
+		}
+	}
+
+	/**
+	 * Reads back what writeCheckpoint wrote, and drops those pages
+	 *
+	 * @throws IOException
+	 */
+	private void readCheckpoint() throws IOException {
+		numPages = store.getHeaderInt(NUM_PAGES_OFFSET);
+		freePage = store.getHeaderInt(FREE_PAGE_OFFSET);
+		numSequences = store.getHeaderInt(NUM_SEQUENCES_OFFSET);
+		numPostings = 0;
+		for (int i = 0; i < heads.length; i++) {
+			heads[i] = store.getInt(numPages + 2 * i / PAGE_INTS, 2 * i
+					% PAGE_INTS);
+			lengths[i] = store.getInt(numPages + (2 * i + 1) / PAGE_INTS,
+					(2 * i + 1) % PAGE_INTS);
+			numPostings += lengths[i];
+		}
+		store.setNumBuckets(numPages, EMPTY_PAGE);
+	}
+
+	/**
+	 * Adds a sequence to the lists of the k-mers in it
+	 *
+	 * @param sequenceIdHandle
+	 *            where the sequence's ID is stored
+	 * @param sequence
+	 *            the bases, which are read to the end
+	 * @throws IOException
+	 */
+	public synchronized void add(MemoryHandle sequenceIdHandle, Reader sequence)
+			throws IOException {
+		readKmers(sequence);
+		for (int kmer = kmers.nextSetBit(0); kmer >= 0; kmer = kmers
+				.nextSetBit(kmer + 1)) {
+			addPosting(kmer, sequenceIdHandle.getByteOffset(), sequenceIdHandle
+					.getSequenceLength());
+		}
+		numSequences++;
+	}
+
+	/**
+	 * Takes a sequence off the lists of the k-mers in it
+	 *
+	 * @param sequenceIdHandle
+	 *            where the sequence's ID is stored
+	 * @param sequence
+	 *            the bases, which are read to the end
+	 * @throws IOException
+	 */
+	public synchronized void remove(MemoryHandle sequenceIdHandle,
+			Reader sequence) throws IOException {
+		readKmers(sequence);
+		for (int kmer = kmers.nextSetBit(0); kmer >= 0; kmer = kmers
+				.nextSetBit(kmer + 1)) {
+			removePosting(kmer, sequenceIdHandle.getByteOffset(),
+					sequenceIdHandle.getSequenceLength());
+		}
+		numSequences--;
+	}
+
+	/**
+	 * Updates the postings of a sequence whose ID was moved in the memory
+	 * file
+	 *
+	 * @param sequenceIdHandle
+	 *            where the sequence's ID was stored
+	 * @param newOffset
+	 *            where it is now
+	 * @param sequence
+	 *            the bases, which are read to the end
+	 * @throws IOException
+	 */
+	public synchronized void moveId(MemoryHandle sequenceIdHandle,
+			int newOffset, Reader sequence) throws IOException {
+		readKmers(sequence);
+		for (int kmer = kmers.nextSetBit(0); kmer >= 0; kmer = kmers
+				.nextSetBit(kmer + 1)) {
+			int[] at = findPosting(kmer, sequenceIdHandle.getByteOffset(),
+					sequenceIdHandle.getSequenceLength());
+			if (at != null) {
+				store.putInt(at[0], at[1], newOffset);
+			}
+		}
+	}
+
+	/**
+	 * Finds the sequences that may contain a pattern: those in the lists of
+	 * all of its rarest k-mers
+	 *
+	 * @param pattern
+	 * @return the offset (high 32 bits) and length (low 32 bits) of each
+	 *         candidate's ID, or null if the pattern is shorter than k
+	 * @throws IOException
+	 */
+	public synchronized long[] candidates(String pattern) throws IOException {
+		if (pattern.length() < k) {
+			return null;
+		}
+		readKmers(new StringReader(pattern));
+		long[] byLength = new long[kmers.cardinality()]; // length, then k-mer
+		int n = 0;
+		for (int kmer = kmers.nextSetBit(0); kmer >= 0; kmer = kmers
+				.nextSetBit(kmer + 1)) {
+			byLength[n++] = ((long) lengths[kmer] << 32) | kmer;
+		}
+		Arrays.sort(byLength);
+
+		Set<Long> candidates = readList((int) byLength[0]);
+		for (int i = 1; i < n && candidates.size() > 1; i++) {
+			if ((byLength[i] >>> 32) > (long) INTERSECT_RATIO
+					* candidates.size()) {
+				break;
+			}
+			candidates.retainAll(readList((int) byLength[i]));
+		}
+
+		long[] found = new long[candidates.size()];
+		int i = 0;
+		for (long candidate : candidates) {
+			found[i++] = candidate;
+		}
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * @return bases in a k-mer
+	 */
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @return the number of sequences in the index, or -1 if it has to be
+	 *         filled again
+	 */
+	public synchronized int getNumSequences() {
+		return numSequences;
+	}
+
+	/**
+	 * Saves the lists' first pages and lengths, marks the file clean, and
+	 * closes it
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		writeCheckpoint();
+		writeHeader(true);
+		store.close();
+	}
+
+	public synchronized String toString() {
+		return "K-mer index: " + numSequences + " sequences, " + numPostings
+				+ " postings of " + k + "-mers in " + numPages + " pages";
+	}
+
+	/**
+	 * Sets the bits of kmers for the k-mers in a sequence
+	 *
+	 * @param sequence
+	 * @throws IOException
+	 */
+	private void readKmers(Reader sequence) throws IOException {
+		kmers.clear();
+		char[] buffer = new char[READ_BUFFER_SIZE];
+		int kmer = 0;
+		int bases = 0;
+		int n;
+		while ((n = sequence.read(buffer, 0, buffer.length)) > 0) {
+			for (int i = 0; i < n; i++) {
+				kmer = ((kmer << 2) | DnaCodec.code(buffer[i])) & kmerMask;
+				if (++bases >= k) {
+					kmers.set(kmer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads every posting of a list
+	 *
+	 * @param kmer
+	 * @return ID offset (high 32 bits) and length (low 32 bits) of each
+	 * @throws IOException
+	 */
+	private Set<Long> readList(int kmer) throws IOException {
+		Set<Long> postings = new HashSet<Long>();
+		for (int page = heads[kmer]; page != NO_PAGE; page = store.getInt(
+				page, NEXT_OFFSET)) {
+			int count = store.getInt(page, COUNT_OFFSET);
+			for (int i = 0; i < count; i++) {
+				int at = FIRST_POSTING_OFFSET + i * POSTING_INTS;
+				postings.add(((long) store.getInt(page, at) << 32)
+						| (store.getInt(page, at + 1) & 0xffffffffL));
+			}
+		}
+		return postings;
+	}
+
+	private void addPosting(int kmer, int idOffset, int idLength)
+			throws IOException {
+		int head = heads[kmer];
+		int count = (head == NO_PAGE) ? POSTINGS_IN_PAGE : store.getInt(head,
+				COUNT_OFFSET);
+		if (count == POSTINGS_IN_PAGE) {
+			int page = newPage();
+			store.putInt(page, NEXT_OFFSET, head);
+			heads[kmer] = head = page;
+			count = 0;
+		}
+		int at = FIRST_POSTING_OFFSET + count * POSTING_INTS;
+		store.putInt(head, at, idOffset);
+		store.putInt(head, at + 1, idLength);
+		store.putInt(head, COUNT_OFFSET, count + 1);
+		lengths[kmer]++;
+		numPostings++;
+	}
+
+	private void removePosting(int kmer, int idOffset, int idLength)
+			throws IOException {
+		int[] at = findPosting(kmer, idOffset, idLength);
+		if (at == null) {
+			return;
+		}
+		// Fill the hole with the last posting of the first page
+		int head = heads[kmer];
+		int last = store.getInt(head, COUNT_OFFSET) - 1;
+		int lastAt = FIRST_POSTING_OFFSET + last * POSTING_INTS;
+		if (at[0] != head || at[1] != lastAt) {
+			store.putInt(at[0], at[1], store.getInt(head, lastAt));
+			store.putInt(at[0], at[1] + 1, store.getInt(head, lastAt + 1));
+		}
+		if (last == 0) {
+			heads[kmer] = store.getInt(head, NEXT_OFFSET);
+			store.putInt(head, NEXT_OFFSET, freePage);
+			freePage = head;
+		}
+		store.putInt(head, COUNT_OFFSET, last);
+		lengths[kmer]--;
+		numPostings--;
+	}
+
+	/**
+	 * @return the page and the integer index of a posting, or null if it is
+	 *         not in the list
+	 * @throws IOException
+	 */
+	private int[] findPosting(int kmer, int idOffset, int idLength)
+			throws IOException {
+		for (int page = heads[kmer]; page != NO_PAGE; page = store.getInt(
+				page, NEXT_OFFSET)) {
+			int count = store.getInt(page, COUNT_OFFSET);
+			for (int i = 0; i < count; i++) {
+				int at = FIRST_POSTING_OFFSET + i * POSTING_INTS;
+				if (store.getInt(page, at) == idOffset
+						&& store.getInt(page, at + 1) == idLength) {
+					return new int[] { page, at };
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return an empty page, reused from the free list if there is one
+	 * @throws IOException
+	 */
+	private int newPage() throws IOException {
+		int page = freePage;
+		if (page != NO_PAGE) {
+			freePage = store.getInt(page, NEXT_OFFSET);
+			store.putInt(page, COUNT_OFFSET, 0);
+		} else {
+			page = numPages++;
+			store.setNumBuckets(numPages, EMPTY_PAGE);
+		}
+		return page;
+	}
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+
+/**
+ * Bucket store that maps the hash file into memory and reads and writes the
+ * slot integers in place through IntBuffer views of the mapped regions.
+ * 
+ * Nothing is copied or cached: every getInt/putInt goes straight to the
+ * mapped page. Threads may read and write slots at the same time; changing
+ * the number of buckets may not overlap with anything else.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class MappedBucketStore implements BucketStore {
+	private static final int INT_BYTES = 4;
+
+	private final RandomAccessFile hashFile;
+	private final MappedFile mappedFile;
+	private final int intsInBucket;
+	private final int bucketsInRegion;
+	private volatile IntBuffer[] regions = new IntBuffer[16];
+	private int numBuckets = 0;
+
+	/**
+	 * Creates an empty store, clearing out the file
+	 * 
+	 * @param fileName
+	 * @param intsInBucket
+	 * @throws IOException
+	 */
+	public MappedBucketStore(String fileName, int intsInBucket)
+			throws IOException {
+		this(fileName, intsInBucket, false);
+	}
+
+	/**
+	 * Creates a store, optionally keeping the buckets already in the file
+	 * 
+	 * @param fileName
+	 * @param intsInBucket
+	 * @param reopen
+	 *            true to keep the file's contents
+	 * @throws IOException
+	 */
+	public MappedBucketStore(String fileName, int intsInBucket, boolean reopen)
+			throws IOException {
+		this.intsInBucket = intsInBucket;
+		int bytesInBucket = intsInBucket * INT_BYTES;
+		// Regions hold a whole number of buckets
+		bucketsInRegion = Math.max(1, MappedFile.DEFAULT_CHUNK_SIZE
+				/ bytesInBucket);
+		hashFile = new RandomAccessFile(fileName, "rw");
+		if (reopen) {
+			numBuckets = (int) Math.max(0, hashFile.length() / bytesInBucket - 1);
+		} else {
+			hashFile.setLength(0);
+		}
+		mappedFile = new MappedFile(hashFile, bucketsInRegion * bytesInBucket);
+	}
+
+	/**
+	 * Returns the integer view of the region holding a bucket. The header
+	 * counts as bucket -1.
+	 * 
+	 * @param bucket
+	 * @return
+	 * @throws IOException
+	 */
+	private IntBuffer region(int bucket) throws IOException {
+		int index = (bucket + 1) / bucketsInRegion;
+		IntBuffer[] current = regions;
+		if (index < current.length && current[index] != null) {
+			return current[index];
+		}
+		return mapRegion(index);
+	}
+
+	/**
+	 * Creates the view of a region and publishes a new region table holding
+	 * it
+	 * 
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized IntBuffer mapRegion(int index) throws IOException {
+		IntBuffer[] current = regions;
+		if (index < current.length && current[index] != null) {
+			return current[index];
+		}
+		IntBuffer[] grown = new IntBuffer[Math.max(current.length, index + 1)];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		grown[index] = mappedFile.chunk(index).asIntBuffer();
+		regions = grown;
+		return grown[index];
+	}
+
+	public int getInt(int bucket, int index) throws IOException {
+		return region(bucket).get(
+				((bucket + 1) % bucketsInRegion) * intsInBucket + index);
+	}
+
+	public void putInt(int bucket, int index, int value) throws IOException {
+		region(bucket).put(
+				((bucket + 1) % bucketsInRegion) * intsInBucket + index, value);
+	}
+
+	public int getHeaderInt(int index) throws IOException {
+		return getInt(-1, index);
+	}
+
+	public void putHeaderInt(int index, int value) throws IOException {
+		putInt(-1, index, value);
+	}
+
+	public void setNumBuckets(int numBuckets, int[] emptyBucket)
+			throws IOException {
+		for (int b = this.numBuckets; b < numBuckets; b++) {
+			IntBuffer region = region(b);
+			int start = ((b + 1) % bucketsInRegion) * intsInBucket;
+			for (int i = 0; i < intsInBucket; i++) {
+				region.put(start + i, emptyBucket[i]);
+			}
+		}
+		this.numBuckets = numBuckets;
+	}
+
+	public int getNumBuckets() {
+		return numBuckets;
+	}
+
+	public void flush() throws IOException {
+		mappedFile.force();
+	}
+
+	public void close() throws IOException {
+		regions = new IntBuffer[0];
+		mappedFile.close((long) (numBuckets + 1) * intsInBucket * INT_BYTES);
+		hashFile.close();
+	}
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file accessed through memory-mapped regions instead of seek+read/write.
+ *
+ * The file is mapped in fixed size chunks. Chunks are mapped lazily the first
+ * time an offset inside them is touched, which grows the underlying file one
+ * chunk at a time. Reads and writes are plain memory copies into the mapped
+ * buffers, so they do not cost a system call each.
+ *
+ * The chunk size is always a multiple of 4, so 4-byte aligned integers never
+ * straddle two chunks.
+ *
+ * Several threads may read and write at once (to different bytes). The chunk
+ * table is replaced rather than changed when a chunk is mapped, so finding a
+ * mapped chunk takes no lock.
+ *
+ * @author loganlinn
+ *
+ */
+public class MappedFile {
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 22; // 4MB
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int chunkSize;
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[16];
+
+	/**
+	 * Constructs a MappedFile over an open file
+	 *
+	 * @param file
+	 * @param chunkSize
+	 *            size of each mapped region in bytes
+	 */
+	public MappedFile(RandomAccessFile file, int chunkSize) {
+		if (chunkSize <= 0 || (chunkSize & 0x3) != 0) {
+			throw new IllegalArgumentException("Chunk size must be a positive"
+					+ " multiple of 4: " + chunkSize);
+		}
+		this.file = file;
+		this.channel = file.getChannel();
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Constructs a MappedFile with the default chunk size
+	 *
+	 * @param file
+	 */
+	public MappedFile(RandomAccessFile file) {
+		this(file, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @return the size of each mapped region
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the mapped chunk with the given index, mapping it (and growing
+	 * the file) if needed
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	public MappedByteBuffer chunk(int index) throws IOException {
+		MappedByteBuffer[] current = chunks;
+		if (index < current.length && current[index] != null) {
+			return current[index];
+		}
+		return map(index);
+	}
+
+	/**
+	 * Maps a chunk and publishes a new chunk table holding it
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized MappedByteBuffer map(int index) throws IOException {
+		MappedByteBuffer[] current = chunks;
+		if (index < current.length && current[index] != null) {
+			return current[index]; // Mapped by another thread meanwhile
+		}
+		MappedByteBuffer[] grown = new MappedByteBuffer[Math.max(
+				current.length, index + 1)];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE,
+				(long) index * chunkSize, chunkSize);
+		grown[index] = chunk;
+		chunks = grown;
+		return chunk;
+	}
+
+	/**
+	 * Copies bytes from the file into a buffer
+	 *
+	 * @param offset
+	 *            in the file
+	 * @param dst
+	 * @param dstOffset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void read(long offset, byte[] dst, int dstOffset, int length)
+			throws IOException {
+		while (length > 0) {
+			MappedByteBuffer chunk = chunk((int) (offset / chunkSize));
+			int pos = (int) (offset % chunkSize);
+			int n = Math.min(length, chunkSize - pos);
+			chunk.get(pos, dst, dstOffset, n);
+			offset += n;
+			dstOffset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Compares bytes of the file with a buffer in place, without copying
+	 * them out
+	 *
+	 * @param offset
+	 *            in the file
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 * @return true if the bytes are the same
+	 * @throws IOException
+	 */
+	public boolean regionEquals(long offset, byte[] src, int srcOffset,
+			int length) throws IOException {
+		while (length > 0) {
+			MappedByteBuffer chunk = chunk((int) (offset / chunkSize));
+			int pos = (int) (offset % chunkSize);
+			int n = Math.min(length, chunkSize - pos);
+			for (int i = 0; i < n; i++) {
+				if (chunk.get(pos + i) != src[srcOffset + i]) {
+					return false;
+				}
+			}
+			offset += n;
+			srcOffset += n;
+			length -= n;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies bytes from a buffer into the file
+	 *
+	 * @param offset
+	 *            in the file
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void write(long offset, byte[] src, int srcOffset, int length)
+			throws IOException {
+		while (length > 0) {
+			MappedByteBuffer chunk = chunk((int) (offset / chunkSize));
+			int pos = (int) (offset % chunkSize);
+			int n = Math.min(length, chunkSize - pos);
+			chunk.put(pos, src, srcOffset, n);
+			offset += n;
+			srcOffset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Reads a 4-byte big-endian integer (same format as
+	 * {@link RandomAccessFile#readInt()})
+	 *
+	 * @param offset
+	 *            4-byte aligned offset
+	 * @return
+	 * @throws IOException
+	 */
+	public int getInt(long offset) throws IOException {
+		return chunk((int) (offset / chunkSize)).getInt(
+				(int) (offset % chunkSize));
+	}
+
+	/**
+	 * Writes a 4-byte big-endian integer
+	 *
+	 * @param offset
+	 *            4-byte aligned offset
+	 * @param value
+	 * @throws IOException
+	 */
+	public void putInt(long offset, int value) throws IOException {
+		chunk((int) (offset / chunkSize)).putInt((int) (offset % chunkSize),
+				value);
+	}
+
+	/**
+	 * Flushes modified regions to the storage device
+	 */
+	public void force() {
+		for (MappedByteBuffer chunk : chunks) {
+			if (chunk != null) {
+				chunk.force();
+			}
+		}
+	}
+
+	/**
+	 * Drops the mappings and trims the file to its logical length. The
+	 * underlying file is left open.
+	 *
+	 * @param length
+	 *            number of bytes actually in use
+	 * @throws IOException
+	 */
+	public void close(long length) throws IOException {
+		force();
+		chunks = new MappedByteBuffer[0];
+		file.setLength(length);
+	}
+}
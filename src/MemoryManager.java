@@ -1,22 +1,60 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.RandomAccessFile;
-import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Manages the file that stores long sequences using first fit approach.
  * 
- * Memory Manger contains a nested inner class, {@link FirstFitList} for
- * managing the free sections of the binary file.
+ * The free sections of the binary file are tracked by a
+ * {@link BlockAllocator}: a {@link FreeSpaceIndex} (first or best fit) by
+ * default, or a {@link BuddyAllocator}.
+ * 
+ * Storing, removing and retrieving sequences may be done from several
+ * threads at once: blocks are read and written with positional I/O, so there
+ * is no shared file position, and the allocator is only used while holding
+ * its lock. Moving blocks and truncating are not safe while other threads
+ * use the file.
+ * 
+ * Optionally, sequences with the same bases share one block (see
+ * {@link #setDeduplicating(boolean)}).
  * 
  * @author loganlinn
  * 
  */
 public class MemoryManager {
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+	private static final int PRINT_BUFFER_SIZE = 1 << 16; // chars
+	private static final int COMPARE_BUFFER_SIZE = 1 << 10;
+	private static final String CONTENT_DIGEST = "SHA-1";
+
 	private File sequenceFile;
 	private RandomAccessFile seqAccess;
-	private FirstFitList firstFit = new FirstFitList();
+	private FileChannel seqChannel;
+	private MappedFile mappedFile; // null unless memory mapped
+	private int dataLength = 0; // bytes in use, including allocated blocks
+								// not written yet
+	private BlockAllocator allocator;
+	// For sequenceEquals; one per thread, as lookups may run in parallel
+	private final ThreadLocal<byte[]> compareBuffer = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[COMPARE_BUFFER_SIZE];
+		}
+	};
+
+	// Shared blocks by content and by offset; null unless deduplicating
+	private Map<ContentKey, SharedBlock> blocksByContent;
+	private Map<Integer, SharedBlock> blocksByOffset;
+	private long sharedStores = 0; // Stores that found their bases stored
+	private long sharedBytes = 0; // Bytes those stores did not write
 
 	/**
 	 * Creates the manager
@@ -24,9 +62,73 @@ public class MemoryManager {
 	 * @throws IOException
 	 */
 	public MemoryManager(String fileName) throws IOException {
+		this(fileName, false);
+	}
+
+	/**
+	 * Creates the manager, optionally accessing the file through memory
+	 * mapped regions instead of seek+read/write
+	 * 
+	 * @param fileName
+	 * @param memoryMapped
+	 * @throws IOException
+	 */
+	public MemoryManager(String fileName, boolean memoryMapped)
+			throws IOException {
+		this(fileName, memoryMapped, FreeSpaceIndex.FitPolicy.FIRST_FIT);
+	}
+
+	/**
+	 * Creates the manager with a choice of how free blocks are reused
+	 * 
+	 * @param fileName
+	 * @param memoryMapped
+	 * @param fitPolicy
+	 * @throws IOException
+	 */
+	public MemoryManager(String fileName, boolean memoryMapped,
+			FreeSpaceIndex.FitPolicy fitPolicy) throws IOException {
+		this(fileName, memoryMapped, new FreeSpaceIndex(fitPolicy));
+	}
+
+	/**
+	 * Creates the manager with the given allocation policy
+	 * 
+	 * @param fileName
+	 * @param memoryMapped
+	 * @param allocator
+	 * @throws IOException
+	 */
+	public MemoryManager(String fileName, boolean memoryMapped,
+			BlockAllocator allocator) throws IOException {
+		this(fileName, memoryMapped, allocator, false);
+	}
+
+	/**
+	 * Creates the manager, optionally keeping the sequences already in the
+	 * file. A reopened manager starts with no free blocks; the caller restores
+	 * them through the allocator.
+	 * 
+	 * @param fileName
+	 * @param memoryMapped
+	 * @param allocator
+	 * @param reopen
+	 *            true to keep the file's contents
+	 * @throws IOException
+	 */
+	public MemoryManager(String fileName, boolean memoryMapped,
+			BlockAllocator allocator, boolean reopen) throws IOException {
+		this.allocator = allocator;
 		sequenceFile = new File(fileName);
 		seqAccess = new RandomAccessFile(sequenceFile, "rw");
-		seqAccess.setLength(0); // clear out the file
+		if (!reopen) {
+			seqAccess.setLength(0); // clear out the file
+		}
+		seqChannel = seqAccess.getChannel();
+		dataLength = (int) seqAccess.length();
+		if (memoryMapped) {
+			mappedFile = new MappedFile(seqAccess);
+		}
 	}
 
 	/**
@@ -39,28 +141,226 @@ public class MemoryManager {
 	public MemoryHandle storeSequence(String sequenceDescriptor) {
 		int sequenceBlockLength = getEncodedSequenceLength(sequenceDescriptor
 				.length());
+		byte[] encoded = encodeString(sequenceDescriptor, sequenceBlockLength);
+
+		byte[] digest = null;
+		if (blocksByContent != null && sequenceBlockLength > 0) {
+			digest = digest(encoded);
+			MemoryHandle shared = findShared(digest, sequenceDescriptor
+					.length());
+			if (shared != null) {
+				return shared;
+			}
+		}
 
-		int byteOffset = firstFit.allocateBlock(sequenceBlockLength);
+		int byteOffset = allocateBlock(sequenceBlockLength);
 
 		// System.out.println("  storing @ " + byteOffset);
 
 		try {
 
-			// RandomAccessFile raf = new RandomAccessFile(sequenceFile, "rw");
-
-			seqAccess.seek(byteOffset);
-
-			seqAccess.write(encodeString(sequenceDescriptor,
-					sequenceBlockLength));
-
-			// seqAccess.close();
+			writeBlock(byteOffset, encoded);
 
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return new MemoryHandle(byteOffset, sequenceDescriptor.length());
+		MemoryHandle handle = new MemoryHandle(byteOffset, sequenceDescriptor
+				.length());
+		return (digest != null) ? share(digest, handle) : handle;
+	}
+
+	/**
+	 * Makes sequences with the same bases share one block. Every block
+	 * stored is indexed by a digest of its packed bytes and its length;
+	 * storing bases that are already in the file only counts another
+	 * reference to their block, and releasing a block frees it once its last
+	 * reference is released. Must be set before any sequence is stored;
+	 * blocks already in the file are counted with addReference.
+	 * 
+	 * @param deduplicating
+	 */
+	public void setDeduplicating(boolean deduplicating) {
+		synchronized (allocator) {
+			if (!deduplicating) {
+				blocksByContent = null;
+				blocksByOffset = null;
+			} else if (blocksByContent == null) {
+				blocksByContent = new HashMap<ContentKey, SharedBlock>();
+				blocksByOffset = new HashMap<Integer, SharedBlock>();
+			}
+		}
+	}
+
+	/**
+	 * @return true if sequences with the same bases share a block
+	 */
+	public boolean isDeduplicating() {
+		return blocksByContent != null;
+	}
+
+	/**
+	 * Counts a reference to a block that is already in the file, eg one a
+	 * reopened table refers to. The first reference reads the block to index
+	 * its content.
+	 * 
+	 * @param offset
+	 * @param length
+	 *            in bases
+	 * @throws IOException
+	 */
+	public void addReference(int offset, int length) throws IOException {
+		int size = getEncodedSequenceLength(length);
+		if (size == 0) {
+			return; // Empty blocks are never shared
+		}
+		synchronized (allocator) {
+			SharedBlock block = blocksByOffset.get(offset);
+			if (block != null) {
+				block.references++;
+				return;
+			}
+		}
+		MessageDigest digest = newContentDigest();
+		byte[] buffer = new byte[Math.min(size, COPY_BUFFER_SIZE)];
+		for (int done = 0; done < size; done += buffer.length) {
+			int n = Math.min(buffer.length, size - done);
+			readBlock(offset + done, buffer, n);
+			digest.update(buffer, 0, n);
+		}
+		ContentKey key = new ContentKey(digest.digest(), length);
+		synchronized (allocator) {
+			SharedBlock block = new SharedBlock(key, offset);
+			blocksByOffset.put(offset, block);
+			// If the bases are stored twice, new stores share the first copy
+			if (!blocksByContent.containsKey(key)) {
+				blocksByContent.put(key, block);
+			}
+		}
+	}
+
+	/**
+	 * Looks for a stored block holding some bases, and counts a reference to
+	 * it if there is one
+	 * 
+	 * @param digest
+	 *            of the packed bases
+	 * @param length
+	 *            in bases
+	 * @return a handle to the block, or null if the bases are not stored
+	 */
+	MemoryHandle findShared(byte[] digest, int length) {
+		synchronized (allocator) {
+			SharedBlock block = blocksByContent.get(new ContentKey(digest,
+					length));
+			if (block == null) {
+				return null;
+			}
+			block.references++;
+			sharedStores++;
+			sharedBytes += getEncodedSequenceLength(length);
+			return new MemoryHandle(block.offset, length);
+		}
+	}
+
+	/**
+	 * Indexes a block that was just written. If another thread stored the
+	 * same bases in the meantime, the block is freed and theirs is shared
+	 * instead.
+	 * 
+	 * @param digest
+	 *            of the packed bases
+	 * @param stored
+	 *            handle to the block written
+	 * @return the handle to use
+	 */
+	MemoryHandle share(byte[] digest, MemoryHandle stored) {
+		ContentKey key = new ContentKey(digest, stored.getSequenceLength());
+		synchronized (allocator) {
+			SharedBlock block = blocksByContent.get(key);
+			if (block == null) {
+				block = new SharedBlock(key, stored.getByteOffset());
+				blocksByContent.put(key, block);
+				blocksByOffset.put(block.offset, block);
+				return stored;
+			}
+			int size = getEncodedSequenceLength(stored.getSequenceLength());
+			allocator.releaseBlock(stored.getByteOffset(), size);
+			block.references++;
+			sharedStores++;
+			sharedBytes += size;
+			return new MemoryHandle(block.offset, stored.getSequenceLength());
+		}
+	}
+
+	/**
+	 * @return a digest for indexing packed bases by content
+	 */
+	static MessageDigest newContentDigest() {
+		try {
+			return MessageDigest.getInstance(CONTENT_DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] digest(byte[] encoded) {
+		return newContentDigest().digest(encoded);
+	}
+
+	/**
+	 * Inserts many sequences at once. All the blocks are allocated first, then
+	 * each run of blocks that are next to each other in the file is written
+	 * with one write, so sequences appended at the end of the file go out in
+	 * a single write.
+	 * 
+	 * @param sequences
+	 * @return a handle for each sequence
+	 * @throws IOException
+	 */
+	public MemoryHandle[] storeAll(String[] sequences) throws IOException {
+		int n = sequences.length;
+		MemoryHandle[] handles = new MemoryHandle[n];
+		if (blocksByContent != null) {
+			// Each sequence has to be looked up on its own
+			for (int i = 0; i < n; i++) {
+				handles[i] = storeSequence(sequences[i]);
+			}
+			return handles;
+		}
+		long[] byOffset = new long[n]; // offset, then index
+		synchronized (allocator) {
+			for (int i = 0; i < n; i++) {
+				int byteOffset = allocateBlock(getEncodedSequenceLength(sequences[i]
+						.length()));
+				handles[i] = new MemoryHandle(byteOffset, sequences[i].length());
+				byOffset[i] = ((long) byteOffset << 32) | i;
+			}
+		}
+		Arrays.sort(byOffset);
+
+		int first = 0;
+		while (first < n) {
+			// Find the run of adjacent blocks starting here
+			int runStart = (int) (byOffset[first] >>> 32);
+			int runEnd = runStart;
+			int last = first;
+			while (last < n && (int) (byOffset[last] >>> 32) == runEnd) {
+				String sequence = sequences[(int) byOffset[last]];
+				runEnd += getEncodedSequenceLength(sequence.length());
+				last++;
+			}
+			byte[] run = new byte[runEnd - runStart];
+			for (int i = first; i < last; i++) {
+				String sequence = sequences[(int) byOffset[i]];
+				DnaCodec.encode(sequence, 0, sequence.length(), run,
+						(int) (byOffset[i] >>> 32) - runStart);
+			}
+			writeBlock(runStart, run);
+			first = last;
+		}
+		return handles;
 	}
 
 	/**
@@ -71,12 +371,54 @@ public class MemoryManager {
 	 * @return
 	 */
 	public String removeSequence(MemoryHandle handle) {
-		firstFit.releaseBlock(handle);
-		return retrieveSequence(handle);
+		return removeSequence(handle.getByteOffset(),
+				handle.getSequenceLength());
 	}
 	public String removeSequence(int offset, int length){
-		firstFit.releaseBlock(offset, length);
-		return retrieveSequence(offset, length);
+		String sequence = retrieveSequence(offset, length);
+		releaseSequence(offset, length);
+		return sequence;
+	}
+
+	/**
+	 * Releases the block described by the handle without reading the
+	 * sequence, so any length of sequence can be removed
+	 * 
+	 * @param handle
+	 */
+	public void releaseSequence(MemoryHandle handle) {
+		releaseSequence(handle.getByteOffset(), handle.getSequenceLength());
+	}
+	public void releaseSequence(int offset, int length) {
+		synchronized (allocator) {
+			SharedBlock block = (blocksByOffset != null) ? blocksByOffset
+					.get(offset) : null;
+			if (block != null) {
+				if (--block.references > 0) {
+					return; // Still referred to
+				}
+				blocksByOffset.remove(offset);
+				if (blocksByContent.get(block.key) == block) {
+					blocksByContent.remove(block.key);
+				}
+			}
+			allocator.releaseBlock(offset, getEncodedSequenceLength(length));
+		}
+	}
+
+	/**
+	 * Allocates a block, keeping track of the end of the data so blocks
+	 * allocated at the same time by other threads do not overlap
+	 * 
+	 * @param blockSize
+	 * @return the byte offset of the block
+	 */
+	int allocateBlock(int blockSize) {
+		synchronized (allocator) {
+			int byteOffset = allocator.allocateBlock(blockSize, dataLength);
+			dataLength = Math.max(dataLength, byteOffset + blockSize);
+			return byteOffset;
+		}
 	}
 
 	/**
@@ -96,9 +438,7 @@ public class MemoryManager {
 														// store the sequence
 		try {
 
-			seqAccess.seek(offset);
-
-			seqAccess.read(sequenceBuffer);
+			readBlock(offset, sequenceBuffer);
 
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -109,6 +449,204 @@ public class MemoryManager {
 		return decode(sequenceBuffer, length);
 	}
 	
+	/**
+	 * Compares a stored sequence with packed bases, without decoding it
+	 * 
+	 * @param offset
+	 * @param length
+	 *            in bases
+	 * @param packed
+	 *            the bases, packed by DnaCodec
+	 * @return true if the stored sequence has the same bases
+	 * @throws IOException
+	 */
+	public boolean sequenceEquals(int offset, int length, byte[] packed)
+			throws IOException {
+		int bytes = getEncodedSequenceLength(length);
+		if (packed.length != bytes) {
+			return false;
+		}
+		if (mappedFile != null) {
+			return mappedFile.regionEquals(offset, packed, 0, bytes);
+		}
+		// A chunk at a time, through a buffer kept by each thread
+		byte[] stored = compareBuffer.get();
+		for (int done = 0; done < bytes; done += stored.length) {
+			int n = Math.min(stored.length, bytes - done);
+			readBlock(offset + done, stored, n);
+			for (int i = 0; i < n; i++) {
+				if (stored[i] != packed[done + i]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Opens a stored sequence for reading. Unlike retrieveSequence, only a
+	 * chunk of the sequence is in memory at a time, so any length of
+	 * sequence can be read.
+	 * 
+	 * @param offset
+	 * @param length
+	 *            in bases
+	 * @return
+	 */
+	public SequenceReader openSequence(int offset, int length) {
+		return new SequenceReader(this, offset, length);
+	}
+
+	/**
+	 * Prints a stored sequence on its own line. It is streamed, so a long
+	 * sequence is never in memory all at once.
+	 * 
+	 * @param handle
+	 * @param out
+	 * @throws IOException
+	 */
+	public void printSequence(MemoryHandle handle, PrintStream out)
+			throws IOException {
+		SequenceReader sequence = openSequence(handle.getByteOffset(), handle
+				.getSequenceLength());
+		char[] buffer = new char[Math.min(handle.getSequenceLength(),
+				PRINT_BUFFER_SIZE)];
+		int n;
+		while ((n = sequence.read(buffer, 0, buffer.length)) > 0) {
+			out.print(new String(buffer, 0, n));
+		}
+		out.println();
+	}
+
+	/**
+	 * Starts storing a sequence whose length is not known yet. The bases are
+	 * written to the returned writer, and {@link SequenceWriter#store()} puts
+	 * them in the file.
+	 * 
+	 * @return
+	 */
+	public SequenceWriter newSequence() {
+		return new SequenceWriter(this);
+	}
+
+	/**
+	 * Writes an encoded block to the sequence file
+	 * 
+	 * @param offset
+	 * @param data
+	 * @throws IOException
+	 */
+	private void writeBlock(int offset, byte[] data) throws IOException {
+		writeBlock(offset, data, data.length);
+	}
+
+	/**
+	 * Writes the first length bytes of the data to the sequence file
+	 * 
+	 * @param offset
+	 * @param data
+	 * @param length
+	 * @throws IOException
+	 */
+	void writeBlock(int offset, byte[] data, int length) throws IOException {
+		if (mappedFile != null) {
+			mappedFile.write(offset, data, 0, length);
+		} else {
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+			while (buffer.hasRemaining()) {
+				seqChannel.write(buffer, offset + buffer.position());
+			}
+		}
+	}
+
+	/**
+	 * Reads an encoded block from the sequence file, filling the buffer
+	 * 
+	 * @param offset
+	 * @param buffer
+	 * @throws IOException
+	 */
+	private void readBlock(int offset, byte[] buffer) throws IOException {
+		readBlock(offset, buffer, buffer.length);
+	}
+
+	/**
+	 * Reads the first length bytes of the buffer from the sequence file
+	 * 
+	 * @param offset
+	 * @param buffer
+	 * @param length
+	 * @throws IOException
+	 */
+	void readBlock(int offset, byte[] buffer, int length) throws IOException {
+		if (mappedFile != null) {
+			mappedFile.read(offset, buffer, 0, length);
+		} else {
+			ByteBuffer dst = ByteBuffer.wrap(buffer, 0, length);
+			while (dst.hasRemaining()
+					&& seqChannel.read(dst, offset + dst.position()) >= 0) {
+			}
+		}
+	}
+
+	/**
+	 * Copies a block to a new place in the file. The ranges may overlap when
+	 * the block moves towards the start of the file.
+	 * 
+	 * @param fromOffset
+	 * @param toOffset
+	 * @param size
+	 *            in bytes
+	 * @throws IOException
+	 */
+	public void moveBlock(int fromOffset, int toOffset, int size)
+			throws IOException {
+		byte[] buffer = new byte[Math.min(size, COPY_BUFFER_SIZE)];
+		for (int done = 0; done < size; done += buffer.length) {
+			int n = Math.min(buffer.length, size - done);
+			if (n < buffer.length) {
+				buffer = new byte[n];
+			}
+			readBlock(fromOffset + done, buffer);
+			writeBlock(toOffset + done, buffer);
+		}
+	}
+
+	/**
+	 * Cuts the sequence file down to length bytes. The allocator must not
+	 * hold any free space past the new end.
+	 * 
+	 * @param length
+	 * @throws IOException
+	 */
+	public void truncate(int length) throws IOException {
+		synchronized (allocator) {
+			dataLength = Math.min(dataLength, length);
+		}
+		if (mappedFile == null) {
+			seqAccess.setLength(length);
+		}
+	}
+
+	/**
+	 * @return the allocator deciding where blocks go
+	 */
+	public BlockAllocator getAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * Returns the number of bytes in use in the sequence file. Mapped files
+	 * grow a whole region at a time, so their physical length is not used.
+	 * 
+	 * @return
+	 */
+	public int getFileLength() {
+		synchronized (allocator) {
+			return dataLength;
+		}
+	}
+
 	/**
 	 * Gets the number of bytes: eg ceil(data/4) without need to cast to cast or
 	 * divide
@@ -128,46 +666,7 @@ public class MemoryManager {
 	 */
 	private static byte[] encodeString(String sequence, int numBytes) {
 		byte[] output = new byte[numBytes];
-		StringReader reader = new StringReader(sequence);
-		char[] buffer = new char[4];
-		int charsRead, bytesEncoded = 0;
-		byte encodedValue = 0x0;
-		try {
-			while ((charsRead = reader.read(buffer)) != -1) {
-
-				/*
-				 * Loop through the 4 chars
-				 */
-				for (int i = charsRead - 1; i >= 0; i--) {
-					switch (buffer[i]) {
-					case 'A':
-						encodedValue = 0x0;
-						break;
-					case 'C':
-						encodedValue = 0x1;
-						break;
-					case 'G':
-						encodedValue = 0x2;
-						break;
-					case 'T':
-						encodedValue = 0x3;
-						break;
-					}
-
-					output[bytesEncoded] = (byte) ((output[bytesEncoded] << 2) | encodedValue);
-
-				}
-
-				bytesEncoded++;
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		// System.out.print("    Encoded "+sequence+" to ");
-		// for(byte b : output){
-		// System.out.print(Integer.toHexString(b)+" ");
-		// }
-		// System.out.println("");
+		DnaCodec.encode(sequence, 0, sequence.length(), output, 0);
 		return output;
 	}
 
@@ -179,36 +678,22 @@ public class MemoryManager {
 	 * @return
 	 */
 	public static String decode(byte[] data, int length) {
-		StringBuilder sb = new StringBuilder();
-		// if (getEncodedSequenceLength(length) > data.length) {
-		// System.err.println("Length does not match data!");
-		// return null;
-		// }
-		int byteInd = 0, charsDecoded = 0;
-		while (charsDecoded < length) {
-			byte b = data[byteInd];
-			for (int i = 0; i < 4; i++) {
-				switch (b & 0x3) {
-				case 0x0:
-					sb.append('A');
-					break;
-				case 0x1:
-					sb.append('C');
-					break;
-				case 0x2:
-					sb.append('G');
-					break;
-				case 0x3:
-					sb.append('T');
-					break;
-				}
-				if (++charsDecoded >= length)
-					break;
-				b >>= 2;
-			}
-			byteInd++;
+		char[] sequence = new char[length];
+		DnaCodec.decode(data, 0, length, sequence, 0);
+		return new String(sequence);
+	}
+
+	/**
+	 * Forces everything written so far to the storage device
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (mappedFile != null) {
+			mappedFile.force();
+		} else {
+			seqAccess.getFD().sync();
 		}
-		return sb.toString();
 	}
 
 	/**
@@ -217,6 +702,9 @@ public class MemoryManager {
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
+		if (mappedFile != null) {
+			mappedFile.close(dataLength);
+		}
 		seqAccess.close();
 	}
 
@@ -224,290 +712,76 @@ public class MemoryManager {
 	 * A wrapper method for printing our free block
 	 */
 	public void printFreeBlocks() {
-		firstFit.print();
+		printFreeBlocks(System.out);
 	}
 
 	/**
-	 * Class to implement First-Fit algorithm for determining where to place
-	 * blocks.
-	 * 
-	 * When the memory manager requests(allocates) spaces for a sequence, the
-	 * FirstFitList will find the first free block large enough to accommodate
-	 * the sequence size specified by the MemoryManager.
-	 * 
-	 * See method descriptions below for implementation details.
-	 * 
-	 * Uses nested inner class {@link FreeBlock} to represent offset+size of a
-	 * block
-	 * 
-	 * @author loganlinn
+	 * Prints the free blocks
 	 * 
+	 * @param out
 	 */
-	private class FirstFitList {
-		private LinkedList<FreeBlock> freeBlocks;
-
-		/**
-		 * Constructs a FirstFitList
-		 */
-		public FirstFitList() {
-			freeBlocks = new LinkedList<FreeBlock>();
-		}
-
-		/**
-		 * Releases the memory allocated at the offset and size indicated in the
-		 * MemoryHandle.
-		 * 
-		 * The newly released space is not written to, but simply marked as
-		 * free. The released space's data is overwritten when the block is
-		 * re-allocated
-		 * 
-		 * Combines adjacent free blocks to form larger free blocks.
-		 * 
-		 * Goal: keep the free list at minimal length with blocks of maximal
-		 * size
-		 * 
-		 * Release Scenarios:
-		 * 
-		 * -- There is a free block immediately before the released handle. ->
-		 * increase size of free block
-		 * 
-		 * -- There is a free block immediately after the released handle ->
-		 * increase size of free block, free block offset becomes offset of the
-		 * released file handle
-		 * 
-		 * -- There is a free block immediately before AND after the released
-		 * handle -> remove the free block succeeds the released handle,
-		 * increase the size of the first free block by the size of the released
-		 * handle's size and the removed free block's size. (A merge)
-		 * 
-		 * -- There are no free blocks immediately before OR after -> ---- Free
-		 * list is empty -> create new block and insert into list ---- There are
-		 * sequences stored before and after the handle -> Create a new handle
-		 * and insert it BEFORE the first block with a greater offset. This
-		 * keeps the list of free blocks in order!
-		 * 
-		 * @param handle
-		 */
-		public void releaseBlock(MemoryHandle handle) {
-			releaseBlock(handle.getByteOffset(), handle.getSequenceLength());
-		}
-		public void releaseBlock(int offset, int length) {
-			int size = MemoryManager.getEncodedSequenceLength(length);
-			int end = size + offset;
-
-			/*
-			 * Find blocks that could be merged
-			 */
-			FreeBlock prevBlock = null;
-			FreeBlock nextBlock = null;
-			freeBlocks.moveToStart();
-			while (freeBlocks.hasNext()) {
-				
-				FreeBlock currBlock = freeBlocks.getValue();
-
-				if (currBlock.getEnd() == offset) {
-					prevBlock = currBlock;
-
-					// Break if we have already found our next block
-					if (nextBlock != null) {
-						break;
-					}
-				} else if (currBlock.getOffset() == end) {
-					nextBlock = currBlock;
-
-					// Break if we have already found our previous block
-					if (prevBlock != null) {
-						break;
-					}
-				} else if (currBlock.getOffset() > end) { // No merges possible
-					/*
-					 * Move iterator back so we can INSERT right BEFORE
-					 * currBlock which has a LARGER offset
-					 */
-					freeBlocks.prev();
-					break;
-				}
-				freeBlocks.next();
-			}
-
-			/*
-			 * Determine which release scenario we are in.
-			 */
-			if (prevBlock != null && nextBlock != null) { // Merge
-				freeBlocks.remove(nextBlock);
-				prevBlock.addToEnd(size + nextBlock.getSize());
-			} else if (prevBlock != null) { // A block exists immediately before
-				prevBlock.addToEnd(size);
-			} else if (nextBlock != null) { // A block exists immediately after
-				nextBlock.addToFront(size);
-			} else { // No merging possible
-				/*
-				 * If lists is empty, iterator will add to beginning. Else, we
-				 * are inserting before the bigger
-				 */
-				freeBlocks.insert(new FreeBlock(size, offset));
-			}
-
+	public void printFreeBlocks(PrintStream out) {
+		synchronized (allocator) {
+			allocator.print(out);
 		}
+	}
 
-		/**
-		 * Allocates space for an encoded sequence, given its size in bytes.
-		 * 
-		 * Allocation Sequence:
-		 * 
-		 * -> Step though the free list, looking for a block with the same or
-		 * larger size as the requested size
-		 * 
-		 * -- If we find a block with the exact same size ad the requested size,
-		 * remove the free block from the list
-		 * 
-		 * -- If we find a block larger than requested size, reduce its size by
-		 * MOVING its offset FORWARD (ie take the first part of the sequence)
-		 * 
-		 * -- If a large enough block does not exist, the FirstFitList returns
-		 * an offset beyond the end of the file. When this occurs, if there is a
-		 * free block at the end of the list (previously determined to be too
-		 * small to fully contain the allocated space), the FreeList returns the
-		 * offset of the beginning of that free block.
-		 * 
-		 * 
-		 * Return the byte offset in the file where the sequence will be stored
-		 * 
-		 * @param blockSize
-		 *            in bytes
-		 * @return
-		 */
-		public int allocateBlock(int blockSize) {
-			FreeBlock block = null;
-			freeBlocks.moveToStart();
-			while (freeBlocks.hasNext()) {
-				block = freeBlocks.getValue();
-				if (block.getSize() == blockSize) {
-					/*
-					 * If sizes are exact matches, we consume this block
-					 */
-					freeBlocks.remove();
-					return block.getOffset();
-				} else if (block.getSize() > blockSize) {
-					int offset = block.getOffset();
-					block.takeFromFront(blockSize);
-					return offset;
-				}
-				freeBlocks.next();
-			}
-
-			/*
-			 * If we've gotten this far, we need to expand the file. Need to
-			 * return offset of EOF plus any extra space that was too small.
-			 * Check if the last free block is at end of file.
-			 * 
-			 * If block is null, there are no free blocks, so we store at end
-			 */
-			int eof = (int) sequenceFile.length();
-			if (block != null && block.getEnd() >= eof) {
-				eof -= block.getSize(); // take this free block
-				freeBlocks.remove();
-			}
-			return eof;
-		}
-
-		/**
-		 * Print the FirstFit's free blocks
-		 */
-		public void print() {
-			if (freeBlocks.length() == 0) {
-				System.out.println("Free Block List: none");
-			} else {
-				System.out.println("Free Block List:");
-				System.out.println(freeBlocks);
+	public String toString() {
+		synchronized (allocator) {
+			String text = "Memory file: " + dataLength + " bytes";
+			if (blocksByContent != null) {
+				text += ", " + blocksByOffset.size() + " shared blocks, "
+						+ sharedStores + " stores found their bases stored ("
+						+ sharedBytes + " bytes not written)";
 			}
+			return text;
 		}
+	}
 
-		/**
-		 * Represents a free area in the file
-		 * 
-		 * @author loganlinn
-		 * 
-		 */
-		private class FreeBlock {
-			private int size; // block size in bytes
-			private int offset; // location in file
-
-			/**
-			 * Constructs a FreeBlock
-			 * 
-			 * @param size
-			 *            of block in BYTES
-			 * @param offset
-			 *            from beginning of file in BYTES
-			 */
-			public FreeBlock(int size, int offset) {
-				super();
-				this.size = size;
-				this.offset = offset;
-			}
-
-			/**
-			 * @return the size
-			 */
-			public int getSize() {
-				return size;
-			}
-
-			/**
-			 * @return the offset
-			 */
-			public int getOffset() {
-				return offset;
-			}
-
-			/**
-			 * @return the offset of the end of the free block
-			 */
-			public int getEnd() {
-				return offset + size;
-			}
+	/**
+	 * Identifies packed bases by a digest of the bytes and the number of
+	 * bases, since the padding of the last byte does not tell them apart
+	 * 
+	 * @author loganlinn
+	 * 
+	 */
+	private static class ContentKey {
+		private final byte[] digest;
+		private final int length; // in bases
 
-			/**
-			 * Expand the free block's size from the end by step amount
-			 * 
-			 * @param step
-			 *            size in bytes
-			 */
-			public void addToEnd(int step) {
-				size += step;
-			}
+		public ContentKey(byte[] digest, int length) {
+			this.digest = digest;
+			this.length = length;
+		}
 
-			/**
-			 * Expand the free block's size from the start by step amount
-			 * 
-			 * @param step
-			 *            size in bytes
-			 */
-			public void addToFront(int step) {
-				size += step;
-				offset -= step;
+		public boolean equals(Object other) {
+			if (!(other instanceof ContentKey)) {
+				return false;
 			}
+			ContentKey key = (ContentKey) other;
+			return length == key.length && Arrays.equals(digest, key.digest);
+		}
 
-			/**
-			 * Reduce the free block's size from the start by step amount. Move
-			 * the beginning offset forward by step amount.
-			 * 
-			 * @param step
-			 *            size in bytes
-			 */
-			public void takeFromFront(int step) {
-				size -= step;
-				offset += step;
-			}
+		public int hashCode() {
+			return Arrays.hashCode(digest) ^ length;
+		}
+	} /* end ContentKey */
 
-			/**
-			 * Print a message representing this free block
-			 */
-			public String toString() {
-				return "[Offset: " + offset + ", Size:" + size + "]";
-			}
-		} /* end FreeBlock */
-	} /* end FirstFitList */
+	/**
+	 * A block and the number of handles referring to it
+	 * 
+	 * @author loganlinn
+	 * 
+	 */
+	private static class SharedBlock {
+		private final ContentKey key;
+		private final int offset;
+		private int references = 1;
+
+		public SharedBlock(ContentKey key, int offset) {
+			this.key = key;
+			this.offset = offset;
+		}
+	} /* end SharedBlock */
 
 } /* end MemoryManager */
@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -5,7 +6,85 @@ import java.io.IOException;
  * 
  * == RUNNING ==
  * 
- * P4 <command-file> <hash-file> <hash-table-size> <memory-file>
+ * P4 <command-file> <hash-file> <hash-table-size> <memory-file> [options]
+ * 
+ * The sequence of an insert is on the line after it, and may go on over the
+ * following lines that start with an upper case letter. Sequences of any
+ * length are stored, searched and removed a chunk at a time.
+ * 
+ * Besides insert, remove, search, print and reorganize, the command file may
+ * hold "contains <pattern>", which lists the IDs of the sequences that
+ * contain the pattern, "prefix <prefix>", which lists the IDs that start
+ * with the prefix, and "range <from> <to>", which lists the IDs from one ID
+ * to the other in lexicographic order.
+ * 
+ * == OPTIONS ==
+ * 
+ * -mmap : access the memory file through memory mapped regions
+ * 
+ * -mmap-hash : map the hash file into memory and access slots in place
+ * 
+ * -bestfit : reuse the smallest free block that fits instead of the first
+ * 
+ * -buddy : allocate the memory file with a binary buddy system
+ * 
+ * -compact[=<bytes>] : compact the memory file between commands, moving at
+ * most this many bytes each time
+ * 
+ * -pool=<frames>[,lru|,clock] : number of hash file buckets kept in memory
+ * and how they are evicted (default 64, clock)
+ * 
+ * -hash=<packed|sfold> : hash function for sequence IDs; packed (the default)
+ * mixes the 2-bit packed ID, sfold is the original string folding
+ * 
+ * -grow[=<load>] : grow the hash file a bucket at a time, splitting buckets
+ * whenever the table is fuller than this many entries per slot (default
+ * 0.8), instead of rejecting inserts when a bucket is full
+ * 
+ * -reorg=<ratio> : reorganize a bucket once this fraction of its slots are
+ * tombstones (default 0.25; 0 only reorganizes on the reorganize command)
+ * 
+ * -robinhood : place entries within a bucket by Robin Hood hashing
+ * 
+ * -overflow : chain full buckets to overflow buckets instead of rejecting
+ * inserts (with -grow alone, a full bucket only chains overflow buckets
+ * until it is split)
+ * 
+ * -dedup : store each distinct sequence once, shared by every ID that has it
+ * (not with -compact)
+ * 
+ * -reopen : keep the table already in the hash and memory files, if there is
+ * one, and run the commands against it. The table size and the options that
+ * shape the table (-hash, -grow, -robinhood, -overflow, -dedup) come from
+ * the hash file.
+ * 
+ * -wal=<file>[,op|,batch[=<n>]|,periodic[=<ms>]] : log every insert and
+ * remove to a write-ahead log, synced after every operation, every n
+ * operations (default 64) or every ms milliseconds (default 100). With
+ * -reopen, the log is replayed first, so operations since the files were
+ * last flushed survive a crash. With -compact, entries are logged before
+ * their blocks are moved too.
+ * 
+ * -batch[=<n>] : make runs of consecutive inserts together, up to n at a
+ * time (default 256), storing their data in one write and placing them in
+ * order of home bucket
+ * 
+ * -kmer=<file>[,<k>] : keep an index of the k-mers (default 8 bases) of the
+ * sequences in this file, so the contains command only reads the sequences
+ * that have the pattern's k-mers. With -reopen, an index that was not closed
+ * with the table is built again.
+ * 
+ * -ids=<file> : keep an ordered index (a B+-tree) of the sequence IDs in this
+ * file, so the prefix and range commands only read the IDs they list. With
+ * -reopen, an index that was not closed with the table is built again.
+ * 
+ * -threads=<n> : run the commands in a pipeline (reading, executing and
+ * printing on separate threads), with runs of consecutive searches spread
+ * over n threads. The output is the same, in the same order. Up to 1024
+ * searches wait to be printed; each only holds where its sequence is, and
+ * the sequence is streamed from the memory file as it is printed.
+ * 
+ * -stats : print hash table and buffer pool statistics to stderr when done
  * 
  * 
  * @author loganlinn
@@ -52,21 +131,246 @@ public class P4 {
 	public static final int IND_HASH_FILE = 1;
 	public static final int IND_HASH_TABLE_SIZE = 2;
 	public static final int IND_MEMORY_FILE = 3;
+	public static final int IND_FIRST_OPTION = 4;
+
+	public static final float DEFAULT_MAX_LOAD_FACTOR = 0.8f;
+
+	public static final String OPTION_MEMORY_MAPPED = "-mmap";
+	public static final String OPTION_HASH_MAPPED = "-mmap-hash";
+	public static final String OPTION_BEST_FIT = "-bestfit";
+	public static final String OPTION_BUDDY = "-buddy";
+	public static final String OPTION_COMPACT = "-compact";
+	public static final String OPTION_BUFFER_POOL = "-pool=";
+	public static final String OPTION_HASH = "-hash=";
+	public static final String OPTION_GROW = "-grow";
+	public static final String OPTION_REORGANIZE = "-reorg=";
+	public static final String OPTION_ROBIN_HOOD = "-robinhood";
+	public static final String OPTION_OVERFLOW = "-overflow";
+	public static final String OPTION_DEDUPLICATE = "-dedup";
+	public static final String OPTION_REOPEN = "-reopen";
+	public static final String OPTION_WAL = "-wal=";
+	public static final String OPTION_BATCH = "-batch";
+	public static final String OPTION_KMER_INDEX = "-kmer=";
+	public static final String OPTION_ID_INDEX = "-ids=";
+	public static final String OPTION_THREADS = "-threads=";
+	public static final String OPTION_STATISTICS = "-stats";
 
 	public static void main(String[] args) throws IOException {
+		boolean memoryMapped = false;
+		boolean hashMapped = false;
+		boolean printStatistics = false;
+		FreeSpaceIndex.FitPolicy fitPolicy = FreeSpaceIndex.FitPolicy.FIRST_FIT;
+		boolean buddy = false;
+		int compactSliceBytes = 0;
+		int poolFrames = BufferPoolBucketStore.DEFAULT_NUM_FRAMES;
+		BufferPoolBucketStore.EvictionPolicy poolPolicy = BufferPoolBucketStore.EvictionPolicy.CLOCK;
+		SequenceHasher hasher = new PackedDnaHasher();
+		float maxLoadFactor = 0;
+		float tombstoneRatio = HashTable.DEFAULT_TOMBSTONE_RATIO;
+		boolean robinHood = false;
+		boolean overflow = false;
+		boolean deduplicate = false;
+		boolean reopen = false;
+		String logFile = null;
+		WriteAheadLog.SyncPolicy syncPolicy = WriteAheadLog.SyncPolicy.EVERY_BATCH;
+		int syncParameter = WriteAheadLog.DEFAULT_BATCH_SIZE;
+		int batchSize = 1;
+		String kmerFile = null;
+		int kmerLength = KmerIndex.DEFAULT_K;
+		String idFile = null;
+		int threads = 1;
+		for (int i = IND_FIRST_OPTION; i < args.length; i++) {
+			if (OPTION_MEMORY_MAPPED.equals(args[i])) {
+				memoryMapped = true;
+			} else if (OPTION_HASH_MAPPED.equals(args[i])) {
+				hashMapped = true;
+			} else if (OPTION_BEST_FIT.equals(args[i])) {
+				fitPolicy = FreeSpaceIndex.FitPolicy.BEST_FIT;
+			} else if (OPTION_BUDDY.equals(args[i])) {
+				buddy = true;
+			} else if (args[i].startsWith(OPTION_COMPACT)) {
+				compactSliceBytes = Compactor.DEFAULT_SLICE_BYTES;
+				if (args[i].startsWith(OPTION_COMPACT + "=")) {
+					compactSliceBytes = Integer.parseInt(args[i]
+							.substring(OPTION_COMPACT.length() + 1));
+				}
+			} else if (args[i].startsWith(OPTION_BUFFER_POOL)) {
+				String[] pool = args[i].substring(OPTION_BUFFER_POOL.length())
+						.split(",");
+				poolFrames = Integer.parseInt(pool[0]);
+				if (pool.length > 1) {
+					poolPolicy = BufferPoolBucketStore.EvictionPolicy
+							.valueOf(pool[1].toUpperCase());
+				}
+			} else if (args[i].startsWith(OPTION_HASH)) {
+				String hash = args[i].substring(OPTION_HASH.length());
+				if ("sfold".equals(hash)) {
+					hasher = new SfoldHasher();
+				} else if ("packed".equals(hash)) {
+					hasher = new PackedDnaHasher();
+				} else {
+					System.err.println("Unknown hash function: " + hash);
+				}
+			} else if (args[i].startsWith(OPTION_GROW)) {
+				maxLoadFactor = DEFAULT_MAX_LOAD_FACTOR;
+				if (args[i].startsWith(OPTION_GROW + "=")) {
+					maxLoadFactor = Float.parseFloat(args[i]
+							.substring(OPTION_GROW.length() + 1));
+				}
+			} else if (args[i].startsWith(OPTION_REORGANIZE)) {
+				tombstoneRatio = Float.parseFloat(args[i]
+						.substring(OPTION_REORGANIZE.length()));
+			} else if (OPTION_ROBIN_HOOD.equals(args[i])) {
+				robinHood = true;
+			} else if (OPTION_OVERFLOW.equals(args[i])) {
+				overflow = true;
+			} else if (OPTION_DEDUPLICATE.equals(args[i])) {
+				deduplicate = true;
+			} else if (OPTION_REOPEN.equals(args[i])) {
+				reopen = true;
+			} else if (args[i].startsWith(OPTION_WAL)) {
+				String[] wal = args[i].substring(OPTION_WAL.length()).split(",");
+				logFile = wal[0];
+				if (wal.length > 1) {
+					String[] sync = wal[1].split("=");
+					if ("op".equals(sync[0])) {
+						syncPolicy = WriteAheadLog.SyncPolicy.EVERY_OPERATION;
+					} else if ("periodic".equals(sync[0])) {
+						syncPolicy = WriteAheadLog.SyncPolicy.PERIODIC;
+						syncParameter = WriteAheadLog.DEFAULT_INTERVAL_MILLIS;
+					} else if (!"batch".equals(sync[0])) {
+						System.err.println("Unknown sync policy: " + sync[0]);
+					}
+					if (sync.length > 1) {
+						syncParameter = Integer.parseInt(sync[1]);
+					}
+				}
+			} else if (args[i].startsWith(OPTION_BATCH)) {
+				batchSize = CommandFile.DEFAULT_BATCH_SIZE;
+				if (args[i].startsWith(OPTION_BATCH + "=")) {
+					batchSize = Integer.parseInt(args[i]
+							.substring(OPTION_BATCH.length() + 1));
+				}
+			} else if (args[i].startsWith(OPTION_KMER_INDEX)) {
+				String[] kmer = args[i].substring(OPTION_KMER_INDEX.length())
+						.split(",");
+				kmerFile = kmer[0];
+				if (kmer.length > 1) {
+					kmerLength = Integer.parseInt(kmer[1]);
+				}
+			} else if (args[i].startsWith(OPTION_ID_INDEX)) {
+				idFile = args[i].substring(OPTION_ID_INDEX.length());
+			} else if (args[i].startsWith(OPTION_THREADS)) {
+				threads = Integer.parseInt(args[i].substring(OPTION_THREADS
+						.length()));
+			} else if (OPTION_STATISTICS.equals(args[i])) {
+				printStatistics = true;
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+			}
+		}
+
+		BlockAllocator allocator;
+		if (buddy) {
+			allocator = new BuddyAllocator();
+		} else {
+			allocator = new FreeSpaceIndex(fitPolicy);
+		}
+		// Only reopen if there is something to reopen
+		reopen = reopen && new File(args[IND_HASH_FILE]).length() > 0;
 		MemoryManager sequenceFileMemoryManager = new MemoryManager(
-				args[IND_MEMORY_FILE]);
+				args[IND_MEMORY_FILE], memoryMapped, allocator, reopen);
 		
 		int hashTableSize = Integer.parseInt(args[IND_HASH_TABLE_SIZE]);
 		
-		HashTable hashTable = new HashTable(args[IND_HASH_FILE],
-				hashTableSize, sequenceFileMemoryManager);
+		BucketStore bucketStore;
+		if (hashMapped) {
+			bucketStore = new MappedBucketStore(args[IND_HASH_FILE],
+					HashTable.SLOTS_IN_BUCKET, reopen);
+		} else {
+			bucketStore = new BufferPoolBucketStore(args[IND_HASH_FILE],
+					HashTable.SLOTS_IN_BUCKET, poolFrames, poolPolicy, reopen);
+		}
+		HashTable hashTable;
+		if (reopen) {
+			hashTable = new HashTable(sequenceFileMemoryManager, bucketStore);
+		} else {
+			hashTable = new HashTable(hashTableSize,
+					sequenceFileMemoryManager, bucketStore, hasher);
+			hashTable.setMaxLoadFactor(maxLoadFactor);
+			hashTable.setRobinHood(robinHood);
+			hashTable.setOverflow(overflow);
+			hashTable.setDeduplicating(deduplicate);
+		}
+		hashTable.setTombstoneRatio(tombstoneRatio);
+
+		KmerIndex kmerIndex = null;
+		if (kmerFile != null) {
+			kmerIndex = new KmerIndex(new BufferPoolBucketStore(kmerFile,
+					KmerIndex.PAGE_INTS, poolFrames, poolPolicy, reopen),
+					kmerLength, reopen);
+			hashTable.setKmerIndex(kmerIndex);
+		}
+		IdIndex idIndex = null;
+		if (idFile != null) {
+			idIndex = new IdIndex(new BufferPoolBucketStore(idFile,
+					IdIndex.PAGE_INTS, poolFrames, poolPolicy, reopen),
+					sequenceFileMemoryManager, reopen);
+			hashTable.setIdIndex(idIndex);
+		}
+
+		WriteAheadLog log = null;
+		if (logFile != null) {
+			log = new WriteAheadLog(logFile, syncPolicy, syncParameter);
+			if (reopen) {
+				log.replay(hashTable, sequenceFileMemoryManager);
+			}
+			// A new table has no history; either way the files are now on
+			// disk with the table's settings, so the log can start over
+			log.checkpoint(hashTable, sequenceFileMemoryManager);
+		}
 		
 		CommandFile commandFile = new CommandFile(args[IND_COMMAND_FILE],
 				hashTable, sequenceFileMemoryManager);
 		
+		Compactor compactor = null;
+		if (compactSliceBytes > 0) {
+			compactor = new Compactor(hashTable, sequenceFileMemoryManager,
+					compactSliceBytes);
+			compactor.setWriteAheadLog(log);
+			commandFile.setCompactor(compactor);
+		}
+		commandFile.setWriteAheadLog(log);
+		commandFile.setBatchSize(batchSize);
+		commandFile.setThreads(threads);
+
 		commandFile.parse();
 
+		if (printStatistics) {
+			System.err.println(hashTable);
+			System.err.println(bucketStore);
+			System.err.println(sequenceFileMemoryManager);
+			if (compactor != null) {
+				System.err.println(compactor);
+			}
+			if (kmerIndex != null) {
+				System.err.println(kmerIndex);
+			}
+			if (idIndex != null) {
+				System.err.println(idIndex);
+			}
+			if (log != null) {
+				System.err.println(log);
+			}
+		}
+		hashTable.close();
+		sequenceFileMemoryManager.flush();
+		sequenceFileMemoryManager.close();
+		if (log != null) {
+			// The files are clean, so the log is not needed
+			log.truncate();
+			log.close();
+		}
 	}
 
 }
@@ -0,0 +1,174 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares probe lengths of linear probing and Robin Hood placement at high
+ * load factors.
+ *
+ * For each load, a fixed size table is filled with random IDs, then churned
+ * (a quarter of the IDs removed and replaced by new ones). After each phase
+ * every stored ID is looked up, as well as the same number of IDs that are
+ * not stored, and the mean and longest probe (in slots) is reported.
+ *
+ * == RUNNING ==
+ *
+ * ProbeBenchmark [hash-table-size]
+ *
+ * @author loganlinn
+ *
+ */
+public class ProbeBenchmark {
+	private static final int DEFAULT_TABLE_SIZE = 1 << 15;
+	private static final float[] LOADS = { 0.70f, 0.75f, 0.80f, 0.85f,
+			0.90f, 0.95f };
+
+	public static void main(String[] args) throws IOException {
+		int tableSize = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_TABLE_SIZE;
+
+		System.out.println("                        "
+				+ "----- hit -----  ----- miss ----");
+		System.out.println("policy       load phase   mean   max    "
+				+ "mean   max  rejected");
+		for (float load : LOADS) {
+			run("linear", false, load, tableSize);
+			run("robin hood", true, load, tableSize);
+		}
+	}
+
+	/**
+	 * Fills and churns a fresh table, printing the probe lengths after each
+	 * phase
+	 *
+	 * @param name
+	 * @param robinHood
+	 * @param load
+	 * @param tableSize
+	 * @throws IOException
+	 */
+	private static void run(String name, boolean robinHood, float load,
+			int tableSize) throws IOException {
+		File hashFile = File.createTempFile("bench", ".hash");
+		File memoryFile = File.createTempFile("bench", ".mem");
+		hashFile.deleteOnExit();
+		memoryFile.deleteOnExit();
+
+		MemoryManager memoryManager = new MemoryManager(memoryFile.getPath());
+		HashTable hashTable = new HashTable(hashFile.getPath(), tableSize,
+				memoryManager);
+		hashTable.setRobinHood(robinHood);
+		hashTable.setTombstoneRatio(0); // Leave the tombstones in place
+
+		Random random = new Random(3114);
+		Set<String> used = new HashSet<String>();
+		List<String> stored = new ArrayList<String>();
+		int target = (int) (load * hashTable.slotCount());
+		int rejected = fill(hashTable, memoryManager, random, used, stored,
+				target);
+		report(name, load, "fill", hashTable, random, used, stored, rejected);
+
+		// Swap a quarter of the IDs for new ones
+		PrintStream discard = new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		});
+		try {
+			for (int i = stored.size() / 4; i > 0; i--) {
+				hashTable.remove(stored.remove(random.nextInt(stored.size())),
+						discard);
+			}
+		} catch (SequenceNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+		rejected += fill(hashTable, memoryManager, random, used, stored,
+				target);
+		report(name, load, "churn", hashTable, random, used, stored, rejected);
+
+		hashTable.close();
+		memoryManager.close();
+	}
+
+	/**
+	 * Inserts new random IDs until the table holds target entries, or as many
+	 * as fit
+	 *
+	 * @return the number of inserts rejected because a bucket was full
+	 */
+	private static int fill(HashTable hashTable, MemoryManager memoryManager,
+			Random random, Set<String> used, List<String> stored, int target)
+			throws IOException {
+		int rejected = 0;
+		int attempts = 0;
+		while (stored.size() < target && attempts++ < 2 * target) {
+			String id = newId(random, used);
+			MemoryHandle idHandle = memoryManager.storeSequence(id);
+			MemoryHandle sequenceHandle = memoryManager.storeSequence(id);
+			try {
+				hashTable.insert(id, idHandle, sequenceHandle);
+				stored.add(id);
+			} catch (HashTableFullException e) {
+				memoryManager.releaseSequence(idHandle);
+				memoryManager.releaseSequence(sequenceHandle);
+				rejected++;
+			} catch (DuplicateSequenceException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return rejected;
+	}
+
+	/**
+	 * Looks up every stored ID and as many missing ones, printing the probe
+	 * lengths
+	 */
+	private static void report(String name, float load, String phase,
+			HashTable hashTable, Random random, Set<String> used,
+			List<String> stored, int rejected) throws IOException {
+		long hitTotal = 0;
+		long hitMax = 0;
+		for (String id : stored) {
+			long probes = probe(hashTable, id);
+			hitTotal += probes;
+			hitMax = Math.max(hitMax, probes);
+		}
+		long missTotal = 0;
+		long missMax = 0;
+		for (int i = 0; i < stored.size(); i++) {
+			long probes = probe(hashTable, newId(random, used));
+			missTotal += probes;
+			missMax = Math.max(missMax, probes);
+		}
+		System.out.printf("%-10s  %4.2f  %-5s  %5.2f  %4d   %5.2f  %4d  %8d%n",
+				name, load, phase, (double) hitTotal / stored.size(), hitMax,
+				(double) missTotal / stored.size(), missMax, rejected);
+	}
+
+	/**
+	 * @return the number of slots looked at to find (or not find) the ID
+	 */
+	private static long probe(HashTable hashTable, String id)
+			throws IOException {
+		long before = hashTable.getSlotsProbed();
+		hashTable.findSlot(id);
+		return hashTable.getSlotsProbed() - before;
+	}
+
+	private static String newId(Random random, Set<String> used) {
+		String id;
+		do {
+			char[] bases = new char[8 + random.nextInt(9)];
+			for (int i = 0; i < bases.length; i++) {
+				bases[i] = "ACGT".charAt(random.nextInt(4));
+			}
+			id = new String(bases);
+		} while (!used.add(id));
+		return id;
+	}
+}
@@ -0,0 +1,466 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Crash and reopen checks for the hash table and its write-ahead log.
+ *
+ * A crash is simulated by dropping the open table, memory manager and log
+ * without closing them: whatever the buffer pool has not written out is
+ * lost, as it would be if the process were killed. The files are then
+ * reopened the way P4 -reopen does, and every logged operation must be
+ * there.
+ *
+ * RecoveryTest [<scratch directory>]
+ *
+ * Prints each check and exits with status 1 if one fails.
+ *
+ * @author loganlinn
+ *
+ */
+public class RecoveryTest {
+	private static final int NUM_SLOTS = 20000;
+	private static final int POOL_FRAMES = 2; // So most buckets are evicted
+	private static final int NUM_INSERTS = 2000;
+	private static final int SEQUENCE_LENGTH = 50;
+	private static final int LONG_SEQUENCE_LENGTH = 100000; // Several chunks
+
+	private static File directory;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException {
+		directory = new File(args.length > 0 ? args[0] : System
+				.getProperty("java.io.tmpdir"));
+		crashBeforeCheckpointTest();
+		crashAfterSetupTest();
+		staleEntryTest();
+		streamedInsertTest();
+		compactionTest();
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * A new table is filled through the log and the process dies before any
+	 * checkpoint: the header must already be on disk, and replay must put
+	 * back every insert
+	 *
+	 * @throws IOException
+	 */
+	public static void crashBeforeCheckpointTest() throws IOException {
+		Map<String, String> expected = sequences(1);
+		MemoryManager memoryManager = newMemoryManager(false);
+		HashTable hashTable = new HashTable(NUM_SLOTS, memoryManager,
+				newBucketStore(false));
+		WriteAheadLog log = newLog();
+		log.truncate();
+		insertAll(hashTable, memoryManager, log, expected);
+		// Crash: nothing is closed or flushed
+
+		check("crash before the first checkpoint", expected);
+	}
+
+	/**
+	 * A new growing table is set up the way P4 does, checkpointed, filled
+	 * through the log and the process dies: the settings made after the
+	 * table was created must survive, or replay runs out of room
+	 *
+	 * @throws IOException
+	 */
+	public static void crashAfterSetupTest() throws IOException {
+		Map<String, String> expected = sequences(2);
+		MemoryManager memoryManager = newMemoryManager(false);
+		HashTable hashTable = new HashTable(64, memoryManager,
+				newBucketStore(false));
+		hashTable.setMaxLoadFactor(P4.DEFAULT_MAX_LOAD_FACTOR);
+		WriteAheadLog log = newLog();
+		log.checkpoint(hashTable, memoryManager);
+		insertAll(hashTable, memoryManager, log, expected);
+
+		check("crash in a growing table", expected);
+	}
+
+	/**
+	 * An entry is removed and a new entry in another bucket reuses its
+	 * sequence's block for its ID. The new entry's bucket reaches the disk
+	 * but the removed entry's bucket does not, so after the crash the stale
+	 * entry still has a good ID and refers to a block of the new entry.
+	 * Replaying the remove must not free that block.
+	 *
+	 * @throws IOException
+	 */
+	public static void staleEntryTest() throws IOException {
+		String name = "entry left behind when its blocks were reused";
+		Random random = new Random(3);
+		MemoryManager memoryManager = newMemoryManager(false);
+		HashTable hashTable = new HashTable(NUM_SLOTS, memoryManager,
+				newBucketStore(false));
+		WriteAheadLog log = newLog();
+		log.checkpoint(hashTable, memoryManager);
+		Map<String, String> expected = new LinkedHashMap<String, String>();
+
+		// Leave a 4 byte hole at the start of the memory file, then put the
+		// sequence of the entry to be removed in it, and its long ID at the
+		// end, followed by another entry so the end stays in use
+		String holeID = bases(random, 12);
+		insert(hashTable, memoryManager, log, holeID, bases(random, 4), null);
+		insert(hashTable, memoryManager, log, bases(random, 12), bases(
+				random, 4), expected);
+		remove(hashTable, log, holeID, expected);
+		String removedID = bases(random, 60);
+		insert(hashTable, memoryManager, log, removedID, bases(random, 12),
+				null);
+		insert(hashTable, memoryManager, log, bases(random, 12), bases(
+				random, 4), expected);
+		log.checkpoint(hashTable, memoryManager);
+		int page = bucketOf(hashTable, removedID);
+		int[] stalePage = new int[HashTable.SLOTS_IN_BUCKET];
+		for (int i = 0; i < stalePage.length; i++) {
+			stalePage[i] = hashTable.getBucketStore().getInt(page, i);
+		}
+
+		// The next ID takes the freed sequence block; its long sequence
+		// does not fit where the removed ID was
+		remove(hashTable, log, removedID, expected);
+		String reusingID;
+		do {
+			reusingID = bases(random, 12);
+		} while (bucketOf(hashTable, reusingID) == page);
+		insert(hashTable, memoryManager, log, reusingID, bases(random, 80),
+				expected);
+		memoryManager.flush();
+		hashTable.flush();
+		// Crash as if the removed entry's bucket was last written before
+		// the remove
+		BucketStore bucketStore = newBucketStore(true);
+		for (int i = 0; i < stalePage.length; i++) {
+			bucketStore.putInt(page, i, stalePage[i]);
+		}
+		bucketStore.close();
+
+		check(name, expected);
+	}
+
+	/**
+	 * Long sequences are stored through a SequenceWriter and logged packed,
+	 * and the process dies while the last one is being logged: replay must
+	 * put back the others from their packed records, and drop the torn one
+	 *
+	 * @throws IOException
+	 */
+	public static void streamedInsertTest() throws IOException {
+		Random random = new Random(4);
+		Map<String, String> expected = new LinkedHashMap<String, String>();
+		MemoryManager memoryManager = newMemoryManager(false);
+		HashTable hashTable = new HashTable(NUM_SLOTS, memoryManager,
+				newBucketStore(false));
+		WriteAheadLog log = newLog();
+		log.checkpoint(hashTable, memoryManager);
+		for (int i = 0; i < 4; i++) {
+			insert(hashTable, memoryManager, log, bases(random, 12), bases(
+					random, SEQUENCE_LENGTH), expected);
+			insertStreamed(hashTable, memoryManager, log, bases(random, 12),
+					bases(random, LONG_SEQUENCE_LENGTH + i), expected);
+		}
+		// Crash while the last record is written, before its insert
+		SequenceWriter sequenceWriter = memoryManager.newSequence();
+		sequenceWriter.append(bases(random, LONG_SEQUENCE_LENGTH));
+		log.logInsert(bases(random, 12), memoryManager, sequenceWriter
+				.store());
+		RandomAccessFile logFile = new RandomAccessFile(new File(directory,
+				"recovery.wal"), "rw");
+		logFile.setLength(logFile.length() - LONG_SEQUENCE_LENGTH / 8);
+		logFile.close();
+
+		check("crash while logging a long sequence", expected);
+	}
+
+	/**
+	 * Half the entries are removed, the table is checkpointed, and the
+	 * memory file is compacted through the log. New inserts then take the
+	 * space the moved blocks were in, and the process dies before any bucket
+	 * is written again: the buckets on disk still refer to the old offsets,
+	 * so replay must put back the moved entries from the log
+	 *
+	 * @throws IOException
+	 */
+	public static void compactionTest() throws IOException {
+		Random random = new Random(5);
+		Map<String, String> expected = new LinkedHashMap<String, String>();
+		MemoryManager memoryManager = newMemoryManager(false);
+		HashTable hashTable = new HashTable(NUM_SLOTS, memoryManager,
+				newBucketStore(false));
+		WriteAheadLog log = newLog();
+		log.checkpoint(hashTable, memoryManager);
+		for (Map.Entry<String, String> entry : sequences(5).entrySet()) {
+			insert(hashTable, memoryManager, log, entry.getKey(), entry
+					.getValue(), expected);
+		}
+		int i = 0;
+		for (String sequenceID : expected.keySet().toArray(new String[0])) {
+			if (i++ % 2 == 0) {
+				remove(hashTable, log, sequenceID, expected);
+			}
+		}
+		log.checkpoint(hashTable, memoryManager);
+		BucketStore bucketStore = hashTable.getBucketStore();
+		int[][] stalePages = new int[bucketStore.getNumBuckets()][];
+		for (int page = 0; page < stalePages.length; page++) {
+			stalePages[page] = new int[HashTable.SLOTS_IN_BUCKET];
+			for (int j = 0; j < HashTable.SLOTS_IN_BUCKET; j++) {
+				stalePages[page][j] = bucketStore.getInt(page, j);
+			}
+		}
+
+		Compactor compactor = new Compactor(hashTable, memoryManager, 256);
+		compactor.setWriteAheadLog(log);
+		// Space is only cut off once every block has been moved down
+		while (compactor.getBytesReclaimed() == 0) {
+			compactor.runSlice();
+		}
+		for (int j = 0; j < NUM_INSERTS / 2; j++) {
+			insert(hashTable, memoryManager, log, bases(random, 13), bases(
+					random, SEQUENCE_LENGTH), expected);
+		}
+		memoryManager.flush();
+		hashTable.flush();
+		// Crash as if no bucket was written since the checkpoint
+		bucketStore = newBucketStore(true);
+		for (int page = 0; page < stalePages.length; page++) {
+			for (int j = 0; j < HashTable.SLOTS_IN_BUCKET; j++) {
+				bucketStore.putInt(page, j, stalePages[page][j]);
+			}
+		}
+		bucketStore.close();
+
+		check("crash after compacting", expected);
+	}
+
+	private static int bucketOf(HashTable hashTable, String sequenceID) {
+		return hashTable.homeSlot(sequenceID) / HashTable.BUCKET_SIZE;
+	}
+
+	/**
+	 * Reopens the files left by a crash, replays the log and compares the
+	 * table with the sequences that were inserted. Then inserts more, which
+	 * must not take the blocks of any entry.
+	 *
+	 * @param name
+	 * @param expected
+	 *            every sequence in the table, by ID
+	 * @throws IOException
+	 */
+	private static void check(String name, Map<String, String> expected)
+			throws IOException {
+		MemoryManager memoryManager = newMemoryManager(true);
+		HashTable hashTable;
+		try {
+			hashTable = new HashTable(memoryManager, newBucketStore(true));
+		} catch (IOException e) {
+			fail(name, "reopen failed: " + e);
+			memoryManager.close();
+			return;
+		} catch (RuntimeException e) {
+			fail(name, "reopen failed: " + e);
+			memoryManager.close();
+			return;
+		}
+		WriteAheadLog log = newLog();
+		log.replay(hashTable, memoryManager);
+		log.checkpoint(hashTable, memoryManager);
+
+		String problem = compare(hashTable, expected);
+		if (problem == null) {
+			Map<String, String> more = sequences(0);
+			for (Map.Entry<String, String> entry : more.entrySet()) {
+				if (!expected.containsKey(entry.getKey())) {
+					insert(hashTable, memoryManager, log, entry.getKey(),
+							entry.getValue(), expected);
+				}
+			}
+			problem = compare(hashTable, expected);
+			if (problem != null) {
+				problem = "after more inserts, " + problem;
+			}
+		}
+		if (problem != null) {
+			fail(name, problem);
+		} else {
+			System.out.println("ok: " + name);
+		}
+		hashTable.close();
+		memoryManager.close();
+		log.truncate();
+		log.close();
+	}
+
+	/**
+	 * @param hashTable
+	 * @param expected
+	 * @return what is wrong with the table, or null if it holds exactly the
+	 *         expected sequences
+	 * @throws IOException
+	 */
+	private static String compare(HashTable hashTable,
+			Map<String, String> expected) throws IOException {
+		int missing = 0;
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			if (!entry.getValue().equals(hashTable.getSequence(entry.getKey()))) {
+				missing++;
+			}
+		}
+		if (missing > 0) {
+			return missing + " of " + expected.size()
+					+ " sequences missing or wrong";
+		} else if (hashTable.size() != expected.size()) {
+			return hashTable.size() + " entries instead of " + expected.size();
+		}
+		return null;
+	}
+
+	private static void fail(String name, String message) {
+		System.out.println("FAILED: " + name + ": " + message);
+		failures++;
+	}
+
+	/**
+	 * Inserts sequences, logging each as CommandFile does
+	 *
+	 * @param hashTable
+	 * @param memoryManager
+	 * @param log
+	 * @param sequences
+	 * @throws IOException
+	 */
+	private static void insertAll(HashTable hashTable,
+			MemoryManager memoryManager, WriteAheadLog log,
+			Map<String, String> sequences) throws IOException {
+		for (Map.Entry<String, String> entry : sequences.entrySet()) {
+			insert(hashTable, memoryManager, log, entry.getKey(), entry
+					.getValue(), null);
+		}
+	}
+
+	/**
+	 * Inserts a sequence, logging it as CommandFile does
+	 *
+	 * @param hashTable
+	 * @param memoryManager
+	 * @param log
+	 * @param sequenceID
+	 * @param sequence
+	 * @param expected
+	 *            the sequence is added to it, unless it is null
+	 * @throws IOException
+	 */
+	private static void insert(HashTable hashTable,
+			MemoryManager memoryManager, WriteAheadLog log, String sequenceID,
+			String sequence, Map<String, String> expected) throws IOException {
+		log.logInsert(sequenceID, sequence);
+		try {
+			hashTable.insert(sequenceID, memoryManager
+					.storeSequence(sequenceID), memoryManager
+					.storeSequence(sequence));
+		} catch (HashTableFullException e) {
+			throw new IllegalStateException(e);
+		} catch (DuplicateSequenceException e) {
+			throw new IllegalStateException(e);
+		}
+		if (expected != null) {
+			expected.put(sequenceID, sequence);
+		}
+	}
+
+	/**
+	 * Inserts a sequence too long to keep as a String, logging it as
+	 * CommandFile does
+	 *
+	 * @param hashTable
+	 * @param memoryManager
+	 * @param log
+	 * @param sequenceID
+	 * @param sequence
+	 * @param expected
+	 *            the sequence is added to it
+	 * @throws IOException
+	 */
+	private static void insertStreamed(HashTable hashTable,
+			MemoryManager memoryManager, WriteAheadLog log, String sequenceID,
+			String sequence, Map<String, String> expected) throws IOException {
+		SequenceWriter sequenceWriter = memoryManager.newSequence();
+		sequenceWriter.append(sequence);
+		MemoryHandle sequenceIdHandle = memoryManager.storeSequence(sequenceID);
+		MemoryHandle sequenceHandle = sequenceWriter.store();
+		log.logInsert(sequenceID, memoryManager, sequenceHandle);
+		try {
+			hashTable.insert(sequenceID, sequenceIdHandle, sequenceHandle);
+		} catch (HashTableFullException e) {
+			throw new IllegalStateException(e);
+		} catch (DuplicateSequenceException e) {
+			throw new IllegalStateException(e);
+		}
+		expected.put(sequenceID, sequence);
+	}
+
+	/**
+	 * Removes a sequence, logging it as CommandFile does
+	 *
+	 * @param hashTable
+	 * @param log
+	 * @param sequenceID
+	 * @param expected
+	 *            the sequence is taken out of it
+	 * @throws IOException
+	 */
+	private static void remove(HashTable hashTable, WriteAheadLog log,
+			String sequenceID, Map<String, String> expected)
+			throws IOException {
+		log.logRemove(sequenceID);
+		hashTable.removeEntry(sequenceID, hashTable.findSlot(sequenceID));
+		expected.remove(sequenceID);
+	}
+
+	/**
+	 * @param seed
+	 * @return NUM_INSERTS random IDs and their sequences
+	 */
+	private static Map<String, String> sequences(long seed) {
+		Random random = new Random(seed);
+		Map<String, String> sequences = new LinkedHashMap<String, String>();
+		while (sequences.size() < NUM_INSERTS) {
+			sequences.put(bases(random, 12), bases(random, SEQUENCE_LENGTH));
+		}
+		return sequences;
+	}
+
+	private static String bases(Random random, int length) {
+		char[] bases = new char[length];
+		for (int i = 0; i < length; i++) {
+			bases[i] = "ACGT".charAt(random.nextInt(4));
+		}
+		return new String(bases);
+	}
+
+	private static MemoryManager newMemoryManager(boolean reopen)
+			throws IOException {
+		return new MemoryManager(new File(directory, "recovery.mm").getPath(),
+				false, new FreeSpaceIndex(FreeSpaceIndex.FitPolicy.FIRST_FIT),
+				reopen);
+	}
+
+	private static BucketStore newBucketStore(boolean reopen)
+			throws IOException {
+		return new BufferPoolBucketStore(new File(directory, "recovery.ht")
+				.getPath(), HashTable.SLOTS_IN_BUCKET, POOL_FRAMES,
+				BufferPoolBucketStore.EvictionPolicy.CLOCK, reopen);
+	}
+
+	private static WriteAheadLog newLog() throws IOException {
+		return new WriteAheadLog(new File(directory, "recovery.wal").getPath(),
+				WriteAheadLog.SyncPolicy.EVERY_OPERATION, 1);
+	}
+}
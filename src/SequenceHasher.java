@@ -0,0 +1,17 @@
+/**
+ * Hashes sequence IDs to pick their home slot in the HashTable.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface SequenceHasher {
+
+	/**
+	 * Hashes a sequence ID. The HashTable reduces the value modulo its size,
+	 * so every bit of the result should depend on the whole ID.
+	 * 
+	 * @param sequenceID
+	 * @return a hash value, never negative
+	 */
+	public long hash(String sequenceID);
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the bases of a stored sequence, decoding the sequence file a chunk
+ * at a time as the bases are asked for. However long the sequence, only one
+ * chunk of encoded bytes and its decoded bases are held in memory.
+ *
+ * @author loganlinn
+ *
+ */
+public class SequenceReader extends Reader {
+	public static final int DEFAULT_CHUNK_BYTES = 1 << 14;
+
+	private final MemoryManager memoryManager;
+	private int nextByte; // Offset in the file of the next chunk
+	private int basesLeft; // Not yet decoded
+	private final byte[] encoded;
+	private final char[] decoded;
+	private int position = 0; // In decoded
+	private int limit = 0; // Bases in decoded
+
+	/**
+	 * @param memoryManager
+	 * @param offset
+	 *            of the sequence in the file
+	 * @param length
+	 *            in bases
+	 */
+	public SequenceReader(MemoryManager memoryManager, int offset, int length) {
+		this(memoryManager, offset, length, DEFAULT_CHUNK_BYTES);
+	}
+
+	/**
+	 * @param memoryManager
+	 * @param offset
+	 *            of the sequence in the file
+	 * @param length
+	 *            in bases
+	 * @param chunkBytes
+	 *            bytes of the file read at a time
+	 */
+	public SequenceReader(MemoryManager memoryManager, int offset, int length,
+			int chunkBytes) {
+		this.memoryManager = memoryManager;
+		this.nextByte = offset;
+		this.basesLeft = length;
+		int bytes = Math.min(chunkBytes, MemoryManager
+				.getEncodedSequenceLength(length));
+		encoded = new byte[bytes];
+		decoded = new char[bytes * DnaCodec.BASES_PER_BYTE];
+	}
+
+	/**
+	 * Decodes the next chunk
+	 *
+	 * @return false if every base has been read
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (basesLeft == 0) {
+			return false;
+		}
+		int bases = Math.min(basesLeft, decoded.length);
+		int bytes = MemoryManager.getEncodedSequenceLength(bases);
+		memoryManager.readBlock(nextByte, encoded, bytes);
+		DnaCodec.decode(encoded, 0, bases, decoded, 0);
+		nextByte += bytes;
+		basesLeft -= bases;
+		position = 0;
+		limit = bases;
+		return true;
+	}
+
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		int n = Math.min(len, limit - position);
+		System.arraycopy(decoded, position, cbuf, off, n);
+		position += n;
+		return n;
+	}
+
+	public int read() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return decoded[position++];
+	}
+
+	/**
+	 * Skips bases without decoding the chunks they are in
+	 */
+	public long skip(long n) throws IOException {
+		long skipped = Math.min(n, limit - position);
+		position += skipped;
+		// Whole chunks are skipped in the file; a partial one is decoded
+		long wholeBytes = Math.min((n - skipped) / DnaCodec.BASES_PER_BYTE,
+				basesLeft / DnaCodec.BASES_PER_BYTE);
+		nextByte += wholeBytes;
+		basesLeft -= wholeBytes * DnaCodec.BASES_PER_BYTE;
+		skipped += wholeBytes * DnaCodec.BASES_PER_BYTE;
+		if (skipped < n && fill()) {
+			int rest = (int) Math.min(n - skipped, limit);
+			position = rest;
+			skipped += rest;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return bases left to read
+	 */
+	public long remaining() {
+		return basesLeft + (limit - position);
+	}
+
+	public void close() {
+		basesLeft = 0;
+		position = limit;
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+
+/**
+ * Stores a sequence whose length is not known until its last base, packing
+ * the bases as they are written. A chunk of packed bytes is kept in memory;
+ * once a sequence outgrows it, full chunks are spilled to a temporary file.
+ * store() allocates a block of exactly the right size and copies the packed
+ * bytes into it a chunk at a time, so however long the sequence, only one
+ * chunk is held in memory. When the memory manager deduplicates, the packed
+ * bytes are digested as they go, and bases that are already stored are not
+ * copied at all.
+ *
+ * @author loganlinn
+ *
+ */
+public class SequenceWriter extends Writer {
+	public static final int DEFAULT_CHUNK_BYTES = 1 << 16;
+
+	private final MemoryManager memoryManager;
+	private final byte[] chunk;
+	private int chunkBytes = 0; // Packed bytes in chunk
+	private int partial = 0; // Byte being packed
+	private int partialBases = 0; // Bases in partial
+	private int length = 0; // in bases
+	private File spillFile;
+	private OutputStream spillOut;
+	private final MessageDigest digest; // null unless deduplicating
+	private boolean closed = false;
+
+	/**
+	 * @param memoryManager
+	 *            that will store the sequence
+	 */
+	public SequenceWriter(MemoryManager memoryManager) {
+		this(memoryManager, DEFAULT_CHUNK_BYTES);
+	}
+
+	/**
+	 * @param memoryManager
+	 *            that will store the sequence
+	 * @param chunkBytes
+	 *            packed bytes held in memory
+	 */
+	public SequenceWriter(MemoryManager memoryManager, int chunkBytes) {
+		this.memoryManager = memoryManager;
+		chunk = new byte[chunkBytes];
+		digest = memoryManager.isDeduplicating() ? MemoryManager
+				.newContentDigest() : null;
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Sequence writer is closed");
+		}
+		if (len > Integer.MAX_VALUE - length) {
+			throw new IOException("Sequence is too long");
+		}
+		int end = off + len;
+		// Single bases until a byte boundary, then whole bytes at a time
+		while (off < end && partialBases != 0) {
+			writeBase(cbuf[off++]);
+		}
+		while (end - off >= DnaCodec.BASES_PER_BYTE) {
+			int bytes = Math.min((end - off) / DnaCodec.BASES_PER_BYTE,
+					chunk.length - chunkBytes);
+			DnaCodec.encode(cbuf, off, bytes * DnaCodec.BASES_PER_BYTE, chunk,
+					chunkBytes);
+			off += bytes * DnaCodec.BASES_PER_BYTE;
+			length += bytes * DnaCodec.BASES_PER_BYTE;
+			chunkBytes += bytes;
+			if (chunkBytes == chunk.length) {
+				spill();
+			}
+		}
+		while (off < end) {
+			writeBase(cbuf[off++]);
+		}
+	}
+
+	private void writeBase(char base) throws IOException {
+		partial |= DnaCodec.code(base) << (2 * partialBases);
+		length++;
+		if (++partialBases == DnaCodec.BASES_PER_BYTE) {
+			chunk[chunkBytes++] = (byte) partial;
+			partial = 0;
+			partialBases = 0;
+			if (chunkBytes == chunk.length) {
+				spill();
+			}
+		}
+	}
+
+	/**
+	 * Moves the full chunk to the temporary file
+	 *
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		if (spillOut == null) {
+			spillFile = File.createTempFile("sequence", ".spill");
+			spillFile.deleteOnExit();
+			spillOut = new FileOutputStream(spillFile);
+		}
+		spillOut.write(chunk, 0, chunkBytes);
+		if (digest != null) {
+			digest.update(chunk, 0, chunkBytes);
+		}
+		chunkBytes = 0;
+	}
+
+	/**
+	 * @return bases written so far
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Stores the sequence in the memory manager's file and closes the writer
+	 *
+	 * @return the handle of the stored sequence
+	 * @throws IOException
+	 */
+	public MemoryHandle store() throws IOException {
+		if (closed) {
+			throw new IOException("Sequence writer is closed");
+		}
+		if (partialBases != 0) {
+			chunk[chunkBytes++] = (byte) partial;
+		}
+		byte[] contentDigest = null;
+		if (digest != null && length > 0) {
+			digest.update(chunk, 0, chunkBytes);
+			contentDigest = digest.digest();
+			MemoryHandle shared = memoryManager.findShared(contentDigest,
+					length);
+			if (shared != null) {
+				close();
+				return shared;
+			}
+		}
+		int byteOffset = memoryManager.allocateBlock(DnaCodec
+				.encodedLength(length));
+		try {
+			if (spillOut == null) {
+				memoryManager.writeBlock(byteOffset, chunk, chunkBytes);
+			} else {
+				spillOut.write(chunk, 0, chunkBytes);
+				spillOut.close();
+				spillOut = null;
+				InputStream in = new FileInputStream(spillFile);
+				try {
+					int position = byteOffset;
+					int n;
+					while ((n = in.read(chunk)) > 0) {
+						memoryManager.writeBlock(position, chunk, n);
+						position += n;
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			close();
+		}
+		MemoryHandle handle = new MemoryHandle(byteOffset, length);
+		return (contentDigest != null) ? memoryManager.share(contentDigest,
+				handle) : handle;
+	}
+
+	public void flush() {
+	}
+
+	/**
+	 * Discards the bases, unless they were stored
+	 */
+	public void close() throws IOException {
+		closed = true;
+		if (spillOut != null) {
+			spillOut.close();
+			spillOut = null;
+		}
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * The original string folding hash: the ID is summed 4 characters at a time
+ * as little endian integers, and the middle of the squared sum is used.
+ * 
+ * Kept so tables built with it can be reproduced. It spreads short, low
+ * entropy IDs poorly, see {@link PackedDnaHasher}.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class SfoldHasher implements SequenceHasher {
+
+	public long hash(String sequenceID) {
+		long sum = 0;
+		for (int i = 0; i < sequenceID.length(); i++) {
+			sum += sequenceID.charAt(i) << (8 * (i & 0x3));
+		}
+		sum = (sum * sum) >> 8;
+		return Math.abs(sum);
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Notified whenever the HashTable changes the handles stored in a slot, so
+ * that structures keyed by memory file offsets can follow entries around.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface SlotListener {
+
+	/**
+	 * A slot that held the given handles no longer does
+	 * 
+	 * @param slot
+	 * @param sequenceIdOffset
+	 * @param sequenceIdLength
+	 * @param sequenceOffset
+	 * @param sequenceLength
+	 */
+	public void slotCleared(int slot, int sequenceIdOffset,
+			int sequenceIdLength, int sequenceOffset, int sequenceLength);
+
+	/**
+	 * A slot now holds the given handles
+	 * 
+	 * @param slot
+	 * @param sequenceIdOffset
+	 * @param sequenceIdLength
+	 * @param sequenceOffset
+	 * @param sequenceLength
+	 */
+	public void slotFilled(int slot, int sequenceIdOffset,
+			int sequenceIdLength, int sequenceOffset, int sequenceLength);
+}
@@ -0,0 +1,588 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Log of the inserts and removes made to a HashTable since its files were
+ * last known to be on disk, so they can be made again after a crash.
+ *
+ * Each operation is one record: its length, the operation and its
+ * arguments, and a CRC32 of them. Records are buffered and written with one
+ * sync per group, chosen by the {@link SyncPolicy}. After a crash, replay
+ * reads records up to the first one that is incomplete or fails its check
+ * (the group being written when the crash happened).
+ *
+ * A sequence that was streamed into the memory file is logged packed,
+ * copied from its block a chunk at a time, and replay streams it back
+ * through a SequenceWriter; so like the insert itself, the log never holds
+ * the whole sequence in memory. The CRC comes last so it can be computed
+ * as the record is written.
+ *
+ * An operation is logged before it changes the hash file or any part of
+ * the memory file the table refers to, and under EVERY_OPERATION the record
+ * is synced first, so nothing reaches the files that the log does not
+ * hold. An insert that turns out to be rejected because its bucket is full
+ * is followed by a remove record. Replay is idempotent: an insert is only
+ * made again if the ID is missing, a remove only if it is present. So it
+ * does not matter which of the logged operations already reached the hash
+ * and memory files, or which of them failed the first time.
+ *
+ * A Compactor logs each entry it is about to move, the same way as a
+ * streamed insert. The hash file on disk may be left pointing at the
+ * entry's old blocks, which the move and later inserts overwrite, so
+ * replay puts such an entry back from its record whether it is there or
+ * not.
+ *
+ * Once the table's files have been flushed, the log is truncated
+ * (a checkpoint).
+ *
+ * @author loganlinn
+ *
+ */
+public class WriteAheadLog {
+	public static final int DEFAULT_BATCH_SIZE = 64; // records
+	public static final int DEFAULT_INTERVAL_MILLIS = 100;
+	public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int CHUNK_BYTES = 1 << 14; // Of a packed sequence
+
+	private static final byte INSERT_RECORD = 'I';
+	private static final byte REMOVE_RECORD = 'R';
+	private static final byte PACKED_INSERT_RECORD = 'P';
+	private static final byte MOVE_RECORD = 'M';
+
+	/**
+	 * When buffered records are synced to the log file
+	 */
+	public enum SyncPolicy {
+		/**
+		 * Before the operation returns; nothing is lost in a crash
+		 */
+		EVERY_OPERATION,
+		/**
+		 * Once a batch of records is waiting, and at commit; up to a batch is
+		 * lost in a crash
+		 */
+		EVERY_BATCH,
+		/**
+		 * On a timer, and at commit; up to an interval's worth of records is
+		 * lost in a crash. If a sync on the timer fails, every later call to
+		 * log or commit throws.
+		 */
+		PERIODIC
+	}
+
+	private final File logFile;
+	private final SyncPolicy policy;
+	private final int batchSize;
+	private FileOutputStream fileOut;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+			BUFFER_SIZE);
+	private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private final CRC32 crc = new CRC32();
+	private final byte[] chunk = new byte[CHUNK_BYTES];
+	private Timer timer; // PERIODIC only
+	private IOException syncFailure; // Of the timer; thrown from then on
+	private int pendingRecords = 0; // Buffered, or written but not synced
+	private long logBytes = 0;
+	private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+
+	private long records = 0;
+	private long syncs = 0;
+	private long checkpoints = 0;
+
+	/**
+	 * Opens a log, keeping any records already in it for replay
+	 *
+	 * @param fileName
+	 * @param policy
+	 * @param batchOrInterval
+	 *            records per sync for EVERY_BATCH, milliseconds between syncs
+	 *            for PERIODIC
+	 * @throws IOException
+	 */
+	public WriteAheadLog(String fileName, SyncPolicy policy,
+			int batchOrInterval) throws IOException {
+		this.logFile = new File(fileName);
+		this.policy = policy;
+		this.batchSize = (policy == SyncPolicy.EVERY_BATCH) ? batchOrInterval
+				: 1;
+		fileOut = new FileOutputStream(logFile, true);
+		logBytes = logFile.length();
+		if (policy == SyncPolicy.PERIODIC) {
+			timer = new Timer("wal-sync", true);
+			timer.schedule(new TimerTask() {
+				public void run() {
+					syncOnTimer();
+				}
+			}, batchOrInterval, batchOrInterval);
+		}
+	}
+
+	/**
+	 * Commits for the timer. A failure is kept, so the next call from the
+	 * table's side throws it instead of going on as if its records were
+	 * synced.
+	 */
+	private synchronized void syncOnTimer() {
+		if (syncFailure != null) {
+			return;
+		}
+		try {
+			commit();
+		} catch (IOException e) {
+			syncFailure = e;
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 *             if a periodic sync has failed
+	 */
+	private void checkSyncFailure() throws IOException {
+		if (syncFailure != null) {
+			throw new IOException("Periodic sync of the write-ahead log failed",
+					syncFailure);
+		}
+	}
+
+	/**
+	 * @param checkpointBytes
+	 *            log size at which needsCheckpoint becomes true
+	 */
+	public void setCheckpointBytes(long checkpointBytes) {
+		this.checkpointBytes = checkpointBytes;
+	}
+
+	/**
+	 * Logs an insert that is about to be made
+	 *
+	 * @param sequenceID
+	 * @param sequence
+	 * @throws IOException
+	 */
+	public synchronized void logInsert(String sequenceID, String sequence)
+			throws IOException {
+		checkSyncFailure();
+		record.reset();
+		recordOut.writeByte(INSERT_RECORD);
+		writeString(sequenceID);
+		writeString(sequence);
+		append();
+	}
+
+	/**
+	 * Logs an insert that is about to be made, of a sequence that has been
+	 * stored already (but is not in the table yet). The packed bytes are
+	 * copied from the memory file a chunk at a time.
+	 *
+	 * @param sequenceID
+	 * @param memoryManager
+	 * @param sequenceHandle
+	 * @throws IOException
+	 */
+	public synchronized void logInsert(String sequenceID,
+			MemoryManager memoryManager, MemoryHandle sequenceHandle)
+			throws IOException {
+		checkSyncFailure();
+		appendPacked(PACKED_INSERT_RECORD, sequenceID, memoryManager,
+				sequenceHandle);
+		appended();
+	}
+
+	/**
+	 * Logs an entry whose blocks are about to be moved, with its sequence
+	 * packed, so replay can put the entry back whatever the move left in
+	 * its blocks. The record is not synced by the policy: the caller logs
+	 * every entry it is about to move, then commits.
+	 *
+	 * @param sequenceID
+	 * @param memoryManager
+	 * @param sequenceHandle
+	 *            of the entry's sequence, where it is before the move
+	 * @throws IOException
+	 */
+	public synchronized void logMove(String sequenceID,
+			MemoryManager memoryManager, MemoryHandle sequenceHandle)
+			throws IOException {
+		checkSyncFailure();
+		appendPacked(MOVE_RECORD, sequenceID, memoryManager, sequenceHandle);
+		records++;
+		pendingRecords++;
+		if (buffer.size() >= BUFFER_SIZE) {
+			write();
+		}
+	}
+
+	/**
+	 * Adds a record with a packed sequence to the buffer, copying the bytes
+	 * from the memory file a chunk at a time
+	 *
+	 * @param type
+	 * @param sequenceID
+	 * @param memoryManager
+	 * @param sequenceHandle
+	 * @throws IOException
+	 */
+	private void appendPacked(byte type, String sequenceID,
+			MemoryManager memoryManager, MemoryHandle sequenceHandle)
+			throws IOException {
+		int offset = sequenceHandle.getByteOffset();
+		int bytes = MemoryManager.getEncodedSequenceLength(sequenceHandle
+				.getSequenceLength());
+		record.reset();
+		recordOut.writeByte(type);
+		writeString(sequenceID);
+		recordOut.writeInt(sequenceHandle.getSequenceLength());
+		bufferOut.writeInt(record.size() + bytes);
+		crc.reset();
+		crc.update(record.toByteArray(), 0, record.size());
+		record.writeTo(buffer);
+		for (int done = 0; done < bytes;) {
+			int n = Math.min(chunk.length, bytes - done);
+			memoryManager.readBlock(offset + done, chunk, n);
+			crc.update(chunk, 0, n);
+			buffer.write(chunk, 0, n);
+			if (buffer.size() >= BUFFER_SIZE) {
+				write();
+			}
+			done += n;
+		}
+		bufferOut.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Logs a remove that is about to be made, or an insert that was
+	 * rejected
+	 *
+	 * @param sequenceID
+	 * @throws IOException
+	 */
+	public synchronized void logRemove(String sequenceID) throws IOException {
+		checkSyncFailure();
+		record.reset();
+		recordOut.writeByte(REMOVE_RECORD);
+		writeString(sequenceID);
+		append();
+	}
+
+	private void writeString(String value) throws IOException {
+		recordOut.writeInt(value.length());
+		recordOut.writeBytes(value);
+	}
+
+	/**
+	 * Adds the record being built to the buffer, and syncs if the policy says
+	 * so
+	 *
+	 * @throws IOException
+	 */
+	private void append() throws IOException {
+		bufferOut.writeInt(record.size());
+		record.writeTo(buffer);
+		crc.reset();
+		crc.update(record.toByteArray(), 0, record.size());
+		bufferOut.writeInt((int) crc.getValue());
+		appended();
+	}
+
+	/**
+	 * Counts a record that is in the buffer, and syncs if the policy says so
+	 *
+	 * @throws IOException
+	 */
+	private void appended() throws IOException {
+		records++;
+		pendingRecords++;
+		if (pendingRecords >= batchSize && policy != SyncPolicy.PERIODIC) {
+			commit();
+		} else if (buffer.size() >= BUFFER_SIZE) {
+			write(); // Keep the buffer bounded; synced later
+		}
+	}
+
+	/**
+	 * Writes the buffered records to the log file
+	 *
+	 * @throws IOException
+	 */
+	private void write() throws IOException {
+		if (buffer.size() > 0) {
+			logBytes += buffer.size();
+			buffer.writeTo(fileOut);
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * Writes and syncs every record logged so far (one group commit)
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void commit() throws IOException {
+		checkSyncFailure();
+		if (pendingRecords == 0) {
+			return;
+		}
+		write();
+		fileOut.getChannel().force(false);
+		pendingRecords = 0;
+		syncs++;
+	}
+
+	/**
+	 * @return true once the log has grown past the checkpoint size
+	 */
+	public synchronized boolean needsCheckpoint() {
+		return logBytes + buffer.size() >= checkpointBytes;
+	}
+
+	/**
+	 * Flushes the table's files to disk, then empties the log, since none of
+	 * its records are needed any more
+	 *
+	 * @param hashTable
+	 * @param memoryManager
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint(HashTable hashTable,
+			MemoryManager memoryManager) throws IOException {
+		memoryManager.flush();
+		hashTable.flush();
+		truncate();
+		checkpoints++;
+	}
+
+	/**
+	 * Drops every record, eg once the table has been closed cleanly
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void truncate() throws IOException {
+		buffer.reset();
+		pendingRecords = 0;
+		fileOut.getChannel().truncate(0);
+		fileOut.getChannel().force(false);
+		logBytes = 0;
+	}
+
+	/**
+	 * Makes the logged operations again, skipping the ones the table already
+	 * reflects. Nothing is printed or logged.
+	 *
+	 * @param hashTable
+	 * @param memoryManager
+	 * @return the number of operations that changed the table
+	 * @throws IOException
+	 */
+	public synchronized int replay(HashTable hashTable,
+			MemoryManager memoryManager) throws IOException {
+		commit();
+		int applied = 0;
+		BufferedInputStream file = new BufferedInputStream(
+				new FileInputStream(logFile), BUFFER_SIZE);
+		DataInputStream in = new DataInputStream(file);
+		// The body of a record is read through the checksum
+		DataInputStream body = new DataInputStream(new CheckedInputStream(
+				file, crc));
+		try {
+			int length;
+			while ((length = readLength(in)) > 0) {
+				crc.reset();
+				byte type = body.readByte();
+				if (type == PACKED_INSERT_RECORD || type == MOVE_RECORD) {
+					int result = replayPackedInsert(in, body, length - 1,
+							type == MOVE_RECORD, hashTable, memoryManager);
+					if (result < 0) {
+						break;
+					}
+					applied += result;
+					continue;
+				}
+				byte[] fields = new byte[length - 1];
+				body.readFully(fields);
+				if ((int) crc.getValue() != in.readInt()) {
+					break; // Torn or damaged
+				}
+				DataInputStream fieldsIn = new DataInputStream(
+						new ByteArrayInputStream(fields));
+				String sequenceID = readString(fieldsIn);
+				if (type == INSERT_RECORD) {
+					String sequence = readString(fieldsIn);
+					if (hashTable.findSlot(sequenceID) < 0
+							&& insert(hashTable, memoryManager, sequenceID,
+									memoryManager.storeSequence(sequenceID),
+									memoryManager.storeSequence(sequence))) {
+						applied++;
+					}
+				} else if (type == REMOVE_RECORD) {
+					int slot = hashTable.findSlot(sequenceID);
+					if (slot >= 0) {
+						hashTable.removeEntry(sequenceID, slot);
+						applied++;
+					}
+				}
+			}
+		} catch (EOFException e) {
+			// The last record is torn
+		} finally {
+			in.close();
+		}
+		return applied;
+	}
+
+	/**
+	 * Reads the length of the next record
+	 *
+	 * @param in
+	 * @return the length, or 0 at the end of the log or at a damaged length
+	 * @throws IOException
+	 */
+	private int readLength(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			return (length <= 0 || length > logFile.length()) ? 0 : length;
+		} catch (EOFException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Makes a logged insert of a packed sequence again if the ID is missing,
+	 * or puts back a logged entry that was moved, in place of whatever the
+	 * table has for the ID. The bases are read a chunk at a time into a
+	 * SequenceWriter, which is only stored once the whole record has passed
+	 * its check.
+	 *
+	 * @param in
+	 * @param body
+	 *            positioned after the type of the record
+	 * @param bytes
+	 *            left in the body
+	 * @param replace
+	 *            true for a moved entry
+	 * @param hashTable
+	 * @param memoryManager
+	 * @return 1 if the insert was made, 0 if not, -1 if the record is torn
+	 *         or damaged
+	 * @throws IOException
+	 */
+	private int replayPackedInsert(DataInputStream in, DataInputStream body,
+			int bytes, boolean replace, HashTable hashTable,
+			MemoryManager memoryManager) throws IOException {
+		// Nothing has been checked yet, so the lengths are checked first
+		int idLength = body.readInt();
+		if (idLength < 0 || idLength > bytes - 8) {
+			return -1;
+		}
+		byte[] id = new byte[idLength];
+		body.readFully(id);
+		String sequenceID = new String(id, "US-ASCII");
+		int bases = body.readInt();
+		bytes -= 8 + idLength;
+		if (bases < 0 || bytes != MemoryManager.getEncodedSequenceLength(bases)) {
+			return -1;
+		}
+
+		int slot = hashTable.findSlot(sequenceID);
+		SequenceWriter sequenceWriter = (slot < 0 || replace) ? memoryManager
+				.newSequence()
+				: null;
+		try {
+			byte[] packed = new byte[Math.min(CHUNK_BYTES, bytes)];
+			char[] decoded = new char[packed.length * DnaCodec.BASES_PER_BYTE];
+			while (bases > 0) {
+				int n = Math.min(bases, decoded.length);
+				body.readFully(packed, 0, MemoryManager
+						.getEncodedSequenceLength(n));
+				if (sequenceWriter != null) {
+					DnaCodec.decode(packed, 0, n, decoded, 0);
+					sequenceWriter.write(decoded, 0, n);
+				}
+				bases -= n;
+			}
+			if ((int) crc.getValue() != in.readInt()) {
+				return -1;
+			}
+			if (sequenceWriter == null) {
+				return 0;
+			}
+			if (slot >= 0) {
+				// Its blocks may have been overwritten since the move
+				hashTable.removeEntry(sequenceID, slot);
+			}
+			MemoryHandle sequenceIdHandle = memoryManager
+					.storeSequence(sequenceID);
+			return insert(hashTable, memoryManager, sequenceID,
+					sequenceIdHandle, sequenceWriter.store()) ? 1 : 0;
+		} finally {
+			if (sequenceWriter != null) {
+				sequenceWriter.close(); // Discards the bases unless stored
+			}
+		}
+	}
+
+	/**
+	 * Inserts a replayed sequence, freeing its blocks if the bucket is full
+	 *
+	 * @param hashTable
+	 * @param memoryManager
+	 * @param sequenceID
+	 * @param sequenceIdHandle
+	 * @param sequenceHandle
+	 * @return true if the sequence was inserted
+	 * @throws IOException
+	 */
+	private static boolean insert(HashTable hashTable,
+			MemoryManager memoryManager, String sequenceID,
+			MemoryHandle sequenceIdHandle, MemoryHandle sequenceHandle)
+			throws IOException {
+		try {
+			hashTable.insert(sequenceID, sequenceIdHandle, sequenceHandle);
+			return true;
+		} catch (HashTableFullException e) {
+			memoryManager.releaseSequence(sequenceIdHandle);
+			memoryManager.releaseSequence(sequenceHandle);
+			return false;
+		} catch (DuplicateSequenceException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "US-ASCII");
+	}
+
+	/**
+	 * Syncs any records still buffered and closes the log file
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (timer != null) {
+			timer.cancel();
+		}
+		commit();
+		fileOut.close();
+	}
+
+	public String toString() {
+		return "Write-ahead log (" + policy + "): records=" + records
+				+ ", syncs=" + syncs + ", checkpoints=" + checkpoints;
+	}
+}